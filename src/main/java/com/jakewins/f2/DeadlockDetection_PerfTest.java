@@ -0,0 +1,347 @@
+package com.jakewins.f2;
+
+import org.neo4j.kernel.DeadlockDetectedException;
+import org.neo4j.kernel.configuration.Config;
+import org.neo4j.kernel.impl.enterprise.lock.forseti.ForsetiLockManager;
+import org.neo4j.kernel.impl.locking.LockTracer;
+import org.neo4j.kernel.impl.locking.Locks;
+import org.neo4j.storageengine.api.lock.AcquireLockTimeoutException;
+import org.neo4j.storageengine.api.lock.ResourceType;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.jakewins.f2.DeadlockDetector_Test.NODE;
+import static com.jakewins.f2.DeadlockDetector_Test.SCHEMA;
+
+/**
+ * Benchmarks that deadlock on purpose, to judge changes to deadlock detection by.
+ *
+ * {@link #breakCycle} measures the time from a cycle closing until it's broken, that is until the victim has been
+ * told and the client that closed the cycle gets through. The {@code bystanders} group measures the throughput of
+ * clients that have nothing to do with the deadlocks, while one thread keeps deadlocking next to them; compare it
+ * with the {@code baseline} group, where nobody deadlocks.
+ */
+public class DeadlockDetection_PerfTest {
+    /** Resources in cycles start at this id, so they never collide with the ones bystanders use */
+    private static final long CYCLE_RESOURCES = 1_000_000;
+    private static final int BYSTANDER_RESOURCES = 1000;
+
+    /** F2 with the given {@link DeadlockDetectionMode}, or Forseti */
+    static Locks newLocks(String lockManager) {
+        if(lockManager.equals("FORSETI")) {
+            return new ForsetiLockManager(Config.defaults(), Clock.systemUTC(), NODE, SCHEMA);
+        }
+        return new F2Locks(new ResourceType[]{NODE, SCHEMA}, 64, new F2Options().withDeadlockDetection(DeadlockDetectionMode.valueOf(lockManager)));
+    }
+
+    @State(Scope.Thread)
+    public static class CycleState {
+        @Param({"STOP_THE_WORLD", "OPTIMISTIC", "SWEEPER", "FORSETI"})
+        public String lockManager;
+
+        /** Number of clients in the cycle; 2 is a plain pairwise deadlock */
+        @Param({"2", "8", "32"})
+        public int cycleLength;
+
+        @Param({"EXCLUSIVE", "UPGRADE"})
+        public String cycleType;
+
+        /** Clients queued up behind each client in the cycle, that are not part of the cycle themselves */
+        @Param({"0", "4"})
+        public int waitersPerLock;
+
+        private Locks locks;
+        private Cycle cycle;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            this.locks = newLocks(lockManager);
+            this.cycle = new Cycle(locks, cycleLength, cycleType.equals("UPGRADE"), waitersPerLock);
+        }
+
+        @Setup(Level.Invocation)
+        public void openCycle() throws InterruptedException {
+            cycle.open();
+        }
+
+        @TearDown(Level.Invocation)
+        public void resetCycle() throws Exception {
+            cycle.reset();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            cycle.shutdown();
+            locks.close();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void breakCycle(CycleState state) {
+        state.cycle.close();
+    }
+
+    @State(Scope.Group)
+    public static class GroupState {
+        @Param({"STOP_THE_WORLD", "OPTIMISTIC", "SWEEPER", "FORSETI"})
+        public String lockManager;
+
+        @Param({"2", "8"})
+        public int cycleLength;
+
+        private Locks locks;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            this.locks = newLocks(lockManager);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            locks.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class DeadlockerState {
+        private Cycle cycle;
+
+        @Setup(Level.Trial)
+        public void setup(GroupState group) {
+            this.cycle = new Cycle(group.locks, group.cycleLength, false, 0);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            cycle.shutdown();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class BystanderState {
+        private Locks.Client client;
+        private Random random;
+
+        @Setup(Level.Trial)
+        public void setup(GroupState group) {
+            this.client = group.locks.newClient();
+            this.random = new Random();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            client.close();
+        }
+    }
+
+    @Benchmark
+    @Group("bystanders")
+    @GroupThreads(1)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void deadlock(DeadlockerState state) throws Exception {
+        state.cycle.open();
+        state.cycle.close();
+        state.cycle.reset();
+    }
+
+    @Benchmark
+    @Group("bystanders")
+    @GroupThreads(3)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void bystander(BystanderState state) throws AcquireLockTimeoutException {
+        acquireAndRelease(state);
+    }
+
+    @Benchmark
+    @Group("baseline")
+    @GroupThreads(3)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void baseline(BystanderState state) throws AcquireLockTimeoutException {
+        acquireAndRelease(state);
+    }
+
+    private void acquireAndRelease(BystanderState state) throws AcquireLockTimeoutException {
+        long resourceId = state.random.nextInt(BYSTANDER_RESOURCES);
+        for(;;) {
+            try {
+                state.client.acquireExclusive(LockTracer.NONE, NODE, resourceId);
+                state.client.releaseExclusive(NODE, resourceId);
+                return;
+            } catch (DeadlockDetectedException e) {
+                // Can't deadlock holding one lock at a time, but Forseti finds false positives; keep going until
+                // we've actually acquired and released the lock once, see F2Locks_PerfTest
+            }
+        }
+    }
+
+    /**
+     * A cycle of clients, where each holds its own resource and waits for that of the next client in the cycle. The
+     * first client is driven by whoever closes the cycle; the others, and any waiters queued up behind them, run on
+     * helper threads.
+     *
+     * For {@code EXCLUSIVE} cycles each client holds its resource exclusively. For {@code UPGRADE} cycles each client
+     * holds its own resource and the next one shared, and tries to upgrade the next one, which the next client also
+     * holds shared; no resource ever has two clients upgrading it.
+     */
+    static class Cycle {
+        private final Locks locks;
+        private final int length;
+        private final boolean upgrade;
+        private final int waitersPerLock;
+        private final ExecutorService threads = Executors.newCachedThreadPool();
+        private final List<Future<?>> running = new ArrayList<>();
+        /** Helper threads that are about to, or already do, wait for a lock */
+        private final Set<Thread> waiting = ConcurrentHashMap.newKeySet();
+        /** Number of times a helper thread has started waiting for a lock, since the cycle was last opened */
+        private final AtomicInteger startedWaiting = new AtomicInteger();
+
+        private Locks.Client closer;
+
+        Cycle(Locks locks, int length, boolean upgrade, int waitersPerLock) {
+            this.locks = locks;
+            this.length = length;
+            this.upgrade = upgrade;
+            this.waitersPerLock = waitersPerLock;
+        }
+
+        /** Set up every edge of the cycle but the last one, and wait for everyone involved to be waiting */
+        void open() throws InterruptedException {
+            closer = locks.newClient();
+            hold(closer, 0);
+
+            CountDownLatch holding = new CountDownLatch(length - 1);
+            CountDownLatch go = new CountDownLatch(1);
+            for(int i = 1; i < length; i++) {
+                int position = i;
+                running.add(threads.submit(() -> {
+                    try(Locks.Client client = locks.newClient()) {
+                        hold(client, position);
+                        holding.countDown();
+                        go.await();
+                        waitFor(client, (position + 1) % length);
+                    }
+                    return null;
+                }));
+            }
+            holding.await();
+            go.countDown();
+            awaitWaiting(length - 1);
+
+            for(int i = 0; i < length; i++) {
+                long resourceId = resource(i);
+                for(int j = 0; j < waitersPerLock; j++) {
+                    running.add(threads.submit(() -> {
+                        try(Locks.Client client = locks.newClient()) {
+                            startWaiting();
+                            try {
+                                client.acquireExclusive(LockTracer.NONE, NODE, resourceId);
+                            } catch(DeadlockDetectedException e) {
+                                // Only if Forseti gets it wrong; we don't hold anything, so we can't be in a cycle
+                            } finally {
+                                waiting.remove(Thread.currentThread());
+                            }
+                        }
+                        return null;
+                    }));
+                }
+            }
+            awaitWaiting(length - 1 + length * waitersPerLock);
+        }
+
+        /** Close the cycle, and wait for it to be broken */
+        void close() {
+            waitFor(closer, 1 % length);
+        }
+
+        /** Let go of everything, so the cycle can be opened again */
+        void reset() throws Exception {
+            closer.close();
+            for(Future<?> future : running) {
+                future.get();
+            }
+            running.clear();
+            startedWaiting.set(0);
+        }
+
+        void shutdown() {
+            threads.shutdownNow();
+        }
+
+        private void hold(Locks.Client client, int position) {
+            if(upgrade) {
+                client.acquireShared(LockTracer.NONE, NODE, resource(position));
+                client.acquireShared(LockTracer.NONE, NODE, resource((position + 1) % length));
+            } else {
+                client.acquireExclusive(LockTracer.NONE, NODE, resource(position));
+            }
+        }
+
+        private void waitFor(Locks.Client client, int position) {
+            startWaiting();
+            try {
+                client.acquireExclusive(LockTracer.NONE, NODE, resource(position));
+            } catch(DeadlockDetectedException e) {
+                // This client was picked as victim
+            } finally {
+                waiting.remove(Thread.currentThread());
+            }
+        }
+
+        private void startWaiting() {
+            waiting.add(Thread.currentThread());
+            startedWaiting.incrementAndGet();
+        }
+
+        /**
+         * Wait until the given number of helper threads have started waiting for a lock, and those still waiting are
+         * parked; none of them can get their lock before the cycle is broken
+         */
+        private void awaitWaiting(int numWaiting) {
+            while(startedWaiting.get() < numWaiting) {
+                Thread.yield();
+            }
+            for(Thread thread : waiting) {
+                while(waiting.contains(thread) && thread.getState() == Thread.State.RUNNABLE) {
+                    Thread.yield();
+                }
+            }
+        }
+
+        private static long resource(int position) {
+            return CYCLE_RESOURCES + position;
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(DeadlockDetection_PerfTest.class.getSimpleName())
+                .warmupIterations(1)
+                .measurementIterations(5)
+                .threadGroups(1, Runtime.getRuntime().availableProcessors())
+                .forks(1)
+                .build();
+
+        new Runner(opt).run();
+    }
+}
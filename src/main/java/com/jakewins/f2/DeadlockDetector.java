@@ -1,10 +1,16 @@
 package com.jakewins.f2;
 
-import java.util.*;
+import java.util.Arrays;
+import java.util.HashMap;
 
 class DeadlockDescription {
 
-    private F2ClientEntry[] chain;
+    // The chain, as captured when the deadlock was found; entries get recycled once the world resumes, so we
+    // hold on to what we need to describe the deadlock, and leave the formatting until someone asks for it
+    private F2Client[] owners;
+    private String[] ownerNames;
+    private LockMode[] lockModes;
+    private F2Lock[] locks;
 
     DeadlockDescription() {
         // Special case for NoDeadlockDescription
@@ -16,7 +22,16 @@ class DeadlockDescription {
      */
     DeadlockDescription(F2ClientEntry ... chain) {
         assert assertIsValidDeadlockChain(chain);
-        this.chain = chain;
+        this.owners = new F2Client[chain.length];
+        this.ownerNames = new String[chain.length];
+        this.lockModes = new LockMode[chain.length];
+        this.locks = new F2Lock[chain.length];
+        for(int linkIndex = 0; linkIndex < chain.length; linkIndex++) {
+            owners[linkIndex] = chain[linkIndex].owner;
+            ownerNames[linkIndex] = chain[linkIndex].owner.name();
+            lockModes[linkIndex] = chain[linkIndex].lockMode;
+            locks[linkIndex] = chain[linkIndex].lock;
+        }
     }
 
     @Override
@@ -26,12 +41,12 @@ class DeadlockDescription {
 
         DeadlockDescription that = (DeadlockDescription) o;
 
-        return Arrays.equals(chain, that.chain);
+        return Arrays.equals(owners, that.owners) && Arrays.equals(lockModes, that.lockModes) && Arrays.equals(locks, that.locks);
     }
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(chain);
+        return 31 * Arrays.hashCode(owners) + Arrays.hashCode(locks);
     }
 
     @Override
@@ -39,11 +54,10 @@ class DeadlockDescription {
         ClientAliaser aliases = new ClientAliaser();
 
         StringBuilder sb = new StringBuilder("Deadlock ");
-        for(int linkIndex=0;linkIndex<chain.length - 1;linkIndex++) {
-            F2ClientEntry link = chain[linkIndex];
-            sb.append(String.format("(%s)-[:WAITS_FOR]->(%s %s)->[:BLOCKED_BY]->", aliases.alias(link.owner), link.lockMode, link.lock));
+        for(int linkIndex=0;linkIndex<owners.length - 1;linkIndex++) {
+            sb.append(String.format("(%s)-[:WAITS_FOR]->(%s %s)->[:BLOCKED_BY]->", aliases.alias(owners[linkIndex], ownerNames[linkIndex]), lockModes[linkIndex], locks[linkIndex]));
         }
-        sb.append(String.format("(%s)", chain[chain.length-1].owner));
+        sb.append(String.format("(%s)", ownerNames[owners.length-1]));
         return sb.append("\n")
                 .append("Where:\n")
                 .append(aliases.describe())
@@ -60,8 +74,11 @@ class DeadlockDescription {
             F2ClientEntry waiter = chain[linkIndex - 1];
             F2ClientEntry holder = chain[linkIndex];
 
-            // The waiter should be waiting on a lock held by the next waiter (eg. the holder)
-            assertLockHeldBy(waiter.lock, holder.owner);
+            // The waiter should be waiting on a lock held by the next waiter (eg. the holder), or be queued behind
+            // it, see DeadlockDetector#blockingWaiterAhead
+            if(DeadlockDetector.blockingWaiterAhead(waiter) != holder) {
+                assertLockHeldBy(waiter.lock, holder.owner);
+            }
 
             // If the deadlock is triggering on a client waiting on itself, something is wrong
             assert waiter.owner != holder.owner : String.format("Invalid deadlock chain: %s\n" +
@@ -89,18 +106,10 @@ class DeadlockDescription {
     }
 
     private static void assertLockHeldBy(F2Lock lock, F2Client expectedHolder) {
-        if(lock.exclusiveHolder.owner != expectedHolder) {
-            boolean isHoldingSharedLock = false;
-            for(F2ClientEntry current = lock.sharedHolderList; current != null; current = current.next) {
-                if(current.owner == expectedHolder) {
-                    isHoldingSharedLock = true;
-                    break;
-                }
-            }
-
-            assert isHoldingSharedLock: String.format("Expected %s to hold shared or exclusive lock on %s. " +
-                    "Exclusive holder is %s, shared holder HEAD is %s",
-                    expectedHolder, lock, lock.exclusiveHolder, lock.sharedHolderList);
+        if(lock.exclusiveHolder == null || lock.exclusiveHolder.owner != expectedHolder) {
+            assert lock.isHeldSharedBy(expectedHolder): String.format("Expected %s to hold shared or exclusive lock on %s. " +
+                    "Exclusive holder is %s, there are %d shared holders",
+                    expectedHolder, lock, lock.exclusiveHolder, lock.sharedHolderCount);
         }
     }
 
@@ -109,11 +118,11 @@ class DeadlockDescription {
         private final HashMap<F2Client, String> clients = new HashMap<>();
         private final StringBuilder aliasDescription = new StringBuilder();
 
-        String alias(F2Client client) {
+        String alias(F2Client client, String name) {
             if(!clients.containsKey(client)) {
                 String alias = clients.size() < aliases.length ? aliases[clients.size()] : String.format("X%d", clients.size());
                 clients.put(client, alias);
-                aliasDescription.append("  ").append(alias).append(": ").append(client.name()).append("\n");
+                aliasDescription.append("  ").append(alias).append(": ").append(name).append("\n");
             }
             return clients.get(client);
         }
@@ -124,6 +133,51 @@ class DeadlockDescription {
     }
 }
 
+/**
+ * A wait that was refused, or a client that was wounded, to rule out deadlock rather than because one was found, see
+ * {@link DeadlockDetectionMode#WAIT_DIE} and {@link DeadlockDetectionMode#WOUND_WAIT}.
+ */
+class AvoidedDeadlockDescription extends DeadlockDescription {
+    private final String waiterName;
+    private final String blockerName;
+    private final LockMode lockMode;
+    private final F2Lock lock;
+    private final boolean waiterIsVictim;
+
+    /**
+     * @param waiter the client that wants the lock
+     * @param blocker the client it would wait for
+     * @param waiterIsVictim true if the waiter is the younger of the two, and fails; false if the blocker does
+     */
+    AvoidedDeadlockDescription(F2ClientEntry waiter, F2Client blocker, boolean waiterIsVictim) {
+        this.waiterName = waiter.owner.name();
+        this.blockerName = blocker.name();
+        this.lockMode = waiter.lockMode;
+        this.lock = waiter.lock;
+        this.waiterIsVictim = waiterIsVictim;
+    }
+
+    @Override
+    public String toString() {
+        if(waiterIsVictim) {
+            return String.format("Possible deadlock avoided: (%s) may not wait for older client (%s) to get (%s %s).",
+                    waiterName, blockerName, lockMode, lock);
+        }
+        return String.format("Possible deadlock avoided: older client (%s) has to wait for (%s) to get (%s %s), so (%s) is aborted.",
+                waiterName, blockerName, lockMode, lock, blockerName);
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(this);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj == this;
+    }
+}
+
 class NoDeadlockDescription extends DeadlockDescription {
     NoDeadlockDescription() {
 
@@ -147,91 +201,285 @@ class NoDeadlockDescription extends DeadlockDescription {
 class DeadlockDetector {
     static final DeadlockDescription NONE = new NoDeadlockDescription();
 
+    private final DeadlockDetectionMode mode;
+    private final DeadlockVictimPolicy victimPolicy;
+
+    DeadlockDetector() {
+        this(DeadlockDetectionMode.STOP_THE_WORLD);
+    }
+
+    DeadlockDetector(DeadlockDetectionMode mode) {
+        this(mode, DeadlockVictimPolicy.DETECTOR);
+    }
+
+    DeadlockDetector(DeadlockDetectionMode mode, DeadlockVictimPolicy victimPolicy) {
+        this.mode = mode;
+        this.victimPolicy = victimPolicy;
+    }
+
+    DeadlockDetectionMode mode() {
+        return mode;
+    }
+
+    DeadlockVictimPolicy victimPolicy() {
+        return victimPolicy;
+    }
+
+    /**
+     * Pick the client to abort to break a deadlock, by the cost given by our {@link DeadlockVictimPolicy}.
+     *
+     * NOTE: Must hold the partition lock of every entry in the chain
+     * @param chain as returned by {@link #findCycle}; the first client in it is the one that found the deadlock,
+     *              and wins any ties
+     */
+    F2Client chooseVictim(F2ClientEntry[] chain) {
+        F2Client victim = chain[0].owner;
+        long victimCost = victimPolicy.cost(victim);
+        // The last entry is the first one again
+        for(int linkIndex = 1; linkIndex < chain.length - 1; linkIndex++) {
+            F2Client candidate = chain[linkIndex].owner;
+            long cost = victimPolicy.cost(candidate);
+            if(cost < victimCost) {
+                victim = candidate;
+                victimCost = cost;
+            }
+        }
+        return victim;
+    }
+
     /**
      * NOTE: It's assumed caller holds a stop-the-world lock on {@link F2Partitions}
      * @param source find loops from the perspective of this client
      * @return a description of any deadlock found, or {@link #NONE}
      */
     DeadlockDescription detectDeadlock(F2Client source) {
-        LinkedList<F2ClientEntry> detectedDeadlockChain = new LinkedList<>();
+        return detectDeadlock(source, new Search());
+    }
 
-        boolean foundDeadlock = detectRecursively(source, source, new HashSet<>(), detectedDeadlockChain, 0);
-        if(!foundDeadlock) {
+    /** @see #detectDeadlock(F2Client) */
+    DeadlockDescription detectDeadlock(F2Client source, Search search) {
+        F2ClientEntry[] chain = findCycle(source, search);
+        if(chain == null) {
             return NONE;
         }
+        return new DeadlockDescription(chain);
+    }
 
-        // Describe the deadlock chain
-        detectedDeadlockChain.push(source.waitsFor);
-        F2ClientEntry[] chain = new F2ClientEntry[detectedDeadlockChain.size()];
-        int chainIndex = 0;
-        for(F2ClientEntry entry : detectedDeadlockChain) {
-            chain[chainIndex++] = entry;
-        }
+    F2ClientEntry[] findCycle(F2Client source) {
+        return findCycle(source, new Search());
+    }
 
-        return new DeadlockDescription(chain);
+    /**
+     * Find a wait-for cycle through the given client. This may be called without holding any partition locks, see
+     * {@link DeadlockDetectionMode#OPTIMISTIC}, in which case the graph may change under us; the result is then only
+     * a suspect, to be checked with {@link #isStillDeadlocked}, and the search may throw if it trips over an entry
+     * that is being recycled.
+     *
+     * @param source find loops from the perspective of this client
+     * @param search scratch space for the search, owned by the caller
+     * @return the deadlock chain, as described in {@link DeadlockDescription#DeadlockDescription(F2ClientEntry...)},
+     *         or null if there's no deadlock
+     */
+    F2ClientEntry[] findCycle(F2Client source, Search search) {
+        try {
+            return search.findCycle(source);
+        } finally {
+            search.reset();
+        }
     }
 
-    private boolean detectRecursively(F2Client source, F2Client blockee, Set<F2Client> seen, LinkedList<F2ClientEntry> detectedDeadlockChain, int depth) {
-        F2Lock lock;
+    /**
+     * Check that a chain found by {@link #findCycle} without holding the partition locks is a deadlock right now:
+     * every waiter in it is still waiting on the same entry, for a lock held by the next client in the chain, or
+     * behind the next client in the wait list of that lock, see {@link #blockingWaiterAhead}.
+     *
+     * NOTE: Must hold the partition lock of every entry in the chain
+     */
+    static boolean isStillDeadlocked(F2ClientEntry[] chain) {
+        for(int linkIndex = 1; linkIndex < chain.length; linkIndex++) {
+            F2ClientEntry waiter = chain[linkIndex - 1];
+            F2Client holder = chain[linkIndex].owner;
+            if(waiter.owner == null || waiter.owner.waitsFor != waiter || holder == null || holder == waiter.owner) {
+                return false;
+            }
 
-        // Unblocked clients tell no tales
-        if(blockee == null || blockee.waitsFor == null) {
-            return false;
+            F2Lock lock = waiter.lock;
+            boolean heldExclusively = lock.exclusiveHolder != null && lock.exclusiveHolder.owner == holder;
+            boolean heldSharedAndBlocking = waiter.lockMode != LockMode.SHARED && lock.isHeldSharedBy(holder);
+            boolean waitingAhead = blockingWaiterAhead(waiter) == chain[linkIndex] && holder.waitsFor == chain[linkIndex];
+            if(!heldExclusively && !heldSharedAndBlocking && !waitingAhead) {
+                return false;
+            }
         }
+        return chain[0].owner == chain[chain.length - 1].owner;
+    }
 
-        // If we've already explored this client, no need to do it again
-        if(!seen.add(blockee)) {
-            return false;
+    /**
+     * Waiters are granted in wait list order, so a waiter is blocked by the waiter ahead of it as well, unless both
+     * only want the lock shared; shared waiters queued one after the other are granted together. A shared waiter is
+     * then blocked by the nearest waiter ahead of it that wants an exclusive or upgrade lock.
+     *
+     * NOTE: Must hold partition lock, unless the answer is checked again once holding it
+     * @return the waiter ahead of the given one in the wait list that it can't be granted together with, or null
+     */
+    static F2ClientEntry blockingWaiterAhead(F2ClientEntry waiter) {
+        F2ClientEntry ahead = waiter.prev;
+        if(waiter.lockMode == LockMode.SHARED) {
+            while(ahead != null && ahead.lockMode == LockMode.SHARED) {
+                ahead = ahead.prev;
+            }
         }
+        return ahead;
+    }
 
-        if(depth > 15) {
-            throw new RuntimeException(String.format("source: %s, blockee: %s, waitsFor: %s", source, blockee, blockee.waitsFor));
+    /**
+     * Depth-first search of the wait-for graph, with an explicit stack rather than recursion, so there's no limit
+     * to how long a wait chain we can follow. Clients we've been to are marked in a bitmap by their slot, see
+     * {@link F2ClientSlots}. A search is only ever used by one thread at a time; arrays are kept between searches,
+     * so once they've grown to fit, searching allocates nothing unless a deadlock is found.
+     */
+    static class Search {
+        /** Cursor value for a frame whose exclusive holder we haven't looked at yet */
+        private static final int EXCLUSIVE_HOLDER = -2;
+        /** Cursor value for a frame whose waiter ahead in the wait list we haven't looked at yet */
+        private static final int WAITER_AHEAD = -1;
+
+        private long[] visited = new long[1];
+        private int[] visitedSlots = new int[16];
+        private int numVisited = 0;
+
+        // The stack: each frame is a waiting client, the entry it waits on, and how far along the holders of that
+        // entry's lock we are
+        private F2Client[] clients = new F2Client[16];
+        private F2ClientEntry[] waitingOn = new F2ClientEntry[16];
+        private int[] cursors = new int[16];
+        private int top = 0;
+        private int highWaterMark = 0;
+
+        private F2ClientEntry[] findCycle(F2Client source) {
+            F2ClientEntry sourceWaitsFor = source.waitsFor;
+            if(sourceWaitsFor == null || !visit(source)) {
+                return null;
+            }
+            push(source, sourceWaitsFor);
+
+            while(top > 0) {
+                F2Client blocker = nextBlocker(top - 1);
+                if(blocker == null) {
+                    // Explored everything blocking this client
+                    top--;
+                    continue;
+                }
+                if(blocker == source) {
+                    return chain();
+                }
+
+                // Unblocked clients tell no tales, and there's no need to explore a client twice
+                F2ClientEntry blockerWaitsFor = blocker.waitsFor;
+                if(blockerWaitsFor == null || !visit(blocker)) {
+                    continue;
+                }
+                push(blocker, blockerWaitsFor);
+            }
+            return null;
         }
 
-        lock = blockee.waitsFor.lock;
+        /** @return the next client blocking the client in the given frame, or null if there are no more */
+        private F2Client nextBlocker(int frame) {
+            F2ClientEntry waiter = waitingOn[frame];
+            F2Lock lock = waiter.lock;
+            if(lock == null) {
+                return null;
+            }
 
-        // Is the lock we're (transitively) blocked on held exclusively?
-        if(lock.exclusiveHolder != null) {
-            // Is the blocking client waiting on us?
-            if (lock.exclusiveHolder.owner == source) {
-                detectedDeadlockChain.push(lock.exclusiveHolder.owner.waitsFor);
-                return true;
+            if(cursors[frame] == EXCLUSIVE_HOLDER) {
+                cursors[frame] = WAITER_AHEAD;
+                F2ClientEntry holder = lock.exclusiveHolder;
+                if(holder != null && holder.owner != null && holder.owner != clients[frame]) {
+                    return holder.owner;
+                }
             }
 
-            if(lock.exclusiveHolder.owner == null) {
-                throw new RuntimeException("Waitsfor record with owner == null: " + lock.exclusiveHolder);
+            // The waiter ahead of us we can't be granted together with blocks us as well; it in turn is blocked by
+            // the one ahead of it, and so on up the list
+            if(cursors[frame] == WAITER_AHEAD) {
+                cursors[frame] = 0;
+                F2ClientEntry ahead = blockingWaiterAhead(waiter);
+                if(ahead != null && ahead.owner != null && ahead.owner != clients[frame]) {
+                    return ahead.owner;
+                }
             }
-            if(lock.exclusiveHolder.owner == blockee) {
-                throw new RuntimeException(String.format("Uhhh %s, waitsFor:%s source:%s", lock.exclusiveHolder, lock.exclusiveHolder.owner.waitsFor, source));
+
+            // Shared holders block exclusive and upgrade waiters, but not other shared waiters
+            if(waiter.lockMode == LockMode.SHARED) {
+                return null;
             }
-            if (detectRecursively(source, lock.exclusiveHolder.owner, seen, detectedDeadlockChain, depth + 1)){
-                // Found a loop
-                detectedDeadlockChain.push(lock.exclusiveHolder.owner.waitsFor);
-                return true;
+
+            F2ClientSlots clientSlots = clients[frame].partitions().clientSlots();
+            for(int slot = lock.nextSharedHolder(cursors[frame]); slot != -1; slot = lock.nextSharedHolder(slot + 1)) {
+                cursors[frame] = slot + 1;
+                F2Client holder = clientSlots.client(slot);
+                if(holder != null && holder != clients[frame]) {
+                    return holder;
+                }
             }
+            cursors[frame] = Integer.MAX_VALUE;
+            return null;
         }
 
-        // If the entry we're blocked on is not waiting to get `lock` exclusively, then there's no reason
-        // to check shared holders of that lock, because they do not block our blockee
-        if(blockee.waitsFor.lockMode != LockMode.EXCLUSIVE) {
-            return false;
+        /** The chain runs from the source, through every client on the stack, and back to the source */
+        private F2ClientEntry[] chain() {
+            F2ClientEntry[] chain = new F2ClientEntry[top + 1];
+            System.arraycopy(waitingOn, 0, chain, 0, top);
+            chain[top] = waitingOn[0];
+            return chain;
         }
 
-        for(F2ClientEntry current = lock.sharedHolderList; current != null; current = current.next) {
-            if(current.owner == source) {
-                // We have a share lock on the lock that our blocker wants an exclusive lock on; womp womp womp.
-                detectedDeadlockChain.push(current.owner.waitsFor);
-                return true;
+        private void push(F2Client client, F2ClientEntry waitsFor) {
+            if(top == clients.length) {
+                clients = Arrays.copyOf(clients, top * 2);
+                waitingOn = Arrays.copyOf(waitingOn, top * 2);
+                cursors = Arrays.copyOf(cursors, top * 2);
             }
+            clients[top] = client;
+            waitingOn[top] = waitsFor;
+            cursors[top] = EXCLUSIVE_HOLDER;
+            top++;
+            highWaterMark = Math.max(highWaterMark, top);
+        }
 
-            if(detectRecursively(source, current.owner, seen, detectedDeadlockChain, depth + 1)) {
-                // Found a loop
-                detectedDeadlockChain.push(current.owner.waitsFor);
-                return true;
+        /** @return true if the client was not visited before */
+        private boolean visit(F2Client client) {
+            int slot = client.slot();
+            if(slot < 0) {
+                // Closed while we were looking; it's not waiting for anything
+                return false;
             }
+            int word = slot >>> 6;
+            if(word >= visited.length) {
+                visited = Arrays.copyOf(visited, Math.max(word + 1, visited.length * 2));
+            }
+            if((visited[word] & (1L << slot)) != 0) {
+                return false;
+            }
+            visited[word] |= 1L << slot;
+            if(numVisited == visitedSlots.length) {
+                visitedSlots = Arrays.copyOf(visitedSlots, numVisited * 2);
+            }
+            visitedSlots[numVisited++] = slot;
+            return true;
         }
 
-        // Unable to find a loop
-        return false;
+        private void reset() {
+            for(int i = 0; i < numVisited; i++) {
+                visited[visitedSlots[i] >>> 6] = 0;
+            }
+            numVisited = 0;
+            // Don't hang on to clients and entries between searches
+            Arrays.fill(clients, 0, highWaterMark, null);
+            Arrays.fill(waitingOn, 0, highWaterMark, null);
+            highWaterMark = 0;
+            top = 0;
+        }
     }
 }
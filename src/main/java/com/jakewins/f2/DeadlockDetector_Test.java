@@ -8,6 +8,8 @@ import org.neo4j.storageengine.api.lock.WaitStrategy;
 import static com.jakewins.f2.AcquireMode.BLOCKING;
 import static com.jakewins.f2.F2Lock_Test.newEntry;
 import static com.jakewins.f2.LockMode.EXCLUSIVE;
+import static com.jakewins.f2.LockMode.SHARED;
+import static com.jakewins.f2.LockMode.UPGRADE;
 
 public class DeadlockDetector_Test {
     @Test
@@ -38,6 +40,29 @@ public class DeadlockDetector_Test {
         assert deadlock.equals(expectedDeadlock) : String.format("Expected %s, found %s", expectedDeadlock, deadlock);
     }
 
+    @Test
+    public void testCycleIsNoLongerDeadlockedOnceAWaiterLeaves() {
+        F2Lock lock1 = F2Lock_Test.newLock(1);
+        F2Lock lock2 = F2Lock_Test.newLock(2);
+        F2Client clientX = F2Lock_Test.newClient("X");
+        F2Client clientY = F2Lock_Test.newClient("Y");
+
+        F2ClientEntry clientYWaitsForLockA = newEntry(clientY, EXCLUSIVE);
+        lock1.acquire(BLOCKING, newEntry(clientX, EXCLUSIVE));
+        lock2.acquire(BLOCKING, newEntry(clientY, EXCLUSIVE));
+        lock1.acquire(BLOCKING, clientYWaitsForLockA);
+        lock2.acquire(BLOCKING, newEntry(clientX, EXCLUSIVE));
+
+        // Given a cycle found while nobody was looking
+        F2ClientEntry[] chain = new DeadlockDetector().findCycle(clientX);
+        assert chain != null;
+        assert DeadlockDetector.isStillDeadlocked(chain);
+
+        // When one of the waiters leaves before the cycle is confirmed, then it's no longer a deadlock
+        lock1.errorCleanup(clientYWaitsForLockA);
+        assert !DeadlockDetector.isStillDeadlocked(chain);
+    }
+
     @Test
     public void testUnrelatedDeadlockDoesNotCauseInfiniteLoop() {
         F2Lock lock1 = F2Lock_Test.newLock(1);
@@ -70,6 +95,163 @@ public class DeadlockDetector_Test {
         assert deadlock.equals(expectedDeadlock) : String.format("Expected %s, found %s", expectedDeadlock, deadlock);
     }
 
+    @Test
+    public void testLongDeadlockChain() {
+        int length = 100;
+        F2Lock[] locks = new F2Lock[length];
+        F2Client[] clients = new F2Client[length];
+        F2ClientEntry[] waits = new F2ClientEntry[length];
+        for(int i = 0; i < length; i++) {
+            locks[i] = F2Lock_Test.newLock(i);
+            clients[i] = F2Lock_Test.newClient(String.valueOf(i));
+            locks[i].acquire(BLOCKING, newEntry(clients[i], EXCLUSIVE));
+        }
+
+        // Given each client waits for the lock of the next one, and the last one for the lock of the first one
+        for(int i = 0; i < length; i++) {
+            waits[i] = newEntry(clients[i], EXCLUSIVE);
+            locks[(i + 1) % length].acquire(BLOCKING, waits[i]);
+        }
+
+        // Then the whole chain comes out, with no recursion depth to worry about
+        F2ClientEntry[] expectedChain = new F2ClientEntry[length + 1];
+        System.arraycopy(waits, 0, expectedChain, 0, length);
+        expectedChain[length] = waits[0];
+        DeadlockDescription expectedDeadlock = new DeadlockDescription(expectedChain);
+        DeadlockDescription deadlock = new DeadlockDetector().detectDeadlock(clients[0]);
+
+        assert deadlock.equals(expectedDeadlock) : String.format("Expected %s, found %s", expectedDeadlock, deadlock);
+    }
+
+    @Test
+    public void testSearchCanBeReused() {
+        F2Lock lock1 = F2Lock_Test.newLock(1);
+        F2Lock lock2 = F2Lock_Test.newLock(2);
+        F2Client clientX = F2Lock_Test.newClient("X");
+        F2Client clientY = F2Lock_Test.newClient("Y");
+        DeadlockDetector.Search search = new DeadlockDetector.Search();
+
+        lock1.acquire(BLOCKING, newEntry(clientX, EXCLUSIVE));
+        lock2.acquire(BLOCKING, newEntry(clientY, EXCLUSIVE));
+        lock1.acquire(BLOCKING, newEntry(clientY, EXCLUSIVE));
+        lock2.acquire(BLOCKING, newEntry(clientX, EXCLUSIVE));
+
+        // When we search from both ends of the deadlock with the same search, then both find it
+        assert new DeadlockDetector().detectDeadlock(clientX, search) != DeadlockDetector.NONE;
+        assert new DeadlockDetector().detectDeadlock(clientY, search) != DeadlockDetector.NONE;
+    }
+
+    @Test
+    public void testUpgradeWaitingForSharedHolderDeadlock() {
+        F2Lock lock1 = F2Lock_Test.newLock(1);
+        F2Lock lock2 = F2Lock_Test.newLock(2);
+        F2Client clientX = F2Lock_Test.newClient("X");
+        F2Client clientY = F2Lock_Test.newClient("Y");
+
+        // Given X and Y share lock 1, and X holds lock 2
+        lock1.acquire(BLOCKING, newEntry(clientX, SHARED));
+        lock1.acquire(BLOCKING, newEntry(clientY, SHARED));
+        lock2.acquire(BLOCKING, newEntry(clientX, EXCLUSIVE));
+
+        // When Y waits for lock 2, and X waits to upgrade lock 1
+        F2ClientEntry clientYWaitsForLock2 = newEntry(clientY, EXCLUSIVE);
+        F2ClientEntry clientXUpgradesLock1 = newEntry(clientX, UPGRADE);
+        lock2.acquire(BLOCKING, clientYWaitsForLock2);
+        lock1.acquire(BLOCKING, clientXUpgradesLock1);
+
+        // Then the upgrade waiting for Y to let go of its shared lock is part of the deadlock
+        DeadlockDescription expectedDeadlock = new DeadlockDescription(
+                clientXUpgradesLock1, clientYWaitsForLock2, clientXUpgradesLock1);
+        DeadlockDescription deadlock = new DeadlockDetector().detectDeadlock(clientX);
+
+        assert deadlock.equals(expectedDeadlock) : String.format("Expected %s, found %s", expectedDeadlock, deadlock);
+    }
+
+    @Test
+    public void testWaiterBlockedByWaiterAheadOfItDeadlock() {
+        F2Lock lock1 = F2Lock_Test.newLock(1);
+        F2Lock lock2 = F2Lock_Test.newLock(2);
+        F2Client clientX = F2Lock_Test.newClient("X");
+        F2Client clientY = F2Lock_Test.newClient("Y");
+        F2Client clientZ = F2Lock_Test.newClient("Z");
+
+        // Given X holds lock 1 shared and upgraded, Z and then Y queue up for it, and Y holds lock 2
+        F2ClientEntry clientXUpgradesLock1 = newEntry(clientX, UPGRADE);
+        lock1.acquire(BLOCKING, newEntry(clientX, SHARED));
+        lock1.acquire(BLOCKING, clientXUpgradesLock1);
+        lock2.acquire(BLOCKING, newEntry(clientY, EXCLUSIVE));
+        F2ClientEntry clientZWaitsForLock1 = newEntry(clientZ, EXCLUSIVE);
+        F2ClientEntry clientYWaitsForLock1 = newEntry(clientY, SHARED);
+        lock1.acquire(BLOCKING, clientZWaitsForLock1);
+        lock1.acquire(BLOCKING, clientYWaitsForLock1);
+
+        // When X lets go of the upgrade, which leaves Y queued behind Z, and X waits for lock 2
+        lock1.release(clientXUpgradesLock1);
+        F2ClientEntry clientXWaitsForLock2 = newEntry(clientX, EXCLUSIVE);
+        lock2.acquire(BLOCKING, clientXWaitsForLock2);
+
+        // Then Y waiting for Z to go first is part of the deadlock, even though Y could share the lock with X
+        DeadlockDescription expectedDeadlock = new DeadlockDescription(
+                clientXWaitsForLock2, clientYWaitsForLock1, clientZWaitsForLock1, clientXWaitsForLock2);
+        DeadlockDescription deadlock = new DeadlockDetector().detectDeadlock(clientX);
+
+        assert deadlock.equals(expectedDeadlock) : String.format("Expected %s, found %s", expectedDeadlock, deadlock);
+    }
+
+    @Test
+    public void testSharedWaiterIsNotBlockedBySharedWaiterAheadOfIt() {
+        F2Lock lock1 = F2Lock_Test.newLock(1);
+        F2Lock lock2 = F2Lock_Test.newLock(2);
+        F2Client clientH = F2Lock_Test.newClient("H");
+        F2Client clientS1 = F2Lock_Test.newClient("S1");
+        F2Client clientS2 = F2Lock_Test.newClient("S2");
+
+        // Given H holds lock 1, S2 holds lock 2, and S1 and then S2 wait to share lock 1
+        lock1.acquire(BLOCKING, newEntry(clientH, EXCLUSIVE));
+        lock2.acquire(BLOCKING, newEntry(clientS2, EXCLUSIVE));
+        F2ClientEntry clientS1WaitsForLock1 = newEntry(clientS1, SHARED);
+        F2ClientEntry clientS2WaitsForLock1 = newEntry(clientS2, SHARED);
+        lock1.acquire(BLOCKING, clientS1WaitsForLock1);
+        lock1.acquire(BLOCKING, clientS2WaitsForLock1);
+
+        // When H waits for lock 2
+        F2ClientEntry clientHWaitsForLock2 = newEntry(clientH, EXCLUSIVE);
+        lock2.acquire(BLOCKING, clientHWaitsForLock2);
+
+        // Then S1 is not part of the deadlock; S1 and S2 would be granted lock 1 together
+        DeadlockDescription deadlock = new DeadlockDetector().detectDeadlock(clientS1);
+        assert deadlock.equals(DeadlockDetector.NONE) : String.format("Expected no deadlock, found %s", deadlock);
+        assert !DeadlockDetector.isStillDeadlocked(new F2ClientEntry[]{
+                clientS1WaitsForLock1, clientHWaitsForLock2, clientS2WaitsForLock1, clientS1WaitsForLock1});
+
+        // And the real deadlock, between H and S2, is found from S2
+        DeadlockDescription expectedDeadlock = new DeadlockDescription(
+                clientS2WaitsForLock1, clientHWaitsForLock2, clientS2WaitsForLock1);
+        deadlock = new DeadlockDetector().detectDeadlock(clientS2);
+        assert deadlock.equals(expectedDeadlock) : String.format("Expected %s, found %s", expectedDeadlock, deadlock);
+    }
+
+    @Test
+    public void testVictimIsChosenByPolicy() {
+        F2Lock lock1 = F2Lock_Test.newLock(1);
+        F2Lock lock2 = F2Lock_Test.newLock(2);
+        F2Client clientX = F2Lock_Test.newClient("X");
+        F2Client clientY = F2Lock_Test.newClient("Y");
+
+        // Given X and Y are deadlocked, X found it, and Y is younger but has a higher priority
+        lock1.acquire(BLOCKING, newEntry(clientX, EXCLUSIVE));
+        lock2.acquire(BLOCKING, newEntry(clientY, EXCLUSIVE));
+        lock1.acquire(BLOCKING, newEntry(clientY, EXCLUSIVE));
+        lock2.acquire(BLOCKING, newEntry(clientX, EXCLUSIVE));
+        clientY.setDeadlockPriority(1);
+        F2ClientEntry[] chain = new DeadlockDetector().findCycle(clientX);
+
+        // Then
+        assert new DeadlockDetector(DeadlockDetectionMode.STOP_THE_WORLD, DeadlockVictimPolicy.DETECTOR).chooseVictim(chain) == clientX;
+        assert new DeadlockDetector(DeadlockDetectionMode.STOP_THE_WORLD, DeadlockVictimPolicy.YOUNGEST).chooseVictim(chain) == clientY;
+        assert new DeadlockDetector(DeadlockDetectionMode.STOP_THE_WORLD, DeadlockVictimPolicy.PRIORITY).chooseVictim(chain) == clientX;
+    }
+
     @Test
     public void testHasHelpfulDeadlockDescription() {
         // Given
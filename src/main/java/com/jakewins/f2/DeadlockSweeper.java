@@ -0,0 +1,280 @@
+package com.jakewins.f2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background deadlock detection for one lock manager, see {@link DeadlockDetectionMode#SWEEPER}.
+ *
+ * Rather than every waiting client walking the wait-for graph on its own, and each of them stopping the world to do
+ * so, one thread periodically stops the world once, takes in the whole wait-for graph between waiting clients, and
+ * finds every cycle in it in a single pass, as the strongly connected components of the graph (Tarjan). One client
+ * in each component is aborted; if that doesn't break every cycle in the component, the next sweep gets the rest.
+ *
+ * An aborted client is taken off its wait list while the world is stopped, and woken via its latch once the world
+ * resumes, at which point it fails with the deadlock from its own wait loop.
+ */
+class DeadlockSweeper implements Runnable {
+    private static final int UNVISITED = -1;
+
+    private final F2Partitions partitions;
+    private final DeadlockDetector deadlockDetector;
+    private final DeadlockVictimPolicy victimPolicy;
+    private final long intervalMillis;
+    private final Thread thread;
+    private volatile boolean stopped = false;
+    private final DeadlockDetector.Search search = new DeadlockDetector.Search();
+
+    // Wait-for graph of the current sweep, between waiting clients only; reused between sweeps.
+    // Clients are numbered 0..numNodes in the order we found them; edges of node n are in
+    // edges[edgeStart[n]..edgeStart[n+1]].
+    private F2Client[] nodes = new F2Client[64];
+    private int numNodes;
+    private int[] edgeStart = new int[65];
+    private int[] edges = new int[64];
+    private int numEdges;
+    /** Node number by client slot, or UNVISITED if the client in that slot is not waiting */
+    private int[] nodeBySlot = new int[64];
+
+    // Tarjan state, by node number
+    private int[] index = new int[64];
+    private int[] lowLink = new int[64];
+    private boolean[] onStack = new boolean[64];
+    private int[] nextEdge = new int[64];
+    private int[] sccStack = new int[64];
+    private int[] callStack = new int[64];
+
+    DeadlockSweeper(F2Partitions partitions, DeadlockDetector deadlockDetector, long intervalMillis) {
+        this.partitions = partitions;
+        this.deadlockDetector = deadlockDetector;
+        this.victimPolicy = deadlockDetector.victimPolicy();
+        this.intervalMillis = intervalMillis;
+        this.thread = new Thread(this, "f2-deadlock-sweeper");
+        this.thread.setDaemon(true);
+        Arrays.fill(nodeBySlot, UNVISITED);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void stop() {
+        stopped = true;
+        thread.interrupt();
+    }
+
+    @Override
+    public void run() {
+        while(!stopped) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            try {
+                sweep();
+            } catch(RuntimeException e) {
+                // Leave it to the next sweep; we must not die, or deadlocks will go unnoticed for good
+            }
+        }
+    }
+
+    /**
+     * Find and abort deadlocked clients.
+     * @return the number of clients aborted
+     */
+    int sweep() {
+        if(!anyoneWaiting()) {
+            return 0;
+        }
+
+        List<F2Client> victims = new ArrayList<>();
+        partitions.stopTheWorld();
+        try {
+            buildWaitForGraph();
+            findVictims(victims);
+            for(int i = 0; i < victims.size(); i++) {
+                F2Client victim = victims.get(i);
+                DeadlockDescription description = deadlockDetector.detectDeadlock(victim, search);
+                if(description == DeadlockDetector.NONE) {
+                    // Aborting an earlier victim broke this cycle as well
+                    victims.remove(i--);
+                    continue;
+                }
+                // The victim wakes whoever gets its lock now itself; it's parked, and takes the partition lock
+                // before touching its pending wakeups otherwise
+                victim.abortWaiting(new Deadlock(description), victim);
+            }
+        } finally {
+            clearWaitForGraph();
+            partitions.resumeTheWorld();
+        }
+
+        for(F2Client victim : victims) {
+            victim.latch.release();
+        }
+        return victims.size();
+    }
+
+    /** Quick look, without locking anything, to save stopping the world when nobody is waiting */
+    private boolean anyoneWaiting() {
+        F2ClientSlots clientSlots = partitions.clientSlots();
+        for(int slot = 0; slot < clientSlots.numSlots(); slot++) {
+            F2Client client = clientSlots.client(slot);
+            if(client != null && client.waitsFor != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** NOTE: Must hold stop-the-world lock */
+    private void buildWaitForGraph() {
+        F2ClientSlots clientSlots = partitions.clientSlots();
+        int numSlots = clientSlots.numSlots();
+        if(nodeBySlot.length < numSlots) {
+            int oldLength = nodeBySlot.length;
+            nodeBySlot = Arrays.copyOf(nodeBySlot, numSlots);
+            Arrays.fill(nodeBySlot, oldLength, numSlots, UNVISITED);
+        }
+
+        numNodes = 0;
+        for(int slot = 0; slot < numSlots; slot++) {
+            F2Client client = clientSlots.client(slot);
+            if(client != null && client.waitsFor != null) {
+                if(numNodes == nodes.length) {
+                    growNodes();
+                }
+                nodeBySlot[slot] = numNodes;
+                nodes[numNodes++] = client;
+            }
+        }
+
+        // The holders of the lock a client waits for, and the waiter ahead of it it can't be granted together with,
+        // are what it waits for; same edges as the DeadlockDetector
+        numEdges = 0;
+        for(int node = 0; node < numNodes; node++) {
+            edgeStart[node] = numEdges;
+            F2ClientEntry waitsFor = nodes[node].waitsFor;
+            F2Lock lock = waitsFor.lock;
+            if(lock.exclusiveHolder != null) {
+                addEdge(lock.exclusiveHolder.owner);
+            }
+            F2ClientEntry ahead = DeadlockDetector.blockingWaiterAhead(waitsFor);
+            if(ahead != null) {
+                addEdge(ahead.owner);
+            }
+            if(waitsFor.lockMode != LockMode.SHARED) {
+                for(int slot = lock.nextSharedHolder(0); slot != -1; slot = lock.nextSharedHolder(slot + 1)) {
+                    if(slot != nodes[node].slot()) {
+                        addEdge(clientSlots.client(slot));
+                    }
+                }
+            }
+        }
+        edgeStart[numNodes] = numEdges;
+    }
+
+    private void addEdge(F2Client holder) {
+        int target = holder.slot() < nodeBySlot.length ? nodeBySlot[holder.slot()] : UNVISITED;
+        if(target == UNVISITED) {
+            // Holders that aren't waiting can't be part of a cycle
+            return;
+        }
+        if(numEdges == edges.length) {
+            edges = Arrays.copyOf(edges, edges.length * 2);
+        }
+        edges[numEdges++] = target;
+    }
+
+    private void clearWaitForGraph() {
+        for(int node = 0; node < numNodes; node++) {
+            nodeBySlot[nodes[node].slot()] = UNVISITED;
+            nodes[node] = null;
+        }
+        numNodes = 0;
+    }
+
+    /**
+     * Tarjan's strongly connected components, with explicit stacks rather than recursion; every component with more
+     * than one client in it has at least one cycle through each of its clients, so any of them will do as a victim,
+     * and we take the cheapest by the {@link DeadlockVictimPolicy}.
+     */
+    private void findVictims(List<F2Client> victims) {
+        Arrays.fill(index, 0, numNodes, UNVISITED);
+        Arrays.fill(onStack, 0, numNodes, false);
+
+        int nextIndex = 0;
+        int sccTop = 0;
+        for(int root = 0; root < numNodes; root++) {
+            if(index[root] != UNVISITED) {
+                continue;
+            }
+
+            int callTop = 0;
+            callStack[callTop++] = root;
+            index[root] = lowLink[root] = nextIndex++;
+            nextEdge[root] = edgeStart[root];
+            sccStack[sccTop++] = root;
+            onStack[root] = true;
+
+            while(callTop > 0) {
+                int node = callStack[callTop - 1];
+                if(nextEdge[node] < edgeStart[node + 1]) {
+                    int target = edges[nextEdge[node]++];
+                    if(index[target] == UNVISITED) {
+                        index[target] = lowLink[target] = nextIndex++;
+                        nextEdge[target] = edgeStart[target];
+                        sccStack[sccTop++] = target;
+                        onStack[target] = true;
+                        callStack[callTop++] = target;
+                    } else if(onStack[target]) {
+                        lowLink[node] = Math.min(lowLink[node], index[target]);
+                    }
+                    continue;
+                }
+
+                // Done with all of node's edges
+                callTop--;
+                if(callTop > 0) {
+                    int parent = callStack[callTop - 1];
+                    lowLink[parent] = Math.min(lowLink[parent], lowLink[node]);
+                }
+                if(lowLink[node] == index[node]) {
+                    int size = 0;
+                    int member;
+                    F2Client victim = null;
+                    long victimCost = Long.MAX_VALUE;
+                    do {
+                        member = sccStack[--sccTop];
+                        onStack[member] = false;
+                        size++;
+                        // Ties go to the client the component was found from, which is popped last
+                        long cost = victimPolicy.cost(nodes[member]);
+                        if(cost <= victimCost) {
+                            victim = nodes[member];
+                            victimCost = cost;
+                        }
+                    } while(member != node);
+                    if(size > 1) {
+                        victims.add(victim);
+                    }
+                }
+            }
+        }
+    }
+
+    private void growNodes() {
+        int length = nodes.length * 2;
+        nodes = Arrays.copyOf(nodes, length);
+        edgeStart = Arrays.copyOf(edgeStart, length + 1);
+        index = Arrays.copyOf(index, length);
+        lowLink = Arrays.copyOf(lowLink, length);
+        onStack = Arrays.copyOf(onStack, length);
+        nextEdge = Arrays.copyOf(nextEdge, length);
+        sccStack = Arrays.copyOf(sccStack, length);
+        callStack = Arrays.copyOf(callStack, length);
+    }
+}
@@ -0,0 +1,131 @@
+package com.jakewins.f2;
+
+import org.junit.Test;
+import org.neo4j.kernel.DeadlockDetectedException;
+import org.neo4j.kernel.impl.locking.LockTracer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.jakewins.f2.DeadlockDetector_Test.NODE;
+
+public class DeadlockSweeper_Test {
+    @Test
+    public void testNothingToDoWhenNobodyWaits() {
+        F2Partitions partitions = new F2Partitions(2, 4);
+        DeadlockDetector detector = new DeadlockDetector(DeadlockDetectionMode.SWEEPER);
+        DeadlockSweeper sweeper = new DeadlockSweeper(partitions, detector, 1000);
+
+        F2Client client = new F2Client(2, partitions, detector);
+        client.acquireExclusive(LockTracer.NONE, NODE, 1);
+
+        assert sweeper.sweep() == 0;
+        client.close();
+    }
+
+    @Test
+    public void testAbortsOneClientInEachCycleInOneSweep() throws InterruptedException {
+        F2Partitions partitions = new F2Partitions(2, 4);
+        DeadlockDetector detector = new DeadlockDetector(DeadlockDetectionMode.SWEEPER);
+        DeadlockSweeper sweeper = new DeadlockSweeper(partitions, detector, 1000);
+        AtomicInteger deadlocks = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+
+        // Given two separate cycles: 1 <-> 2 and 3 -> 4 -> 5 -> 3
+        threads.addAll(cycle(partitions, detector, deadlocks, 1, 2));
+        threads.addAll(cycle(partitions, detector, deadlocks, 3, 4, 5));
+        for(Thread thread : threads) {
+            while(!F2Client_Test.isWaitingForLock(thread)) {
+                Thread.yield();
+            }
+        }
+
+        // When the sweeper runs, then it breaks both cycles at once
+        assert sweeper.sweep() == 2;
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        assert deadlocks.get() == 2 : "Expected two victims, got " + deadlocks.get();
+
+        // And everyone is done waiting
+        assert sweeper.sweep() == 0;
+    }
+
+    @Test
+    public void testAbortsClientOnTheCycleRatherThanSharedWaiterBehindIt() throws InterruptedException {
+        F2Partitions partitions = new F2Partitions(2, 4);
+        DeadlockDetector detector = new DeadlockDetector(DeadlockDetectionMode.SWEEPER, DeadlockVictimPolicy.FEWEST_LOCKS);
+        DeadlockSweeper sweeper = new DeadlockSweeper(partitions, detector, 1000);
+        F2Client clientH = new F2Client(2, partitions, detector);
+        F2Client clientS1 = new F2Client(2, partitions, detector);
+        F2Client clientS2 = new F2Client(2, partitions, detector);
+        AtomicInteger deadlocks = new AtomicInteger();
+        boolean[] clientS1Deadlocked = new boolean[1];
+
+        // Given H holds 1, S2 holds 2, S1 and then S2 wait to share 1, and H waits for 2; S1, which holds nothing,
+        // is the cheapest victim, but it's only waiting for the H <-> S2 cycle to be broken
+        clientH.acquireExclusive(LockTracer.NONE, NODE, 1);
+        clientS2.acquireExclusive(LockTracer.NONE, NODE, 2);
+        List<Thread> threads = new ArrayList<>();
+        threads.add(waitFor(clientS1, () -> clientS1.acquireShared(LockTracer.NONE, NODE, 1), () -> clientS1Deadlocked[0] = true));
+        threads.add(waitFor(clientS2, () -> clientS2.acquireShared(LockTracer.NONE, NODE, 1), deadlocks::incrementAndGet));
+        threads.add(waitFor(clientH, () -> clientH.acquireExclusive(LockTracer.NONE, NODE, 2), deadlocks::incrementAndGet));
+
+        // When the sweeper runs, then it aborts one of H and S2, and S1 gets its lock once they're done
+        assert sweeper.sweep() == 1;
+        for(Thread thread : threads) {
+            thread.join(10_000);
+            assert !thread.isAlive() : "The cycle between H and S2 was left in place";
+        }
+        assert !clientS1Deadlocked[0] : "S1 is not on the cycle, and should not have been aborted";
+        assert deadlocks.get() == 1 : "Expected one victim, got " + deadlocks.get();
+    }
+
+    /** Start a thread that has the client wait for a lock, then close it, and wait until it's parked */
+    private static Thread waitFor(F2Client client, Runnable acquire, Runnable onDeadlock) {
+        Thread thread = new Thread(() -> {
+            try {
+                acquire.run();
+            } catch(DeadlockDetectedException e) {
+                onDeadlock.run();
+            } finally {
+                client.close();
+            }
+        });
+        thread.start();
+        while(!F2Client_Test.isWaitingForLock(thread)) {
+            Thread.yield();
+        }
+        return thread;
+    }
+
+    /**
+     * Have one client per resource grab its resource, and then each wait for the resource of the next client
+     */
+    private static List<Thread> cycle(F2Partitions partitions, DeadlockDetector detector, AtomicInteger deadlocks, long ... resourceIds) {
+        F2Client[] clients = new F2Client[resourceIds.length];
+        for(int i = 0; i < resourceIds.length; i++) {
+            clients[i] = new F2Client(2, partitions, detector);
+            clients[i].acquireExclusive(LockTracer.NONE, NODE, resourceIds[i]);
+        }
+
+        List<Thread> threads = new ArrayList<>();
+        for(int i = 0; i < resourceIds.length; i++) {
+            F2Client client = clients[i];
+            long next = resourceIds[(i + 1) % resourceIds.length];
+            Thread thread = new Thread(() -> {
+                try {
+                    client.acquireExclusive(LockTracer.NONE, NODE, next);
+                } catch(DeadlockDetectedException e) {
+                    deadlocks.incrementAndGet();
+                } finally {
+                    client.close();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        return threads;
+    }
+}
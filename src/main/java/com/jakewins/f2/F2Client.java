@@ -2,14 +2,19 @@ package com.jakewins.f2;
 
 import com.jakewins.f2.F2Lock.AcquireOutcome;
 
+import java.time.Clock;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Stream;
 
 import com.jakewins.f2.infrastructure.SingleWaiterLatch;
+import com.jakewins.f2.infrastructure.TimingWheel;
 import org.neo4j.kernel.DeadlockDetectedException;
+import org.neo4j.kernel.api.exceptions.Status;
 import org.neo4j.kernel.impl.locking.ActiveLock;
+import org.neo4j.kernel.impl.locking.LockClientStoppedException;
 import org.neo4j.kernel.impl.locking.LockTracer;
 import org.neo4j.kernel.impl.locking.Locks;
 import org.neo4j.storageengine.api.lock.AcquireLockTimeoutException;
@@ -18,17 +23,20 @@ import org.neo4j.storageengine.api.lock.ResourceType;
 class ClientAcquireOutcome {
     final static ClientAcquireOutcome ACQUIRED = new ClientAcquireOutcome();
     final static ClientAcquireOutcome NOT_ACQUIRED = new ClientAcquireOutcome();
+    /** The client was stopped while waiting, see {@link F2Client#stop()} */
+    final static ClientAcquireOutcome STOPPED = new ClientAcquireOutcome();
 }
 
 class Deadlock extends ClientAcquireOutcome {
-    private final String description;
+    private final DeadlockDescription description;
 
-    Deadlock(String description) {
+    Deadlock(DeadlockDescription description) {
         this.description = description;
     }
 
+    /** Rendered only when asked for, so it's not done while the world is stopped */
     String deadlockDescription() {
-        return description;
+        return description.toString();
     }
 }
 
@@ -48,53 +56,153 @@ class ClientAcquireError extends ClientAcquireOutcome {
 }
 
 class F2Client implements Locks.Client {
-    private static final int CHECK_DEADLOCK_AFTER_MS = 1000;
+    static final int CHECK_DEADLOCK_AFTER_MS = 1000;
+    /** Clients that held more locks than this when closed aren't pooled, see {@link #close()} */
+    private static final int MAX_POOLED_LOCK_COUNT = 1024;
+    /** Outcome of looking for deadlock where we found one, and broke it by aborting another client */
+    private static final Deadlock ABORTED_SOMEONE_ELSE = new Deadlock(DeadlockDetector.NONE);
     private static AtomicInteger ID_GEN = new AtomicInteger();
-
     /** Signal when client is granted a lock it is waiting on */
     SingleWaiterLatch latch = new SingleWaiterLatch();
 
+    /**
+     * Expires {@link #latch} when we've waited long enough to look for deadlocks, or to give up on the lock, see
+     * {@link F2Partitions#deadlines()}
+     */
+    private final TimingWheel.Timer deadline = new TimingWheel.Timer() {
+        @Override
+        protected void expired() {
+            latch.expire();
+        }
+    };
+
     /**
      * Lock entry this client is currently waiting on, or null; this is set by the lock when we're added to
      * wait list, cleared when someone grants us the lock.
      *
-     * NOTE: Must hold partition lock of the entry to write to this
+     * NOTE: Must hold partition lock of the entry, or partition read lock plus latch of the lock, to write to this
      */
     F2ClientEntry waitsFor;
 
+    /**
+     * Set when we're put on a wait list behind a holder that is itself waiting, in which case we may have just
+     * closed a wait-for cycle, and we look for one right away rather than after {@link #CHECK_DEADLOCK_AFTER_MS},
+     * see {@link #probeForDeadlock()}. If we're queued behind holders that are not waiting, anyone closing a cycle
+     * through us will have to wait on one of them later, and they'll do the check instead.
+     *
+     * Two clients closing a cycle at the same moment may each look before the other is on its wait list, and both
+     * miss it; that deadlock is only found by the timed check, {@link #CHECK_DEADLOCK_AFTER_MS} later.
+     *
+     * NOTE: Written under the partition lock of the lock we're put on the wait list for
+     */
+    boolean blockedByWaiter;
+
+    /**
+     * Set when we're put on a wait list where waiting is sure to deadlock, see {@link F2Lock#handleAcquireFailed};
+     * we take ourselves back off the wait list and fail right away.
+     *
+     * NOTE: Written under the partition lock of the lock we're put on the wait list for
+     */
+    DeadlockDescription deadlockedOnEnqueue;
+
+    /**
+     * Set by a {@link DeadlockSweeper}, or another client, that found us in a deadlock, picked us as the victim, and
+     * already took us off the wait list; we fail with it once they wake us up.
+     *
+     * NOTE: Written under the partition lock of the lock we're waiting for
+     */
+    private Deadlock abortedWith;
+
+    /** See {@link DeadlockVictimPolicy#PRIORITY} */
+    private volatile int deadlockPriority = 0;
+
+    /** Orders clients by age, see {@link DeadlockDetectionMode#WAIT_DIE}; lower is older */
+    private long timestamp = 0;
+
+    /**
+     * Set once an older client wants us out of the way, see {@link #wound}; we fail the wait we're in, if any, and
+     * every wait from then on.
+     */
+    private final AtomicReference<Deadlock> woundedWith = new AtomicReference<>();
+
+    /** Set once the transaction we belong to is terminated, see {@link #stop()}; we fail every acquire from then on */
+    private volatile boolean stopped = false;
+
+    /** How long a single acquire may wait before it fails, see {@link #setAcquisitionTimeout}; 0 waits forever */
+    private long acquisitionTimeoutMillis = 0;
+    private Clock clock = Clock.systemUTC();
+
+    /**
+     * Clients we've granted a lock to while releasing, and that we still need to wake up; we wake them once we've
+     * let go of the partition lock, so the unpark calls stay out of the critical section, and so the woken clients
+     * don't immediately pile up on a partition lock we still hold.
+     *
+     * NOTE: Written under the partition lock, or lock latch, by whoever releases on our behalf
+     */
+    private F2Client[] pendingWakeups = new F2Client[4];
+    private int numPendingWakeups = 0;
+
     private int clientId = ID_GEN.incrementAndGet();
+
+    /** Set once closed, until we're handed out again, see {@link F2ClientPool} */
+    private boolean closed = false;
+
+    /** See {@link F2ClientSlots}; -1 once closed */
+    private int slot;
     private String name;
 
+    /** Entry kept around for the idle lock cache, which can't use the partition freelist without the partition write lock */
+    private F2ClientEntry spareEntry;
+
     private final F2Partitions partitions;
     private final DeadlockDetector deadlockDetector;
     private final F2ClientLocks heldLocks;
+    /** Where we go once closed, to be handed out again; null if we're simply dropped */
+    private final F2ClientPool pool;
+
+    /** Scratch space for looking for deadlocks; only allocated once we've had to wait long enough to look */
+    private DeadlockDetector.Search deadlockSearch;
+
+    /** The order we acquire resources in, if we've been picked for {@link LockOrderAnalyzer} sampling; otherwise null */
+    private LockOrderAnalyzer.Recording lockOrder;
 
     F2Client(int numResourceTypes, F2Partitions partitions, DeadlockDetector deadlockDetector) {
+        this(numResourceTypes, partitions, deadlockDetector, null);
+    }
+
+    F2Client(int numResourceTypes, F2Partitions partitions, DeadlockDetector deadlockDetector, F2ClientPool pool) {
         this.partitions = partitions;
         this.deadlockDetector = deadlockDetector;
         this.heldLocks = new F2ClientLocks(numResourceTypes);
+        this.pool = pool;
+        this.slot = partitions.clientSlots().allocate(this);
     }
 
     @Override
     public void acquireShared(LockTracer lockTracer, ResourceType resourceType, long... resourceIds) throws AcquireLockTimeoutException {
-        for(long resourceId : resourceIds) {
-            ClientAcquireOutcome outcome = acquire(AcquireMode.BLOCKING, LockMode.SHARED, resourceType, resourceId);
-            handleAcquireOutcome(outcome);
+        if(resourceIds.length == 1) {
+            handleAcquireOutcome(acquire(AcquireMode.BLOCKING, LockMode.SHARED, resourceType, resourceIds[0]));
+        } else {
+            acquireBatch(LockMode.SHARED, resourceType, resourceIds);
         }
     }
 
     @Override
     public void acquireExclusive(LockTracer lockTracer, ResourceType resourceType, long... resourceIds) throws AcquireLockTimeoutException {
-        for(long resourceId : resourceIds) {
-            ClientAcquireOutcome outcome = acquire(AcquireMode.BLOCKING, LockMode.EXCLUSIVE, resourceType, resourceId);
-            handleAcquireOutcome(outcome);
+        if(resourceIds.length == 1) {
+            handleAcquireOutcome(acquire(AcquireMode.BLOCKING, LockMode.EXCLUSIVE, resourceType, resourceIds[0]));
+        } else {
+            acquireBatch(LockMode.EXCLUSIVE, resourceType, resourceIds);
         }
     }
 
-    private static void handleAcquireOutcome(ClientAcquireOutcome outcome) {
+    private void handleAcquireOutcome(ClientAcquireOutcome outcome) {
         if(outcome == ClientAcquireOutcome.ACQUIRED || outcome == ClientAcquireOutcome.NOT_ACQUIRED) {
             return;
         }
+        if(outcome == ClientAcquireOutcome.STOPPED) {
+            throw new LockClientStoppedException(this);
+        }
         if(outcome instanceof Deadlock) {
             throw new DeadlockDetectedException(((Deadlock) outcome).deadlockDescription());
         }
@@ -113,6 +221,16 @@ class F2Client implements Locks.Client {
         release(LockMode.EXCLUSIVE, resourceType, resourceId);
     }
 
+    /** Batched counterpart to {@link #acquireShared(LockTracer, ResourceType, long...)} */
+    public void releaseShared(ResourceType resourceType, long... resourceIds) {
+        releaseBatch(LockMode.SHARED, resourceType, resourceIds);
+    }
+
+    /** Batched counterpart to {@link #acquireExclusive(LockTracer, ResourceType, long...)} */
+    public void releaseExclusive(ResourceType resourceType, long... resourceIds) {
+        releaseBatch(LockMode.EXCLUSIVE, resourceType, resourceIds);
+    }
+
     @Override
     public boolean trySharedLock(ResourceType resourceType, long resourceId) {
         return acquire(AcquireMode.NONBLOCKING, LockMode.SHARED, resourceType, resourceId) == ClientAcquireOutcome.ACQUIRED;
@@ -135,6 +253,12 @@ class F2Client implements Locks.Client {
 
     @Override
     public void close() {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        boolean heldFewLocks = heldLocks.activeLockCount() <= MAX_POOLED_LOCK_COUNT;
+
         // Step 1: Group locks by partition, so we can release in each partition in bulk
         List<F2ClientEntry>[] heldByPartition = new List[partitions.numberOfPartitions()];
         heldLocks.releaseAll(partitions, heldByPartition);
@@ -150,12 +274,61 @@ class F2Client implements Locks.Client {
             partition.lock();
             try {
                 for (F2ClientEntry entry : entries) {
-                    release_partitionLockHeld(partition, entry);
+                    if(tryReleaseReaderBiased(entry)) {
+                        releaseClientEntry(partition, entry);
+                    } else {
+                        release_partitionLockHeld(partition, entry);
+                    }
                 }
             } finally {
                 partition.unlock();
+                wakePendingWakeups();
             }
         }
+
+        // Step 3: Release whatever we hold through compact entries, see F2ClientLocks
+        heldLocks.releaseAllCompact(this::releaseCompact);
+
+        lockOrder = null;
+
+        // Step 4: We hold nothing anymore; go back to the pool with our slot, unless our local lock table grew so
+        // big that it's better off garbage collected
+        if(pool != null && heldFewLocks && pool.offer(this)) {
+            return;
+        }
+        freeSlot();
+    }
+
+    /**
+     * Get ready to be handed out again after being pooled; we were closed, so we hold and wait for nothing, and
+     * nobody is going to wake, wound or stop us for anything that happened before.
+     */
+    void reopen() {
+        assert closed && waitsFor == null && abortedWith == null && numPendingWakeups == 0 : String.format("Reopening %s, which is still in use", this);
+        closed = false;
+        clientId = ID_GEN.incrementAndGet();
+        stopped = false;
+        woundedWith.set(null);
+        deadlockPriority = 0;
+        blockedByWaiter = false;
+        deadlockedOnEnqueue = null;
+        latch.reset();
+    }
+
+    /** Nobody will be looking us up by slot once we're closed and not pooled */
+    void freeSlot() {
+        if(slot != -1) {
+            partitions.clientSlots().free(slot);
+            slot = -1;
+        }
+    }
+
+    int slot() {
+        return slot;
+    }
+
+    F2Partitions partitions() {
+        return partitions;
     }
 
     @Override
@@ -186,16 +359,85 @@ class F2Client implements Locks.Client {
         this.name = name;
     }
 
-    // TODO
+    long timestamp() {
+        return timestamp;
+    }
+
+    void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Fail any acquire that has waited longer than the given timeout, as told by the given clock, with
+     * {@link AcquireLockTimeoutException}; 0 to wait as long as it takes.
+     */
+    void setAcquisitionTimeout(Clock clock, long timeoutMillis) {
+        this.clock = clock;
+        this.acquisitionTimeoutMillis = timeoutMillis;
+    }
+
+    boolean avoidsDeadlocks() {
+        return deadlockDetector != null && deadlockDetector.mode().avoidsDeadlocks();
+    }
+
+    DeadlockDetectionMode deadlockDetectionMode() {
+        return deadlockDetector.mode();
+    }
+
+    /**
+     * Have this client fail with the given description right away if it's waiting for a lock, or else the next time
+     * it has to wait; see {@link DeadlockDetectionMode#WOUND_WAIT}.
+     *
+     * NOTE: Must hold the partition lock, or latch, of a lock this client holds or waits for
+     */
+    void wound(DeadlockDescription description) {
+        if(woundedWith.compareAndSet(null, new Deadlock(description))) {
+            // If we're not waiting right now, this leaves a permit on the latch; harmless, since we never wait
+            // again without failing
+            latch.release();
+        }
+    }
+
+    void recordLockOrder(LockOrderAnalyzer.Recording recording) {
+        this.lockOrder = recording;
+    }
+
+    int deadlockPriority() {
+        return deadlockPriority;
+    }
+
+    /**
+     * With {@link DeadlockVictimPolicy#PRIORITY}, clients with a lower priority are aborted to break deadlocks before
+     * clients with a higher one; eg. give long-running batch jobs a high priority, so they aren't thrown away to let
+     * short transactions through. Defaults to 0.
+     */
+    public void setDeadlockPriority(int deadlockPriority) {
+        this.deadlockPriority = deadlockPriority;
+    }
+
+    /**
+     * Called from outside, typically by whoever terminates the transaction we belong to. Any acquire we're blocked in
+     * wakes up right away, takes itself off the wait list and fails, as does every acquire after; the locks we hold
+     * stay held until we're closed.
+     */
     @Override
     public void stop() {
-        throw new UnsupportedOperationException("Out-of-band interrupting F2 locks is not yet implemented.");
+        if(stopped) {
+            return;
+        }
+        stopped = true;
+        // If we're not waiting right now, this leaves a permit on the latch; harmless, since we never wait again
+        latch.release();
     }
 
     private ClientAcquireOutcome acquire(AcquireMode acquireMode, LockMode requestedLockMode, ResourceType resourceType, long resourceId) {
-        F2Lock lock;
         F2ClientEntry entry;
         AcquireOutcome outcome;
+        F2Combiner.Request request;
+
+        if(stopped) {
+            throw new LockClientStoppedException(this);
+        }
 
         // If we already hold this lock, no need to globally synchronize
         LockMode lockMode = heldLocks.tryLocalAcquire(resourceType, resourceId, requestedLockMode);
@@ -205,47 +447,288 @@ class F2Client implements Locks.Client {
 
         // We don't hold this lock already, go to work on the relevant partition
         F2Partition partition = partitions.getPartition(resourceId);
-        partition.lock();
-        try {
-            entry = partition.newClientEntry(this, lockMode, resourceType, resourceId);
+        F2ReaderBias readerBias = partitions.readerBias(resourceType, resourceId);
+        if(readerBias != null) {
+            return acquireReaderBiased(partition, readerBias, acquireMode, lockMode, resourceType, resourceId);
+        }
+
+        if(heldLocks.isCompact() && lockMode != LockMode.UPGRADE && tryAcquireCompact(partition, lockMode, resourceType, resourceId)) {
+            return ClientAcquireOutcome.ACQUIRED;
+        }
 
-            lock = partition.getOrCreateLock(resourceType, resourceId);
+        if(lockMode == LockMode.EXCLUSIVE && partitions.usesIdleLockCache() && tryAcquireIdleExclusive(partition, resourceType, resourceId)) {
+            return ClientAcquireOutcome.ACQUIRED;
+        }
 
-            outcome = lock.acquire(acquireMode, entry);
+        if(partitions.engineMode() == EngineMode.TWO_LEVEL) {
+            entry = takeSpareEntry(lockMode, resourceType, resourceId);
+            outcome = partition.tryAcquireLatched(acquireMode, entry);
+            if(outcome == null) {
+                // There's no full lock for this resource, so we need to modify the lock table
+                partition.lock();
+                try {
+                    outcome = partition.acquire(acquireMode, entry);
+                } finally {
+                    partition.unlock();
+                }
+            }
 
             if (outcome == AcquireOutcome.NOT_ACQUIRED) {
+                recycleSpareEntry(entry);
+                return ClientAcquireOutcome.NOT_ACQUIRED;
+            }
+        } else if(partition.combiner() != null && (request = partition.combiner().claim(clientId)) != null) {
+            partition.combiner().acquire(request, this, acquireMode, lockMode, resourceType, resourceId);
+            entry = request.entry;
+            outcome = request.acquireOutcome;
+            request.free();
+
+            if (outcome == AcquireOutcome.NOT_ACQUIRED) {
+                return ClientAcquireOutcome.NOT_ACQUIRED;
+            }
+        } else {
+            partition.lock();
+            try {
+                entry = partition.newClientEntry(this, lockMode, resourceType, resourceId);
+                outcome = partition.acquire(acquireMode, entry);
+
+                if (outcome == AcquireOutcome.NOT_ACQUIRED) {
+                    partition.releaseClientEntry(entry);
+                    return ClientAcquireOutcome.NOT_ACQUIRED;
+                }
+            } finally {
+                partition.unlock();
+            }
+        }
+
+        if (outcome == AcquireOutcome.ACQUIRED) {
+            globallyAcquired(entry);
+            return ClientAcquireOutcome.ACQUIRED;
+        }
+
+        return awaitGrant(partition, entry);
+    }
+
+    /**
+     * Acquire a resource marked hot, see {@link F2ReaderBias}. Shared acquirers try the bias first; everyone else
+     * goes via the partition lock, which is also where the bias is revoked and turned back on. None of the other
+     * shortcuts apply here, since they would let an exclusive holder in without revoking the bias.
+     */
+    private ClientAcquireOutcome acquireReaderBiased(F2Partition partition, F2ReaderBias readerBias, AcquireMode acquireMode, LockMode lockMode, ResourceType resourceType, long resourceId) {
+        if(lockMode == LockMode.SHARED) {
+            F2ClientEntry entry = takeSpareEntry(lockMode, resourceType, resourceId);
+            if(readerBias.tryAcquireShared(entry)) {
+                globallyAcquired(entry);
+                return ClientAcquireOutcome.ACQUIRED;
+            }
+            spareEntry = entry;
+        }
+
+        F2ClientEntry entry;
+        AcquireOutcome outcome;
+        partition.lock();
+        try {
+            if(lockMode != LockMode.SHARED) {
+                readerBias.revoke(partition);
+            }
+
+            entry = partition.newClientEntry(this, lockMode, resourceType, resourceId);
+            outcome = partition.acquire(acquireMode, entry);
+
+            if(outcome == AcquireOutcome.NOT_ACQUIRED) {
                 partition.releaseClientEntry(entry);
                 return ClientAcquireOutcome.NOT_ACQUIRED;
             }
+            if(outcome == AcquireOutcome.ACQUIRED && lockMode == LockMode.SHARED) {
+                readerBias.maybeEnable(partition, entry);
+            }
         } finally {
             partition.unlock();
         }
 
         if (outcome == AcquireOutcome.ACQUIRED) {
-            heldLocks.globallyAcquired(entry);
+            globallyAcquired(entry);
             return ClientAcquireOutcome.ACQUIRED;
         }
 
-        try {
-            assert outcome == AcquireOutcome.MUST_WAIT;
+        return awaitGrant(partition, entry);
+    }
+
+    /**
+     * Acquire many resources, visiting them in the order given by {@link F2Partitions#sortByPartition(long[])}.
+     * Everything that can be granted in a partition is granted under a single hold of the partition lock; if we
+     * need to wait for a resource, we let go of the partition lock, wait, and then carry on from where we were.
+     *
+     * Since every batch visits resources in the same global order, batches can't deadlock one another.
+     */
+    private void acquireBatch(LockMode requestedLockMode, ResourceType resourceType, long[] resourceIds) {
+        if(stopped) {
+            throw new LockClientStoppedException(this);
+        }
+        long[] sorted = partitions.sortByPartition(resourceIds);
+
+        int next = 0;
+        while(next < sorted.length) {
+            F2Partition partition = partitions.getPartition(sorted[next]);
+            int partitionIndex = partitions.partitionIndex(sorted[next]);
+
+            F2ClientEntry mustWaitFor = null;
+            partition.lock();
+            try {
+                for(; next < sorted.length && partitions.partitionIndex(sorted[next]) == partitionIndex; next++) {
+                    long resourceId = sorted[next];
+                    LockMode lockMode = heldLocks.tryLocalAcquire(resourceType, resourceId, requestedLockMode);
+                    if(lockMode == LockMode.NONE) {
+                        continue;
+                    }
+
+                    F2ReaderBias readerBias = partitions.readerBias(resourceType, resourceId);
+                    if(readerBias != null && lockMode != LockMode.SHARED) {
+                        readerBias.revoke(partition);
+                    }
+
+                    if(readerBias == null && lockMode != LockMode.UPGRADE && heldLocks.isCompact()) {
+                        F2ClientEntry holder = heldLocks.compactHolder(lockMode, resourceType);
+                        if(partition.tryAcquireThin(holder, resourceId)) {
+                            heldLocks.compactlyAcquired(holder, resourceId);
+                            continue;
+                        }
+                    }
+
+                    F2ClientEntry entry = partition.newClientEntry(this, lockMode, resourceType, resourceId);
+                    if(partition.acquire(AcquireMode.BLOCKING, entry) == AcquireOutcome.MUST_WAIT) {
+                        mustWaitFor = entry;
+                        next++;
+                        break;
+                    }
+
+                    // Record this right away, the batch may ask for the same resource again
+                    globallyAcquired(entry);
+                }
+            } finally {
+                partition.unlock();
+            }
+
+            if(mustWaitFor != null) {
+                handleAcquireOutcome(awaitGrant(partition, mustWaitFor));
+            }
+        }
+    }
+
+    /**
+     * Release many resources, under a single hold of each partition lock involved.
+     */
+    private void releaseBatch(LockMode lockMode, ResourceType resourceType, long[] resourceIds) {
+        long[] sorted = partitions.sortByPartition(resourceIds);
+
+        int next = 0;
+        while(next < sorted.length) {
+            F2Partition partition = partitions.getPartition(sorted[next]);
+            int partitionIndex = partitions.partitionIndex(sorted[next]);
+
+            partition.lock();
+            try {
+                for(; next < sorted.length && partitions.partitionIndex(sorted[next]) == partitionIndex; next++) {
+                    F2ClientEntry entry = heldLocks.tryLocalRelease(lockMode, resourceType, sorted[next]);
+                    if(entry == null) {
+                        continue;
+                    }
+                    if(entry.compact) {
+                        partition.releaseCompact(entry, sorted[next]);
+                        continue;
+                    }
+                    if(lockOrder != null) {
+                        lockOrder.released(entry);
+                    }
+                    if(tryReleaseReaderBiased(entry)) {
+                        releaseClientEntry(partition, entry);
+                    } else {
+                        release_partitionLockHeld(partition, entry);
+                    }
+                }
+            } finally {
+                partition.unlock();
+                wakePendingWakeups();
+            }
+        }
+    }
 
+    /**
+     * Wait for someone to grant us the lock the given entry is on the wait list for.
+     */
+    private ClientAcquireOutcome awaitGrant(F2Partition partition, F2ClientEntry entry) {
+        try {
             // At this point, we are on the wait list for the lock we want, and we *have* to wait for it.
             // The way this works is that, eventually, someone ahead of us on the wait list will grant us the lock
             // and wake us up via {@link latch}. Until then, we wait; if it takes to long we wake up and check deadlock.
-            for (; ; ) {
-                boolean latchTripped = latch.tryAcquire(CHECK_DEADLOCK_AFTER_MS, TimeUnit.MILLISECONDS);
-                if (latchTripped) {
-                    // Someone told us we got the lock!
-                    assert waitsFor == null: String.format("Should not be marked waiting if lock was granted, %s.waitsFor=%s", this, waitsFor);
-                    heldLocks.globallyAcquired(entry);
-                    return ClientAcquireOutcome.ACQUIRED;
-                } else {
-                    // We timed out; need to do deadlock detection
-                    Deadlock deadlock = detectDeadlock();
-                    if (deadlock != null) {
+            if (deadlockedOnEnqueue != null) {
+                Deadlock deadlock = new Deadlock(deadlockedOnEnqueue);
+                deadlockedOnEnqueue = null;
+                blockedByWaiter = false;
+                cleanUpErrorWhileWaiting(partition, entry);
+                return deadlock;
+            }
+            if (woundedWith.get() != null) {
+                blockedByWaiter = false;
+                cleanUpErrorWhileWaiting(partition, entry);
+                return woundedWith.get();
+            }
+            if (stopped) {
+                blockedByWaiter = false;
+                cleanUpErrorWhileWaiting(partition, entry);
+                return ClientAcquireOutcome.STOPPED;
+            }
+            if (blockedByWaiter) {
+                blockedByWaiter = false;
+                Deadlock deadlock = probeForDeadlock();
+                if (deadlock != null) {
+                    return deadlock;
+                }
+            }
+            long timeoutAt = acquisitionTimeoutMillis > 0 ? clock.millis() + acquisitionTimeoutMillis : Long.MAX_VALUE;
+            scheduleDeadline(timeoutAt);
+            try {
+                for (; ; ) {
+                    boolean latchTripped = latch.acquireUnlessExpired();
+                    if (latchTripped && abortedWith != null) {
+                        // Someone found us in a deadlock, and already took us off the wait list
+                        Deadlock deadlock = abortedWith;
+                        abortedWith = null;
+                        wakePendingWakeups();
                         return deadlock;
+                    } else if (latchTripped && waitsFor != null && stopped) {
+                        // Not a grant; we were stopped while waiting
+                        cleanUpErrorWhileWaiting(partition, entry);
+                        return ClientAcquireOutcome.STOPPED;
+                    } else if (latchTripped && waitsFor != null) {
+                        // Not a grant; an older client wounded us while we were waiting
+                        assert woundedWith.get() != null : String.format("Woken while still waiting, but not wounded: %s.waitsFor=%s", this, waitsFor);
+                        cleanUpErrorWhileWaiting(partition, entry);
+                        return woundedWith.get();
+                    } else if (latchTripped) {
+                        // Someone told us we got the lock!
+                        assert waitsFor == null: String.format("Should not be marked waiting if lock was granted, %s.waitsFor=%s", this, waitsFor);
+                        globallyAcquired(entry);
+                        return ClientAcquireOutcome.ACQUIRED;
+                    } else if (clock.millis() >= timeoutAt) {
+                        // We've waited as long as we're allowed to; if we were granted the lock just now, the
+                        // cleanup lets go of it again. Describe the entry first, the cleanup recycles it.
+                        String message = String.format("%s could not acquire %s lock on %s(%d) within %d ms", this,
+                                entry.lockMode, entry.resourceType.name(), entry.resourceId, acquisitionTimeoutMillis);
+                        cleanUpErrorWhileWaiting(partition, entry);
+                        return new ClientAcquireError(new AcquireLockTimeoutException(message, Status.Transaction.LockAcquisitionTimeout));
+                    } else {
+                        // Our deadline passed; need to do deadlock detection
+                        Deadlock deadlock = detectDeadlock();
+                        if (deadlock != null) {
+                            return deadlock;
+                        }
+                        scheduleDeadline(timeoutAt);
                     }
                 }
+            } finally {
+                partitions.deadlines().cancel(deadline);
+                latch.clearExpired();
             }
         } catch (Throwable e) {
             // Current thread was interrupted while waiting on a lock, not good.
@@ -257,70 +740,409 @@ class F2Client implements Locks.Client {
         }
     }
 
+    /**
+     * Have {@link #latch} expire once it's time to look for deadlocks, or once we hit the given timeout, whichever
+     * comes first. If we don't look for deadlocks and have no timeout, nothing is scheduled; we park until we're
+     * granted the lock, aborted, wounded or stopped, all of which wake us up.
+     */
+    private void scheduleDeadline(long timeoutAt) {
+        long delay = looksForDeadlocks() ? CHECK_DEADLOCK_AFTER_MS : Long.MAX_VALUE;
+        if(timeoutAt != Long.MAX_VALUE) {
+            delay = Math.max(0, Math.min(delay, timeoutAt - clock.millis()));
+        }
+        if(delay == Long.MAX_VALUE) {
+            return;
+        }
+        partitions.deadlines().schedule(deadline, delay, TimeUnit.MILLISECONDS);
+    }
+
     private void release(LockMode lockMode, ResourceType resourceType, long resourceId) {
         // Start by reducing the count of locally held locks; if we're lucky that's all we need
         F2ClientEntry entry = heldLocks.tryLocalRelease(lockMode, resourceType, resourceId);
         if(entry == null) {
             return;
         }
+        if(entry.compact) {
+            F2Partition partition = partitions.getPartition(resourceId);
+            partition.lock();
+            try {
+                partition.releaseCompact(entry, resourceId);
+            } finally {
+                partition.unlock();
+                wakePendingWakeups();
+            }
+            return;
+        }
+        if(lockOrder != null) {
+            lockOrder.released(entry);
+        }
 
         // If we end up here, we've brought our counter of lock re-entrancy to zero, meaning it's time to release the
         // actual lock; hence we lock the relevant partition and go to work.
         F2Partition partition = partitions.getPartition(resourceId);
+        if(tryReleaseReaderBiased(entry)) {
+            recycleSpareEntry(entry);
+            return;
+        }
+
+        if(entry.lockMode == LockMode.EXCLUSIVE && entry.lock != null && partitions.usesIdleLockCache() && partition.tryReleaseToIdle(entry)) {
+            recycleSpareEntry(entry);
+            return;
+        }
+
+        if(partitions.engineMode() == EngineMode.TWO_LEVEL && entry.lock != null) {
+            F2Lock.ReleaseOutcome outcome = partition.releaseLatched(entry);
+            recycleSpareEntry(entry);
+            wakePendingWakeups();
+            if(outcome == F2Lock.ReleaseOutcome.LOCK_IDLE) {
+                partition.lock();
+                try {
+                    partition.removeLockIfIdle(resourceType, resourceId);
+                } finally {
+                    partition.unlock();
+                }
+            }
+            return;
+        }
+
+        F2Combiner.Request request;
+        if(partition.combiner() != null && (request = partition.combiner().claim(clientId)) != null) {
+            partition.combiner().release(request, entry);
+            request.free();
+            wakePendingWakeups();
+            return;
+        }
+
         partition.lock();
         try {
             release_partitionLockHeld(partition, entry);
         } finally {
             partition.unlock();
+            wakePendingWakeups();
         }
     }
 
-    private void release_partitionLockHeld(F2Partition partition, F2ClientEntry entry) {
-        ResourceType resourceType = entry.resourceType;
-        long resourceId = entry.resourceId;
+    /**
+     * Queue up a client we've granted a lock to, to be woken by {@link #wakePendingWakeups()}.
+     *
+     * NOTE: Must hold the partition lock, or lock latch, of the lock granted
+     */
+    void deferWakeup(F2Client granted) {
+        if(numPendingWakeups == pendingWakeups.length) {
+            F2Client[] grown = new F2Client[pendingWakeups.length * 2];
+            System.arraycopy(pendingWakeups, 0, grown, 0, pendingWakeups.length);
+            pendingWakeups = grown;
+        }
+        pendingWakeups[numPendingWakeups++] = granted;
+    }
 
-        F2Lock.ReleaseOutcome outcome = entry.lock.release(entry);
-        partition.releaseClientEntry(entry);
+    /**
+     * Wake everyone we granted a lock to; called once we're out of the partition lock the grants happened under.
+     */
+    void wakePendingWakeups() {
+        for(int i = 0; i < numPendingWakeups; i++) {
+            pendingWakeups[i].latch.release();
+            pendingWakeups[i] = null;
+        }
+        numPendingWakeups = 0;
+    }
 
+    private void globallyAcquired(F2ClientEntry entry) {
+        heldLocks.globallyAcquired(entry);
+        if(lockOrder != null) {
+            lockOrder.acquired(entry);
+        }
+    }
 
-        if(outcome == F2Lock.ReleaseOutcome.LOCK_HELD) {
-            return;
+    /**
+     * @return true if the entry held its lock via {@link F2ReaderBias}, and has now let go of it
+     */
+    private boolean tryReleaseReaderBiased(F2ClientEntry entry) {
+        if(entry.lockMode != LockMode.SHARED) {
+            return false;
         }
+        F2ReaderBias readerBias = partitions.readerBias(entry.resourceType, entry.resourceId);
+        return readerBias != null && readerBias.tryRelease(entry);
+    }
 
-        // If the lock is idle (eg. there are no holders and no waiters) then its our job to remove it
-        // from the lock table.
-        assert outcome == F2Lock.ReleaseOutcome.LOCK_IDLE : "Lock idle is only allowed state here.";
-        partition.removeLock(resourceType, resourceId);
+    /**
+     * Thin lock the resource through one of our compact entries, see {@link F2ClientLocks}; this only works if
+     * nobody else holds or waits for it, otherwise the caller carries on with an entry of its own.
+     *
+     * Lock order isn't recorded for these, see {@link LockOrderAnalyzer}; it only keeps track of the first few
+     * resources a client holds anyway.
+     */
+    private boolean tryAcquireCompact(F2Partition partition, LockMode lockMode, ResourceType resourceType, long resourceId) {
+        F2ClientEntry holder = heldLocks.compactHolder(lockMode, resourceType);
+        partition.lock();
+        try {
+            if(!partition.tryAcquireThin(holder, resourceId)) {
+                return false;
+            }
+        } finally {
+            partition.unlock();
+        }
+        heldLocks.compactlyAcquired(holder, resourceId);
+        return true;
+    }
+
+    /**
+     * Release resources held through the given compact entry, under a single hold of each partition lock involved.
+     */
+    private void releaseCompact(F2ClientEntry holder, long[] resourceIds) {
+        long[] sorted = partitions.sortByPartition(resourceIds);
+
+        int next = 0;
+        while(next < sorted.length) {
+            F2Partition partition = partitions.getPartition(sorted[next]);
+            int partitionIndex = partitions.partitionIndex(sorted[next]);
+
+            partition.lock();
+            try {
+                for(; next < sorted.length && partitions.partitionIndex(sorted[next]) == partitionIndex; next++) {
+                    partition.releaseCompact(holder, sorted[next]);
+                }
+            } finally {
+                partition.unlock();
+                wakePendingWakeups();
+            }
+        }
+    }
+
+    private boolean tryAcquireIdleExclusive(F2Partition partition, ResourceType resourceType, long resourceId) {
+        F2ClientEntry entry = takeSpareEntry(LockMode.EXCLUSIVE, resourceType, resourceId);
+
+        if(!partition.tryAcquireIdleExclusive(entry)) {
+            // Hang on to the entry; odds are we'll try the idle lock cache again soon
+            spareEntry = entry;
+            return false;
+        }
+
+        globallyAcquired(entry);
+        return true;
+    }
+
+    private F2ClientEntry takeSpareEntry(LockMode lockMode, ResourceType resourceType, long resourceId) {
+        F2ClientEntry entry = spareEntry != null ? spareEntry : new F2ClientEntry();
+        spareEntry = null;
+        entry.owner = this;
+        entry.lockMode = lockMode;
+        entry.resourceType = resourceType;
+        entry.resourceId = resourceId;
+        return entry;
+    }
+
+    /**
+     * Entries go back to the partition freelist, unless we're in {@link EngineMode#TWO_LEVEL}, where entries are
+     * mostly handed out without the partition write lock, so the partition freelist would only ever grow.
+     *
+     * NOTE: Must hold partition lock
+     */
+    private void releaseClientEntry(F2Partition partition, F2ClientEntry entry) {
+        if(partitions.engineMode() == EngineMode.TWO_LEVEL) {
+            recycleSpareEntry(entry);
+        } else {
+            partition.releaseClientEntry(entry);
+        }
+    }
+
+    private void recycleSpareEntry(F2ClientEntry entry) {
+        entry.lock = null;
+        entry.next = null;
+        entry.ownerNext = null;
+        entry.reentrancyCounter = 0;
+        spareEntry = entry;
+    }
+
+    /**
+     * NOTE: Must hold partition lock
+     */
+    private void release_partitionLockHeld(F2Partition partition, F2ClientEntry entry) {
+        partition.release(entry);
+        releaseClientEntry(partition, entry);
+    }
+
+    /**
+     * @return false if waiters never look for deadlocks themselves: the sweeper does it for everyone, or deadlocks are
+     *         avoided so there are none to find
+     */
+    private boolean looksForDeadlocks() {
+        DeadlockDetectionMode mode = deadlockDetector.mode();
+        return mode != DeadlockDetectionMode.SWEEPER && !mode.avoidsDeadlocks();
     }
 
     private Deadlock detectDeadlock() {
-        partitions.stopTheWorld();
+        if(!looksForDeadlocks()) {
+            return null;
+        }
+        // Aborting someone else breaks the cycle we found, but we may be on others as well
+        Deadlock deadlock;
+        do {
+            if(deadlockDetector.mode() == DeadlockDetectionMode.OPTIMISTIC) {
+                deadlock = detectDeadlockOptimistically();
+            } else {
+                deadlock = detectDeadlockStoppingTheWorld();
+            }
+        } while(deadlock == ABORTED_SOMEONE_ELSE);
+        return deadlock;
+    }
+
+    /**
+     * Look for a deadlock we may just have closed by queueing up behind a waiter, see {@link #blockedByWaiter}. That
+     * happens on every link of an ordinary contention chain, not just in deadlocks, so the walk itself stops nothing;
+     * the partitions are only frozen, the way {@link #detectDeadlock()} does it, once the walk found a cycle to
+     * confirm and break. If the graph changed under the walk in a way it couldn't make sense of, we leave it to the
+     * timed check.
+     */
+    private Deadlock probeForDeadlock() {
+        if(!looksForDeadlocks()) {
+            return null;
+        }
+        if(deadlockDetector.mode() == DeadlockDetectionMode.OPTIMISTIC) {
+            // Only ever stops the partitions on the cycle it found anyway
+            return detectDeadlock();
+        }
+
+        F2ClientEntry[] chain;
         try {
-            DeadlockDescription description = deadlockDetector.detectDeadlock(this);
-            if(description == DeadlockDetector.NONE) {
+            chain = deadlockDetector.findCycle(this, deadlockSearch());
+        } catch(RuntimeException e) {
+            return null;
+        }
+        if(chain == null) {
+            return null;
+        }
+        for(F2ClientEntry entry : chain) {
+            if(entry == null) {
+                // Someone in the chain was granted their lock while we were looking
                 return null;
             }
+        }
+        return detectDeadlock();
+    }
 
-            Deadlock deadlock = new Deadlock(description.toString());
+    private DeadlockDetector.Search deadlockSearch() {
+        if(deadlockSearch == null) {
+            deadlockSearch = new DeadlockDetector.Search();
+        }
+        return deadlockSearch;
+    }
 
-            // TODO: We could easily tell any waiter in the deadlock chain to abort by signalling;
-            //       eg. we could abort a client with lower prio than us, or whatever.
-            // For now, abort the client that firsts discovers the deadlock
-            F2Partition partition = partitions.getPartition(waitsFor.resourceId);
-            cleanUpErrorWhileWaiting_partitionLockHeld(partition, waitsFor);
+    /**
+     * Take this client off the wait list it's on, and have it fail with the given deadlock once it wakes up. The
+     * caller must wake us via {@link #latch} once it has let go of the partition lock.
+     *
+     * NOTE: Must hold the partition lock of the lock this client is waiting for, and this client must be waiting
+     * @param releaser who wakes anyone that gets the lock we were waiting for now that we're out of the way; must
+     *                 not be a client that may be waking its own pending wakeups right now, see {@link #deferWakeup}
+     */
+    void abortWaiting(Deadlock deadlock, F2Client releaser) {
+        abortedWith = deadlock;
+        cleanUpErrorWhileWaiting_partitionLockHeld(partitions.getPartition(waitsFor.resourceId), waitsFor, releaser);
+    }
 
-            return deadlock;
+    private Deadlock detectDeadlockStoppingTheWorld() {
+        partitions.stopTheWorld();
+        try {
+            F2ClientEntry[] chain = deadlockDetector.findCycle(this, deadlockSearch());
+            if(chain == null) {
+                return null;
+            }
+            return abortVictim(chain);
         } finally {
             partitions.resumeTheWorld();
+            wakePendingWakeups();
         }
     }
 
+    /**
+     * See {@link DeadlockDetectionMode#OPTIMISTIC}
+     */
+    private Deadlock detectDeadlockOptimistically() {
+        F2ClientEntry[] chain;
+        try {
+            chain = deadlockDetector.findCycle(this, deadlockSearch());
+        } catch(RuntimeException e) {
+            // The graph changed under us in a way the detector couldn't make sense of; look again with it frozen
+            return detectDeadlockStoppingTheWorld();
+        }
+        if(chain == null) {
+            return null;
+        }
+
+        boolean[] involved = new boolean[partitions.numberOfPartitions()];
+        for(F2ClientEntry entry : chain) {
+            if(entry == null) {
+                // Someone in the chain was granted their lock while we were looking
+                return null;
+            }
+            involved[partitions.partitionIndex(entry.resourceId)] = true;
+        }
+
+        partitions.stopPartitions(involved);
+        try {
+            // Entries may have been recycled for other resources since we looked; if so, the cycle is gone
+            for(F2ClientEntry entry : chain) {
+                if(!involved[partitions.partitionIndex(entry.resourceId)]) {
+                    return null;
+                }
+            }
+            if(!DeadlockDetector.isStillDeadlocked(chain)) {
+                return null;
+            }
+            return abortVictim(chain);
+        } finally {
+            partitions.resumePartitions(involved);
+            wakePendingWakeups();
+        }
+    }
+
+    /**
+     * Break a deadlock we found, by aborting the client the {@link DeadlockVictimPolicy} picks. If that's us, we take
+     * ourselves off the wait list and return the deadlock to fail with. If it's someone else, we take them off their
+     * wait list instead, queue them up to be woken by {@link #wakePendingWakeups()}, and return
+     * {@link #ABORTED_SOMEONE_ELSE}.
+     *
+     * NOTE: Must hold the partition lock of every entry in the chain
+     */
+    private Deadlock abortVictim(F2ClientEntry[] chain) {
+        Deadlock deadlock = new Deadlock(new DeadlockDescription(chain));
+        F2Client victim = deadlockDetector.chooseVictim(chain);
+        if(victim != this) {
+            victim.abortWaiting(deadlock, this);
+            deferWakeup(victim);
+            return ABORTED_SOMEONE_ELSE;
+        }
+
+        F2Partition partition = partitions.getPartition(waitsFor.resourceId);
+        cleanUpErrorWhileWaiting_partitionLockHeld(partition, waitsFor);
+        return deadlock;
+    }
+
     private void cleanUpErrorWhileWaiting(F2Partition partition, F2ClientEntry entry) {
-        long stamp = partition.partitionLock.writeLock();
+        partition.lock();
         try {
-            cleanUpErrorWhileWaiting_partitionLockHeld(partition, entry);
+            if(abortedWith == null) {
+                boolean grantedAfterAll = waitsFor != entry;
+                cleanUpErrorWhileWaiting_partitionLockHeld(partition, entry);
+                if(!grantedAfterAll) {
+                    return;
+                }
+                // We were granted the lock just before giving up on it; the cleanup let go of it again, but whoever
+                // granted it still wakes us
+            } else {
+                // Someone picked us as a deadlock victim, and beat us to it
+                abortedWith = null;
+            }
         } finally {
-            partition.partitionLock.unlock(stamp);
+            partition.unlock();
+            wakePendingWakeups();
+        }
+
+        // They wake us once they've let go of the partition locks; take that wakeup now, so the next time we wait we
+        // don't take it for a grant
+        while(!latch.acquireUnlessExpired()) {
+            // Our deadline passed in the meantime; that's not what we're waiting for here
         }
     }
 
@@ -328,14 +1150,21 @@ class F2Client implements Locks.Client {
      * NOTE: Must hold at least partition lock
      */
     private void cleanUpErrorWhileWaiting_partitionLockHeld(F2Partition partition, F2ClientEntry entry) {
+        cleanUpErrorWhileWaiting_partitionLockHeld(partition, entry, this);
+    }
+
+    /**
+     * NOTE: Must hold at least partition lock
+     */
+    private void cleanUpErrorWhileWaiting_partitionLockHeld(F2Partition partition, F2ClientEntry entry, F2Client releaser) {
         ResourceType resourceType = entry.resourceType;
         long resourceId = entry.resourceId;
 
-        F2Lock.ReleaseOutcome outcome = entry.lock.errorCleanup(entry);
+        F2Lock.ReleaseOutcome outcome = entry.lock.errorCleanup(entry, releaser);
         if(outcome == F2Lock.ReleaseOutcome.LOCK_IDLE) {
             // If the lock ended up idle, we need to remove it from the lock table before wrapping up
             partition.removeLock(resourceType, resourceId);
         }
-        partition.releaseClientEntry(entry);
+        releaseClientEntry(partition, entry);
     }
 }
@@ -20,12 +20,18 @@ class F2ClientEntry {
     long resourceId;
 
     /**
-     * If the lock is held: The next entry holding the same lock
      * If the lock is waited on: The next entry waiting for the same lock
      * If the entry is on a freelist: The next free entry after this one
      */
     F2ClientEntry next;
 
+    /** If the lock is waited on: The previous entry waiting for the same lock */
+    F2ClientEntry prev;
+
+    /** If waiting for an EXCLUSIVE lock: The next and previous entries also waiting for it exclusively */
+    F2ClientEntry nextExclusiveWaiter;
+    F2ClientEntry prevExclusiveWaiter;
+
     /**
      * If owner holds several lock types on the same lock, this will point to the next entry for the same owner
      */
@@ -36,6 +42,12 @@ class F2ClientEntry {
      */
     int reentrancyCounter = 0;
 
+    /**
+     * Set on the few entries a client holding a great many resources thin locks all its new resources through,
+     * one per resource type and lock mode; these have no resource id of their own, see {@link F2ClientLocks}
+     */
+    boolean compact;
+
     F2ClientEntry() {
 
     }
@@ -1,31 +1,70 @@
 package com.jakewins.f2;
 
 import org.neo4j.collection.primitive.Primitive;
+import org.neo4j.collection.primitive.PrimitiveLongIterator;
+import org.neo4j.collection.primitive.PrimitiveLongLongMap;
 import org.neo4j.collection.primitive.PrimitiveLongObjectMap;
+import org.neo4j.collection.primitive.PrimitiveLongSet;
 import org.neo4j.kernel.impl.locking.ActiveLock;
 import org.neo4j.storageengine.api.lock.ResourceType;
 
-import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.function.BiConsumer;
 import java.util.stream.Stream;
 
 /**
  * Tracks the locks held by a single client, managing the logic of combining that state with requests to release
  * or acquire new locks to determine which actual lock operations need doing in the global lock table.
+ *
+ * Most clients hold a handful of resources at a time, so these are kept in small arrays that we scan, which is
+ * cheaper than hashing for so few; only once a client holds more than {@link #INLINE_CAPACITY} resources at once do
+ * they all move to hash maps. They move back once the client is down to {@link #UNSPILL_THRESHOLD}, or releases
+ * everything; the gap between the two keeps a client that holds around {@link #INLINE_CAPACITY} resources from moving
+ * them back and forth on every acquire and release.
+ *
+ * A few clients, like bulk imports, hold millions of resources; an entry apiece, in both our maps and the lock
+ * table, adds up to around a hundred bytes per resource. Once a client holds more than {@link #COMPACT_THRESHOLD}
+ * resources, it thin locks every new resource it can through one shared {@link F2ClientEntry#compact} entry per
+ * resource type and lock mode, and we keep just the ids, in primitive sets, with reentrancy counts only for the
+ * resources acquired more than once. Resources someone else is waiting for, or that need upgrading, still get
+ * entries of their own.
  */
 class F2ClientLocks {
+    static final int INLINE_CAPACITY = 16;
+    static final int UNSPILL_THRESHOLD = INLINE_CAPACITY / 2;
+    static final int COMPACT_THRESHOLD = 1 << 12;
+
+    /**
+     * Resources held, while we hold no more than {@link #INLINE_CAPACITY}; index i holds the head of the linked list
+     * (via {@link F2ClientEntry#ownerNext}) of entries held on resource inlineIds[i] of type inlineTypes[i].
+     * The ids come first, since that's what we compare on when scanning.
+     */
+    private final long[] inlineIds = new long[INLINE_CAPACITY];
+    private final int[] inlineTypes = new int[INLINE_CAPACITY];
+    private final F2ClientEntry[] inlineHeads = new F2ClientEntry[INLINE_CAPACITY];
+    private int numInline = 0;
+
     /**
-     * Map of linked list (via {@link F2ClientEntry#ownerNext}) of entries held per resource,
-     * reentrancy is tracked by lock mode via {@link F2ClientEntry#reentrancyCounter}.
+     * Map of linked list (via {@link F2ClientEntry#ownerNext}) of entries held per resource, once we've held more
+     * resources than fit inline; reentrancy is tracked by lock mode via {@link F2ClientEntry#reentrancyCounter}.
+     * Allocated the first time we need it.
      */
-    private final PrimitiveLongObjectMap<F2ClientEntry>[] locksByResourceType;
+    private PrimitiveLongObjectMap<F2ClientEntry>[] locksByResourceType;
+    private final int numResourceTypes;
+    /** Set while held resources are in {@link #locksByResourceType} rather than inline */
+    private boolean spilled = false;
+    /** Resources in {@link #locksByResourceType}, across all types */
+    private int numSpilled = 0;
+
+    /** Set once we hold more than {@link #COMPACT_THRESHOLD} resources, until we release everything */
+    private F2Client compactOwner;
+    /** Resources held through compact entries, by resource type id; null where there are none */
+    private CompactHolding[] compactShared;
+    private CompactHolding[] compactExclusive;
 
     F2ClientLocks(int numResourceTypes) {
-        locksByResourceType = new PrimitiveLongObjectMap[numResourceTypes];
-        for(int resourceIndex=0;resourceIndex<numResourceTypes;resourceIndex++) {
-            locksByResourceType[resourceIndex] = Primitive.longObjectMap();
-        }
+        this.numResourceTypes = numResourceTypes;
     }
 
     /**
@@ -39,7 +78,7 @@ class F2ClientLocks {
      */
     LockMode tryLocalAcquire(ResourceType resourceType, long resourceId, LockMode requestedLockMode) {
         // HEAD of linked list of entries we hold on this resource
-        F2ClientEntry entry = locksByResourceType[resourceType.typeId()].get(resourceId);
+        F2ClientEntry entry = head(resourceType.typeId(), resourceId);
 
         // Go through the entries we already hold, if any, increment reentrancy counter if that's enough,
         // or request we grab some lock globally.
@@ -59,6 +98,23 @@ class F2ClientLocks {
             }
         }
 
+        if(compactOwner != null) {
+            CompactHolding shared = compactHolding(LockMode.SHARED, resourceType.typeId());
+            if(shared != null && shared.resourceIds.contains(resourceId)) {
+                if(requestedLockMode == LockMode.SHARED) {
+                    shared.reenter(resourceId);
+                    return LockMode.NONE;
+                }
+                holdsShareLocks = true;
+            } else if(requestedLockMode != LockMode.SHARED) {
+                CompactHolding exclusive = compactHolding(LockMode.EXCLUSIVE, resourceType.typeId());
+                if(exclusive != null && exclusive.resourceIds.contains(resourceId)) {
+                    exclusive.reenter(resourceId);
+                    return LockMode.NONE;
+                }
+            }
+        }
+
         if (requestedLockMode == LockMode.EXCLUSIVE && holdsShareLocks) {
             // Client holds a share lock and wants exclusive; ask global tables for an upgrade lock
             return LockMode.UPGRADE;
@@ -70,8 +126,45 @@ class F2ClientLocks {
     void globallyAcquired(F2ClientEntry entry) {
         entry.reentrancyCounter = 1;
 
-        entry.ownerNext = locksByResourceType[entry.resourceType.typeId()].get(entry.resourceId);
-        locksByResourceType[entry.resourceType.typeId()].put(entry.resourceId, entry);
+        int typeId = entry.resourceType.typeId();
+        entry.ownerNext = head(typeId, entry.resourceId);
+        setHead(typeId, entry.resourceId, entry);
+
+        if(spilled && compactOwner == null && activeLockCount() > COMPACT_THRESHOLD) {
+            compactOwner = entry.owner;
+            compactShared = new CompactHolding[numResourceTypes];
+            compactExclusive = new CompactHolding[numResourceTypes];
+        }
+    }
+
+    /** @return true while held resources are kept in hash maps rather than inline */
+    boolean isSpilled() {
+        return spilled;
+    }
+
+    /** @return true if new resources should be thin locked through {@link #compactHolder}, if they can be */
+    boolean isCompact() {
+        return compactOwner != null;
+    }
+
+    /**
+     * The entry to thin lock resources of the given type in the given mode through, see {@link F2ClientEntry#compact}.
+     *
+     * NOTE: Only while {@link #isCompact()}
+     */
+    F2ClientEntry compactHolder(LockMode lockMode, ResourceType resourceType) {
+        assert lockMode == LockMode.SHARED || lockMode == LockMode.EXCLUSIVE : String.format("Only SHARED and EXCLUSIVE are thin locked, got %s", lockMode);
+        CompactHolding[] holdings = lockMode == LockMode.SHARED ? compactShared : compactExclusive;
+        CompactHolding holding = holdings[resourceType.typeId()];
+        if(holding == null) {
+            holding = holdings[resourceType.typeId()] = new CompactHolding(compactOwner, lockMode, resourceType);
+        }
+        return holding.holder;
+    }
+
+    /** Record that the given compact entry now thin locks the given resource */
+    void compactlyAcquired(F2ClientEntry holder, long resourceId) {
+        compactHolding(holder.lockMode, holder.resourceType.typeId()).resourceIds.add(resourceId);
     }
 
     /**
@@ -81,7 +174,7 @@ class F2ClientLocks {
     F2ClientEntry tryLocalRelease(LockMode requestedLockMode, ResourceType resourceType, long resourceId) {
         // HEAD of linked list of entries we hold on this resource
         F2ClientEntry previous = null;
-        F2ClientEntry entry = locksByResourceType[resourceType.typeId()].get(resourceId);
+        F2ClientEntry entry = head(resourceType.typeId(), resourceId);
 
         for(;entry != null; entry = entry.ownerNext) {
             if(requestedLockMode == LockMode.EXCLUSIVE && (entry.lockMode == LockMode.EXCLUSIVE || entry.lockMode == LockMode.UPGRADE)) {
@@ -92,6 +185,10 @@ class F2ClientLocks {
             previous = entry;
         }
 
+        if(entry == null && compactOwner != null) {
+            return tryLocalReleaseCompact(requestedLockMode, resourceType, resourceId);
+        }
+
         assert entry != null : String.format("Trying to release lock that isn't held: %s %s %s", requestedLockMode, resourceType, resourceId);
 
         if(entry.reentrancyCounter > 1) {
@@ -101,12 +198,8 @@ class F2ClientLocks {
 
         // This entry needs to be released globally
         if(previous == null) {
-            if(entry.ownerNext == null) {
-                // This was the only entry we had, so clear the map
-                locksByResourceType[resourceType.typeId()].remove(resourceId);
-            } else {
-                locksByResourceType[resourceType.typeId()].put(resourceId, entry.ownerNext);
-            }
+            // If this was the only entry we had, this forgets the resource
+            setHead(resourceType.typeId(), resourceId, entry.ownerNext);
         } else {
             previous.ownerNext = entry.ownerNext;
         }
@@ -114,46 +207,263 @@ class F2ClientLocks {
         return entry;
     }
 
+    /**
+     * Counterpart to {@link #tryLocalRelease} for resources held through compact entries.
+     * @return the compact entry to release the resource through globally, or null if it's still held
+     */
+    private F2ClientEntry tryLocalReleaseCompact(LockMode requestedLockMode, ResourceType resourceType, long resourceId) {
+        CompactHolding holding = compactHolding(requestedLockMode, resourceType.typeId());
+        assert holding != null && holding.resourceIds.contains(resourceId) : String.format("Trying to release lock that isn't held: %s %s %s", requestedLockMode, resourceType, resourceId);
+
+        if(holding.exit(resourceId)) {
+            return null;
+        }
+        holding.resourceIds.remove(resourceId);
+        return holding.holder;
+    }
+
+    /**
+     * Hand every resource held through a compact entry to the given callback, along with the entry, and forget them;
+     * what's held through regular entries is left to {@link #releaseAll}.
+     */
+    void releaseAllCompact(BiConsumer<F2ClientEntry, long[]> release) {
+        if(compactOwner == null) {
+            return;
+        }
+        for(CompactHolding[] holdings : new CompactHolding[][]{compactShared, compactExclusive}) {
+            for(CompactHolding holding : holdings) {
+                if(holding != null && !holding.resourceIds.isEmpty()) {
+                    release.accept(holding.holder, holding.toArray());
+                }
+            }
+        }
+        compactOwner = null;
+        compactShared = null;
+        compactExclusive = null;
+    }
+
     /**
      * Group all the entries by partition, and clear the local locks table.
      */
     void releaseAll(F2Partitions partitions, List<F2ClientEntry>[] toReleaseByPartition) {
+        if(!spilled) {
+            for(int i = 0; i < numInline; i++) {
+                groupByPartition(partitions, toReleaseByPartition, inlineIds[i], inlineHeads[i]);
+                inlineHeads[i] = null;
+            }
+            numInline = 0;
+            return;
+        }
+
         for (PrimitiveLongObjectMap<F2ClientEntry> locks : locksByResourceType) {
             locks.visitEntries((resourceId, entry) -> {
-                F2Partition partition = partitions.getPartition(resourceId);
-
-                List<F2ClientEntry> heldInThisPartition = toReleaseByPartition[partition.index()];
-                if(heldInThisPartition == null) {
-                    toReleaseByPartition[partition.index()] = heldInThisPartition = new LinkedList<>();
-                }
-
-                for(; entry != null; entry = entry.ownerNext) {
-                    heldInThisPartition.add(entry);
-                }
+                groupByPartition(partitions, toReleaseByPartition, resourceId, entry);
                 return false;
             });
             locks.clear();
         }
+        spilled = false;
+        numSpilled = 0;
+    }
+
+    private static void groupByPartition(F2Partitions partitions, List<F2ClientEntry>[] toReleaseByPartition, long resourceId, F2ClientEntry entry) {
+        F2Partition partition = partitions.getPartition(resourceId);
+
+        List<F2ClientEntry> heldInThisPartition = toReleaseByPartition[partition.index()];
+        if(heldInThisPartition == null) {
+            toReleaseByPartition[partition.index()] = heldInThisPartition = new LinkedList<>();
+        }
+
+        for(; entry != null; entry = entry.ownerNext) {
+            heldInThisPartition.add(entry);
+        }
     }
 
     Stream<? extends ActiveLock> asStream() {
-        return Arrays.asList(locksByResourceType)
-                .stream()
-                .flatMap((locks) -> {
-                    LinkedList<ActiveLock> found = new LinkedList<>();
-                    locks.visitEntries( (resourceId, entry) -> {
-                        found.add(F2ActiveLock.fromEntry(entry));
-                        return false;
-                    });
-                    return found.stream();
-                });
+        LinkedList<ActiveLock> found = new LinkedList<>();
+        if(compactOwner != null) {
+            for(CompactHolding[] holdings : new CompactHolding[][]{compactShared, compactExclusive}) {
+                for(CompactHolding holding : holdings) {
+                    if(holding == null) {
+                        continue;
+                    }
+                    for(PrimitiveLongIterator ids = holding.resourceIds.iterator(); ids.hasNext(); ) {
+                        found.add(new F2ActiveLock(holding.holder.lockMode.name(), holding.holder.resourceType, ids.next()));
+                    }
+                }
+            }
+        }
+        if(!spilled) {
+            for(int i = 0; i < numInline; i++) {
+                found.add(F2ActiveLock.fromEntry(inlineHeads[i]));
+            }
+            return found.stream();
+        }
+        for(PrimitiveLongObjectMap<F2ClientEntry> locks : locksByResourceType) {
+            locks.visitEntries( (resourceId, entry) -> {
+                found.add(F2ActiveLock.fromEntry(entry));
+                return false;
+            });
+        }
+        return found.stream();
     }
 
+    /**
+     * NOTE: Other clients call this to pick deadlock victims, see {@link DeadlockVictimPolicy#FEWEST_LOCKS}; they
+     * get an estimate, since we may be acquiring or releasing as they look
+     */
     long activeLockCount() {
-        return Arrays.asList(locksByResourceType)
-                .stream()
-                .mapToInt((locks) -> locks.size())
-                .sum();
+        long count = 0;
+        if(compactOwner != null) {
+            for(int typeId = 0; typeId < numResourceTypes; typeId++) {
+                count += compactShared[typeId] == null ? 0 : compactShared[typeId].resourceIds.size();
+                count += compactExclusive[typeId] == null ? 0 : compactExclusive[typeId].resourceIds.size();
+            }
+        }
+        return count + (spilled ? numSpilled : numInline);
+    }
+
+    /**
+     * @return the resources held through the compact entry for the given type, shared or otherwise exclusive, or
+     *         null if there's none
+     */
+    private CompactHolding compactHolding(LockMode lockMode, int typeId) {
+        return lockMode == LockMode.SHARED ? compactShared[typeId] : compactExclusive[typeId];
+    }
+
+    /** @return head of the linked list of entries we hold on the given resource, or null if we hold none */
+    private F2ClientEntry head(int typeId, long resourceId) {
+        if(spilled) {
+            return locksByResourceType[typeId].get(resourceId);
+        }
+        int index = inlineIndexOf(typeId, resourceId);
+        return index == -1 ? null : inlineHeads[index];
+    }
+
+    /** Replace the head of the linked list of entries we hold on the given resource; null to forget the resource */
+    private void setHead(int typeId, long resourceId, F2ClientEntry head) {
+        if(!spilled) {
+            int index = inlineIndexOf(typeId, resourceId);
+            if(index != -1 && head != null) {
+                inlineHeads[index] = head;
+                return;
+            }
+            if(index != -1) {
+                // Fill the gap with the last one, order doesn't matter
+                numInline--;
+                inlineIds[index] = inlineIds[numInline];
+                inlineTypes[index] = inlineTypes[numInline];
+                inlineHeads[index] = inlineHeads[numInline];
+                inlineHeads[numInline] = null;
+                return;
+            }
+            if(head == null) {
+                return;
+            }
+            if(numInline < INLINE_CAPACITY) {
+                inlineIds[numInline] = resourceId;
+                inlineTypes[numInline] = typeId;
+                inlineHeads[numInline] = head;
+                numInline++;
+                return;
+            }
+            spill();
+        }
+
+        if(head == null) {
+            if(locksByResourceType[typeId].remove(resourceId) != null && --numSpilled <= UNSPILL_THRESHOLD) {
+                unspill();
+            }
+        } else if(locksByResourceType[typeId].put(resourceId, head) == null) {
+            numSpilled++;
+        }
+    }
+
+    private int inlineIndexOf(int typeId, long resourceId) {
+        for(int i = 0; i < numInline; i++) {
+            if(inlineIds[i] == resourceId && inlineTypes[i] == typeId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Move every held resource from inline to the hash maps, since we're holding too many to scan */
+    private void spill() {
+        if(locksByResourceType == null) {
+            locksByResourceType = new PrimitiveLongObjectMap[numResourceTypes];
+            for(int resourceIndex=0;resourceIndex<numResourceTypes;resourceIndex++) {
+                locksByResourceType[resourceIndex] = Primitive.longObjectMap();
+            }
+        }
+        for(int i = 0; i < numInline; i++) {
+            locksByResourceType[inlineTypes[i]].put(inlineIds[i], inlineHeads[i]);
+            inlineHeads[i] = null;
+        }
+        numSpilled = numInline;
+        numInline = 0;
+        spilled = true;
+    }
+
+    /** Move every held resource from the hash maps back inline, since we're down to few enough to scan */
+    private void unspill() {
+        for(int typeId = 0; typeId < numResourceTypes; typeId++) {
+            int type = typeId;
+            locksByResourceType[typeId].visitEntries((resourceId, head) -> {
+                inlineIds[numInline] = resourceId;
+                inlineTypes[numInline] = type;
+                inlineHeads[numInline] = head;
+                numInline++;
+                return false;
+            });
+            locksByResourceType[typeId].clear();
+        }
+        numSpilled = 0;
+        spilled = false;
+    }
+
+    /** The resources of one type held in one mode through a single compact entry */
+    private static class CompactHolding {
+        final F2ClientEntry holder = new F2ClientEntry();
+        final PrimitiveLongSet resourceIds = Primitive.longSet();
+        /** How many times each resource has been acquired, only for those acquired more than once */
+        final PrimitiveLongLongMap reentrancyCounters = Primitive.longLongMap();
+
+        CompactHolding(F2Client owner, LockMode lockMode, ResourceType resourceType) {
+            holder.owner = owner;
+            holder.lockMode = lockMode;
+            holder.resourceType = resourceType;
+            holder.resourceId = -1;
+            holder.compact = true;
+        }
+
+        void reenter(long resourceId) {
+            long count = reentrancyCounters.containsKey(resourceId) ? reentrancyCounters.get(resourceId) : 1;
+            reentrancyCounters.put(resourceId, count + 1);
+        }
+
+        /** @return true if the resource is still held after this */
+        boolean exit(long resourceId) {
+            if(!reentrancyCounters.containsKey(resourceId)) {
+                return false;
+            }
+            long count = reentrancyCounters.get(resourceId);
+            if(count == 2) {
+                reentrancyCounters.remove(resourceId);
+            } else {
+                reentrancyCounters.put(resourceId, count - 1);
+            }
+            return true;
+        }
+
+        long[] toArray() {
+            long[] ids = new long[resourceIds.size()];
+            int i = 0;
+            for(PrimitiveLongIterator iterator = resourceIds.iterator(); iterator.hasNext(); ) {
+                ids[i++] = iterator.next();
+            }
+            return ids;
+        }
     }
 
     private static class F2ActiveLock implements ActiveLock {
@@ -0,0 +1,113 @@
+package com.jakewins.f2;
+
+import org.junit.Test;
+import org.neo4j.storageengine.api.lock.ResourceType;
+
+import java.util.List;
+
+import static com.jakewins.f2.DeadlockDetector_Test.NODE;
+import static com.jakewins.f2.DeadlockDetector_Test.SCHEMA;
+
+public class F2ClientLocks_Test {
+    @Test
+    public void testTracksResourcesTheSameWhetherInlineOrSpilled() {
+        F2ClientLocks locks = new F2ClientLocks(2);
+        int numResources = F2ClientLocks.INLINE_CAPACITY * 2;
+
+        for(int held = 0; held < numResources; held += 2) {
+            // When we globally acquire a resource, then the same id of another type
+            locks.globallyAcquired(entry(LockMode.SHARED, NODE, held));
+            locks.globallyAcquired(entry(LockMode.EXCLUSIVE, SCHEMA, held));
+
+            // Then everything acquired so far can be re-entered locally, whether inline or spilled to the hash maps
+            for(int resourceId = 0; resourceId <= held; resourceId += 2) {
+                assert locks.tryLocalAcquire(NODE, resourceId, LockMode.SHARED) == LockMode.NONE;
+                assert locks.tryLocalAcquire(SCHEMA, resourceId, LockMode.EXCLUSIVE) == LockMode.NONE;
+                assert locks.tryLocalRelease(LockMode.SHARED, NODE, resourceId) == null;
+                assert locks.tryLocalRelease(LockMode.EXCLUSIVE, SCHEMA, resourceId) == null;
+            }
+            // And holding shared still means exclusive needs an upgrade, and resources not held need acquiring
+            assert locks.tryLocalAcquire(NODE, held, LockMode.EXCLUSIVE) == LockMode.UPGRADE;
+            assert locks.tryLocalAcquire(NODE, held + 1, LockMode.SHARED) == LockMode.SHARED;
+            assert locks.activeLockCount() == held + 2 : locks.activeLockCount();
+        }
+
+        // When we release some, out of order, locally
+        for(int resourceId = 0; resourceId < numResources; resourceId += 4) {
+            F2ClientEntry released = locks.tryLocalRelease(LockMode.SHARED, NODE, resourceId);
+            assert released != null && released.resourceId == resourceId && released.resourceType == NODE : released;
+        }
+
+        // Then they're gone, and the rest are still there
+        assert locks.activeLockCount() == numResources - numResources / 4 : locks.activeLockCount();
+        assert locks.tryLocalAcquire(NODE, 0, LockMode.SHARED) == LockMode.SHARED;
+        assert locks.tryLocalAcquire(NODE, 2, LockMode.SHARED) == LockMode.NONE;
+        assert locks.tryLocalAcquire(SCHEMA, 0, LockMode.EXCLUSIVE) == LockMode.NONE;
+
+        // And releasing all hands every remaining entry over, and leaves us holding nothing
+        F2Partitions partitions = new F2Partitions(2, 1);
+        List<F2ClientEntry>[] byPartition = new List[1];
+        locks.releaseAll(partitions, byPartition);
+        assert byPartition[0].size() == numResources - numResources / 4 : byPartition[0].size();
+        assert locks.activeLockCount() == 0;
+        assert locks.tryLocalAcquire(NODE, 2, LockMode.SHARED) == LockMode.SHARED;
+
+        // And we start over inline
+        locks.globallyAcquired(entry(LockMode.SHARED, NODE, 2));
+        assert locks.tryLocalAcquire(NODE, 2, LockMode.SHARED) == LockMode.NONE;
+        assert locks.activeLockCount() == 1;
+    }
+
+    @Test
+    public void testMovesBackInlineOnceFewAreHeldAgain() {
+        F2ClientLocks locks = new F2ClientLocks(2);
+        int numResources = F2ClientLocks.INLINE_CAPACITY + 1;
+
+        // Given we spilled to the hash maps, holding one resource of each type twice over
+        for(int resourceId = 0; resourceId < numResources; resourceId++) {
+            locks.globallyAcquired(entry(LockMode.EXCLUSIVE, resourceId % 2 == 0 ? NODE : SCHEMA, resourceId));
+        }
+        assert locks.tryLocalAcquire(NODE, 0, LockMode.EXCLUSIVE) == LockMode.NONE;
+        assert locks.tryLocalAcquire(SCHEMA, 1, LockMode.EXCLUSIVE) == LockMode.NONE;
+        assert locks.isSpilled();
+
+        // When we release down to just over the threshold, then we stay spilled, so we don't move back and forth
+        int resourceId = numResources - 1;
+        for(; locks.activeLockCount() > F2ClientLocks.UNSPILL_THRESHOLD + 1; resourceId--) {
+            assert locks.tryLocalRelease(LockMode.EXCLUSIVE, resourceId % 2 == 0 ? NODE : SCHEMA, resourceId) != null;
+        }
+        assert locks.isSpilled();
+
+        // But when we release one more, then we're back inline, with everything still held as it was
+        assert locks.tryLocalRelease(LockMode.EXCLUSIVE, resourceId % 2 == 0 ? NODE : SCHEMA, resourceId) != null;
+        assert !locks.isSpilled();
+        assert locks.activeLockCount() == F2ClientLocks.UNSPILL_THRESHOLD : locks.activeLockCount();
+        assert locks.tryLocalRelease(LockMode.EXCLUSIVE, NODE, 0) == null;
+        assert locks.tryLocalRelease(LockMode.EXCLUSIVE, SCHEMA, 1) == null;
+        for(int held = 0; held < F2ClientLocks.UNSPILL_THRESHOLD; held++) {
+            assert locks.tryLocalAcquire(held % 2 == 0 ? NODE : SCHEMA, held, LockMode.EXCLUSIVE) == LockMode.NONE;
+        }
+        assert locks.tryLocalAcquire(NODE, resourceId, LockMode.EXCLUSIVE) == LockMode.EXCLUSIVE;
+    }
+
+    @Test
+    public void testKeepsSharedAndExclusiveEntriesOnOneResourceApart() {
+        F2ClientLocks locks = new F2ClientLocks(2);
+
+        // Given we hold a resource shared, and then upgraded
+        F2ClientEntry shared = entry(LockMode.SHARED, NODE, 1);
+        F2ClientEntry upgrade = entry(LockMode.UPGRADE, NODE, 1);
+        locks.globallyAcquired(shared);
+        locks.globallyAcquired(upgrade);
+
+        // When we release exclusive, then shared, each releases its own entry
+        assert locks.tryLocalRelease(LockMode.EXCLUSIVE, NODE, 1) == upgrade;
+        assert locks.tryLocalAcquire(NODE, 1, LockMode.EXCLUSIVE) == LockMode.UPGRADE;
+        assert locks.tryLocalRelease(LockMode.SHARED, NODE, 1) == shared;
+        assert locks.activeLockCount() == 0;
+    }
+
+    private static F2ClientEntry entry(LockMode lockMode, ResourceType resourceType, long resourceId) {
+        return new F2ClientEntry(null, null, lockMode, resourceType, resourceId, null);
+    }
+}
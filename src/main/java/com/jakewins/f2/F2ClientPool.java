@@ -0,0 +1,64 @@
+package com.jakewins.f2;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Closed clients kept around for {@link F2Locks#newClient()} to hand out again, so starting a transaction doesn't
+ * allocate a client with its local lock table and latch, or take a new slot from {@link F2ClientSlots}; pooled
+ * clients keep the slot they had.
+ *
+ * Lock-free and bounded: each thread looks through a few cells of its own, so threads opening and closing clients
+ * at the same time mostly don't touch the same cells, and a client closed where there's no room left is dropped.
+ */
+class F2ClientPool {
+    private static final int NUM_CELLS = 256;
+    private static final int CELL_MASK = NUM_CELLS - 1;
+    /** How many cells, from the one a thread starts at, it looks through before giving up */
+    private static final int PROBES = 4;
+
+    private final AtomicReferenceArray<F2Client> cells = new AtomicReferenceArray<>(NUM_CELLS);
+
+    /** @return a closed client to reuse, or null if there's none at hand */
+    F2Client poll() {
+        int start = startCell();
+        for(int i = 0; i < PROBES; i++) {
+            int cell = (start + i) & CELL_MASK;
+            if(cells.get(cell) != null) {
+                F2Client client = cells.getAndSet(cell, null);
+                if(client != null) {
+                    return client;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * NOTE: The client must be closed, and hold or wait for nothing
+     * @return true if the client was pooled, false if there was no room for it
+     */
+    boolean offer(F2Client client) {
+        int start = startCell();
+        for(int i = 0; i < PROBES; i++) {
+            int cell = (start + i) & CELL_MASK;
+            if(cells.get(cell) == null && cells.compareAndSet(cell, null, client)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Let go of every pooled client, along with its slot; for when the lock manager shuts down */
+    void clear() {
+        for(int cell = 0; cell < NUM_CELLS; cell++) {
+            F2Client client = cells.getAndSet(cell, null);
+            if(client != null) {
+                client.freeSlot();
+            }
+        }
+    }
+
+    private static int startCell() {
+        return (int) Thread.currentThread().getId() * PROBES;
+    }
+}
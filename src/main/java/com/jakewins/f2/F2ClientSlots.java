@@ -0,0 +1,106 @@
+package com.jakewins.f2;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Hands out small, dense slot numbers to live clients, so locks can track their shared holders as a bitmap of
+ * slots rather than a list of entries, see {@link F2Lock#sharedHolders}. Slots are recycled once a client closes.
+ * Each {@link F2Partitions}, and so each lock manager, has its own slots.
+ *
+ * Lock-free: freed slots go on a stack whose head is swapped in with compare-and-set, and the table of clients by
+ * slot grows a fixed size chunk at a time, so it never has to be copied while others look things up in it.
+ */
+class F2ClientSlots {
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    /** Enough for four million clients open at once */
+    private static final int MAX_CHUNKS = 1 << 12;
+
+    private static class Chunk {
+        final F2Client[] clients = new F2Client[CHUNK_SIZE];
+        /** For free slots, one plus the next free slot on the stack, or 0 at the bottom of it */
+        final int[] nextFree = new int[CHUNK_SIZE];
+    }
+
+    private final AtomicReferenceArray<Chunk> chunks = new AtomicReferenceArray<>(MAX_CHUNKS);
+    private final AtomicInteger nextUnusedSlot = new AtomicInteger();
+
+    /**
+     * Top of the stack of free slots: one plus the slot in the low 32 bits, 0 if the stack is empty, and a count of
+     * changes to the stack in the high 32 bits, so a pop that read a stale next slot never succeeds.
+     */
+    private final AtomicLong freeSlots = new AtomicLong();
+
+    int allocate(F2Client client) {
+        int slot = popFreeSlot();
+        if(slot == -1) {
+            slot = nextUnusedSlot.getAndIncrement();
+            if(slot >= MAX_CHUNKS * CHUNK_SIZE) {
+                nextUnusedSlot.decrementAndGet();
+                throw new IllegalStateException(String.format("Cannot have more than %d lock clients open at once.", MAX_CHUNKS * CHUNK_SIZE));
+            }
+        }
+        chunk(slot).clients[slot & CHUNK_MASK] = client;
+        return slot;
+    }
+
+    /** NOTE: The client must not hold or wait for any locks */
+    void free(int slot) {
+        Chunk chunk = chunks.get(slot >>> CHUNK_BITS);
+        chunk.clients[slot & CHUNK_MASK] = null;
+        for(;;) {
+            long top = freeSlots.get();
+            chunk.nextFree[slot & CHUNK_MASK] = (int) top;
+            if(freeSlots.compareAndSet(top, nextVersion(top) | (slot + 1))) {
+                return;
+            }
+        }
+    }
+
+    /** @return one past the highest slot handed out so far, for looking through every client */
+    int numSlots() {
+        return Math.min(nextUnusedSlot.get(), MAX_CHUNKS * CHUNK_SIZE);
+    }
+
+    /**
+     * NOTE: Must hold the partition lock of a lock the client holds, for the slot to be guaranteed to still be
+     * the clients
+     * @return the client in the given slot, or null if there's none
+     */
+    F2Client client(int slot) {
+        Chunk chunk = chunks.get(slot >>> CHUNK_BITS);
+        return chunk == null ? null : chunk.clients[slot & CHUNK_MASK];
+    }
+
+    /** @return a free slot, or -1 if there's none */
+    private int popFreeSlot() {
+        for(;;) {
+            long top = freeSlots.get();
+            int slot = (int) top - 1;
+            if(slot == -1) {
+                return -1;
+            }
+            int next = chunks.get(slot >>> CHUNK_BITS).nextFree[slot & CHUNK_MASK];
+            if(freeSlots.compareAndSet(top, nextVersion(top) | (next & 0xFFFFFFFFL))) {
+                return slot;
+            }
+        }
+    }
+
+    private Chunk chunk(int slot) {
+        int chunkIndex = slot >>> CHUNK_BITS;
+        Chunk chunk = chunks.get(chunkIndex);
+        if(chunk == null) {
+            chunks.compareAndSet(chunkIndex, null, new Chunk());
+            chunk = chunks.get(chunkIndex);
+        }
+        return chunk;
+    }
+
+    private static long nextVersion(long top) {
+        return ((top >>> 32) + 1) << 32;
+    }
+}
@@ -0,0 +1,76 @@
+package com.jakewins.f2;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class F2ClientSlots_Test {
+    @Test
+    public void testFreedSlotsAreHandedOutAgain() {
+        F2ClientSlots slots = new F2ClientSlots();
+        F2Client client = F2Lock_Test.newClient();
+
+        // Given a few slots handed out
+        int first = slots.allocate(client);
+        int second = slots.allocate(client);
+        int third = slots.allocate(client);
+        assert first == 0 && second == 1 && third == 2;
+        assert slots.numSlots() == 3 : slots.numSlots();
+
+        // When two of them are freed
+        slots.free(first);
+        slots.free(third);
+        assert slots.client(first) == null && slots.client(second) == client;
+
+        // Then they're handed out again, last freed first, before any new ones
+        assert slots.allocate(client) == third;
+        assert slots.allocate(client) == first;
+        assert slots.allocate(client) == 3;
+        assert slots.numSlots() == 4 : slots.numSlots();
+    }
+
+    @Test
+    public void testNoSlotIsHandedOutTwiceWhileInUse() throws InterruptedException {
+        F2ClientSlots slots = new F2ClientSlots();
+        F2Client client = F2Lock_Test.newClient();
+        int threads = 4, iterations = 10_000, heldPerThread = 8;
+        AtomicInteger[] inUse = new AtomicInteger[threads * heldPerThread + threads];
+        for(int i = 0; i < inUse.length; i++) {
+            inUse[i] = new AtomicInteger();
+        }
+        AtomicInteger doubleAllocations = new AtomicInteger();
+
+        // When several threads each keep taking and freeing a few slots at a time
+        List<Thread> workers = new ArrayList<>();
+        for(int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                int[] held = new int[heldPerThread];
+                for(int j = 0; j < iterations; j++) {
+                    for(int h = 0; h < heldPerThread; h++) {
+                        held[h] = slots.allocate(client);
+                        if(held[h] >= inUse.length || inUse[held[h]].incrementAndGet() != 1) {
+                            doubleAllocations.incrementAndGet();
+                        }
+                    }
+                    for(int h = 0; h < heldPerThread; h++) {
+                        if(held[h] < inUse.length) {
+                            inUse[held[h]].decrementAndGet();
+                        }
+                        slots.free(held[h]);
+                    }
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for(Thread worker : workers) {
+            worker.join();
+        }
+
+        // Then no slot was ever held by two at once, and slots were reused rather than new ones taken
+        assert doubleAllocations.get() == 0 : doubleAllocations.get() + " slots handed out while in use, or never reused";
+        assert slots.numSlots() <= threads * heldPerThread : slots.numSlots();
+    }
+}
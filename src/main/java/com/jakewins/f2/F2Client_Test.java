@@ -1,14 +1,30 @@
 package com.jakewins.f2;
 
+import com.jakewins.f2.infrastructure.SingleWaiterLatch;
 import org.junit.Test;
+import org.neo4j.kernel.DeadlockDetectedException;
+import org.neo4j.kernel.api.exceptions.Status;
+import org.neo4j.kernel.impl.locking.LockClientStoppedException;
 import org.neo4j.kernel.impl.locking.LockTracer;
+import org.neo4j.kernel.impl.locking.Locks;
+import org.neo4j.storageengine.api.lock.AcquireLockTimeoutException;
 import org.neo4j.storageengine.api.lock.ResourceType;
 
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.*;
 
 import static com.jakewins.f2.DeadlockDetector_Test.NODE;
+import static com.jakewins.f2.DeadlockDetector_Test.SCHEMA;
 import static com.jakewins.f2.F2Client_Test.Call.call;
 
 public class F2Client_Test {
@@ -95,6 +111,570 @@ public class F2Client_Test {
         client.releaseExclusive(NODE, 0);
     }
 
+    @Test
+    public void testBatchedAcquireAndReleaseVisitsResourcesInOrder() {
+        StubF2Partitions partitions = new StubF2Partitions();
+        F2Client client = new F2Client(8, partitions, null);
+
+        // Expect one acquire per distinct resource, lowest id first
+        partitions.partition.lock.expect(
+                acquire(new F2ClientEntry(client, null, LockMode.EXCLUSIVE, NODE, 1, null)),
+                acquire(new F2ClientEntry(client, null, LockMode.EXCLUSIVE, NODE, 2, null)),
+                acquire(new F2ClientEntry(client, null, LockMode.EXCLUSIVE, NODE, 3, null))
+        );
+
+        // When I acquire a batch of resources, with one of them repeated
+        client.acquireExclusive(LockTracer.NONE, NODE, 3, 1, 2, 3);
+
+        // Then expect the repeated one to only be released once the batch release brings it to zero
+        partitions.partition.lock.expect(
+                release(new F2ClientEntry(client, partitions.partition.lock, LockMode.EXCLUSIVE, NODE, 1, null)),
+                release(new F2ClientEntry(client, partitions.partition.lock, LockMode.EXCLUSIVE, NODE, 2, null))
+        );
+        client.releaseExclusive(NODE, 2, 1, 3);
+
+        partitions.partition.lock.expect(
+                release(new F2ClientEntry(client, partitions.partition.lock, LockMode.EXCLUSIVE, NODE, 3, null))
+        );
+        client.releaseExclusive(NODE, 3);
+    }
+
+    @Test
+    public void testDeadlockIsDetectedAsSoonAsTheCycleCloses() throws InterruptedException {
+        for(DeadlockDetectionMode mode : DeadlockDetectionMode.values()) {
+            if(mode.avoidsDeadlocks()) {
+                // The cycle never closes
+                continue;
+            }
+            assertDeadlockIsDetectedAsSoonAsTheCycleCloses(new F2Locks(new ResourceType[]{SCHEMA, NODE}, 4, new F2Options().withDeadlockDetection(mode)));
+        }
+    }
+
+    private static void assertDeadlockIsDetectedAsSoonAsTheCycleCloses(F2Locks locks) throws InterruptedException {
+        Locks.Client clientA = locks.newClient();
+        Locks.Client clientB = locks.newClient();
+
+        // Given A holds 1 and B holds 2, and B is waiting for 1
+        clientA.acquireExclusive(LockTracer.NONE, NODE, 1);
+        clientB.acquireExclusive(LockTracer.NONE, NODE, 2);
+        Thread waiter = new Thread(() -> {
+            try {
+                clientB.acquireExclusive(LockTracer.NONE, NODE, 1);
+            } catch(DeadlockDetectedException e) {
+                // Fine; either of us may be told
+            }
+        });
+        waiter.start();
+        while(!isWaitingForLock(waiter) && waiter.getState() != Thread.State.TERMINATED) {
+            Thread.yield();
+        }
+
+        // When A asks for 2, then it's told about the deadlock without first waiting out the deadlock check timeout
+        long start = System.nanoTime();
+        try {
+            clientA.acquireExclusive(LockTracer.NONE, NODE, 2);
+            assert false : "Expected deadlock";
+        } catch(DeadlockDetectedException e) {
+            long waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assert waitedMillis < 500 : "Took " + waitedMillis + "ms to detect deadlock";
+        }
+
+        clientA.close();
+        waiter.join();
+        clientB.close();
+    }
+
+    @Test
+    public void testQueueingBehindAWaiterDoesNotStopTheWorld() throws InterruptedException {
+        F2Locks locks = new F2Locks(new ResourceType[]{SCHEMA, NODE}, 4, new F2Options().withDeadlockDetection(DeadlockDetectionMode.STOP_THE_WORLD));
+        Locks.Client holder = locks.newClient();
+        Locks.Client middle = locks.newClient();
+        Locks.Client behind = locks.newClient();
+        holder.acquireExclusive(LockTracer.NONE, NODE, 1);
+        middle.acquireExclusive(LockTracer.NONE, NODE, 2);
+
+        // Given a client waits for a lock, while holding one of its own
+        Thread middleThread = new Thread(() -> middle.acquireExclusive(LockTracer.NONE, NODE, 1));
+        middleThread.start();
+        while(!isWaitingForLock(middleThread)) {
+            Thread.yield();
+        }
+
+        // And a partition that has nothing to do with any of this is locked by someone
+        F2Partition unrelated = ((F2Client) holder).partitions().getPartition(3);
+        unrelated.lock();
+        Thread behindThread;
+        try {
+            // When another client queues up behind the waiting one, which is an ordinary chain, not a deadlock
+            behindThread = new Thread(() -> behind.acquireExclusive(LockTracer.NONE, NODE, 2));
+            behindThread.start();
+
+            // Then it gets to park on its wait, rather than waiting to stop every partition to look for deadlock
+            long giveUpAt = System.currentTimeMillis() + 10_000;
+            while(!isWaitingForLock(behindThread) && System.currentTimeMillis() < giveUpAt) {
+                Thread.yield();
+            }
+            assert isWaitingForLock(behindThread) : "Client stuck stopping the world: " + behindThread.getState();
+        } finally {
+            unrelated.unlock();
+        }
+
+        holder.close();
+        middleThread.join();
+        middle.close();
+        behindThread.join();
+        behind.close();
+        locks.close();
+    }
+
+    @Test
+    public void testSecondUpgraderFailsRightAway() throws InterruptedException {
+        F2Locks locks = new F2Locks(new ResourceType[]{SCHEMA, NODE}, 4);
+        Locks.Client clientA = locks.newClient();
+        Locks.Client clientB = locks.newClient();
+
+        // Given A and B share a lock, and A is waiting to upgrade it
+        clientA.acquireShared(LockTracer.NONE, NODE, 1);
+        clientB.acquireShared(LockTracer.NONE, NODE, 1);
+        Thread upgrader = new Thread(() -> clientA.acquireExclusive(LockTracer.NONE, NODE, 1));
+        upgrader.start();
+        while(!isWaitingForLock(upgrader)) {
+            Thread.yield();
+        }
+
+        // When B also asks to upgrade, then it's told about the deadlock straight away
+        long start = System.nanoTime();
+        try {
+            clientB.acquireExclusive(LockTracer.NONE, NODE, 1);
+            assert false : "Expected deadlock";
+        } catch(DeadlockDetectedException e) {
+            long waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assert waitedMillis < 500 : "Took " + waitedMillis + "ms to detect deadlock";
+        }
+
+        // And once B gives up its shared lock, A gets its upgrade
+        clientB.close();
+        upgrader.join();
+        Locks.Client clientC = locks.newClient();
+        assert !clientC.trySharedLock(NODE, 1);
+        clientA.close();
+        clientC.close();
+    }
+
+    @Test
+    public void testClientHoldingFewestLocksIsAbortedWhoeverFindsTheDeadlock() throws InterruptedException {
+        for(DeadlockDetectionMode mode : DeadlockDetectionMode.values()) {
+            if(mode.avoidsDeadlocks()) {
+                // The cycle never closes
+                continue;
+            }
+            assertClientHoldingFewestLocksIsAborted(new F2Locks(new ResourceType[]{SCHEMA, NODE}, 4, new F2Options()
+                    .withDeadlockDetection(mode)
+                    .withDeadlockSweepIntervalMillis(10)
+                    .withDeadlockVictimPolicy(DeadlockVictimPolicy.FEWEST_LOCKS)));
+        }
+    }
+
+    private static void assertClientHoldingFewestLocksIsAborted(F2Locks locks) throws InterruptedException {
+        Locks.Client clientA = locks.newClient();
+        Locks.Client clientB = locks.newClient();
+        AtomicBoolean clientBAborted = new AtomicBoolean();
+
+        // Given A holds lots of locks and B holds one, and B is waiting for one of A's
+        clientA.acquireExclusive(LockTracer.NONE, NODE, 1, 2, 3, 4, 5);
+        clientB.acquireExclusive(LockTracer.NONE, NODE, 10);
+        Thread waiter = new Thread(() -> {
+            try {
+                clientB.acquireExclusive(LockTracer.NONE, NODE, 1);
+            } catch(DeadlockDetectedException e) {
+                clientBAborted.set(true);
+            } finally {
+                clientB.close();
+            }
+        });
+        waiter.start();
+        while(!isWaitingForLock(waiter)) {
+            Thread.yield();
+        }
+
+        // When A closes the cycle, then B is woken up and told about the deadlock, and A gets the lock
+        clientA.acquireExclusive(LockTracer.NONE, NODE, 10);
+        waiter.join();
+        assert clientBAborted.get();
+
+        clientA.close();
+        locks.close();
+    }
+
+    @Test
+    public void testWaitDieFailsYoungerClientInsteadOfWaiting() throws InterruptedException {
+        F2Locks locks = new F2Locks(new ResourceType[]{SCHEMA, NODE}, 4, new F2Options().withDeadlockDetection(DeadlockDetectionMode.WAIT_DIE));
+        Locks.Client older = locks.newClient();
+        Locks.Client younger = locks.newClient();
+        older.acquireExclusive(LockTracer.NONE, NODE, 1);
+        younger.acquireExclusive(LockTracer.NONE, NODE, 2);
+
+        // When the younger client asks for a lock the older one holds, then it fails rather than wait
+        try {
+            younger.acquireExclusive(LockTracer.NONE, NODE, 1);
+            assert false : "Expected younger client to die";
+        } catch(DeadlockDetectedException e) {
+            // Good
+        }
+
+        // But when the older client asks for a lock the younger one holds, then it waits for it
+        Thread waiter = new Thread(() -> older.acquireExclusive(LockTracer.NONE, NODE, 2));
+        waiter.start();
+        while(!isWaitingForLock(waiter)) {
+            Thread.yield();
+        }
+        younger.close();
+        waiter.join();
+        older.close();
+    }
+
+    @Test
+    public void testWoundWaitAbortsYoungerClientInTheWay() throws InterruptedException {
+        F2Locks locks = new F2Locks(new ResourceType[]{SCHEMA, NODE}, 4, new F2Options().withDeadlockDetection(DeadlockDetectionMode.WOUND_WAIT));
+        Locks.Client older = locks.newClient();
+        Locks.Client younger = locks.newClient();
+        AtomicBoolean youngerAborted = new AtomicBoolean();
+        older.acquireExclusive(LockTracer.NONE, NODE, 1);
+        younger.acquireExclusive(LockTracer.NONE, NODE, 2);
+
+        // Given the younger client is waiting for the older one, which it may
+        Thread waiter = new Thread(() -> {
+            try {
+                younger.acquireExclusive(LockTracer.NONE, NODE, 1);
+            } catch(DeadlockDetectedException e) {
+                youngerAborted.set(true);
+            } finally {
+                younger.close();
+            }
+        });
+        waiter.start();
+        while(!isWaitingForLock(waiter)) {
+            Thread.yield();
+        }
+
+        // When the older client asks for the lock the younger one holds, then the younger one is aborted
+        older.acquireExclusive(LockTracer.NONE, NODE, 2);
+        waiter.join();
+        assert youngerAborted.get();
+        older.close();
+    }
+
+    @Test
+    public void testWoundedClientFailsNextTimeItWaits() throws InterruptedException {
+        F2Locks locks = new F2Locks(new ResourceType[]{SCHEMA, NODE}, 4, new F2Options().withDeadlockDetection(DeadlockDetectionMode.WOUND_WAIT));
+        Locks.Client oldest = locks.newClient();
+        Locks.Client older = locks.newClient();
+        Locks.Client younger = locks.newClient();
+        oldest.acquireExclusive(LockTracer.NONE, NODE, 1);
+        younger.acquireExclusive(LockTracer.NONE, NODE, 2);
+
+        // Given the older client wounded the younger one, which isn't waiting for anything
+        Thread waiter = new Thread(() -> older.acquireExclusive(LockTracer.NONE, NODE, 2));
+        waiter.start();
+        while(!isWaitingForLock(waiter)) {
+            Thread.yield();
+        }
+
+        // Then the younger client may still take locks nobody holds, but fails once it would have to wait
+        younger.acquireExclusive(LockTracer.NONE, NODE, 3);
+        try {
+            younger.acquireExclusive(LockTracer.NONE, NODE, 1);
+            assert false : "Expected wounded client to fail";
+        } catch(DeadlockDetectedException e) {
+            // Good
+        }
+
+        younger.close();
+        waiter.join();
+        older.close();
+        oldest.close();
+    }
+
+    @Test
+    public void testWoundWaitUpgradeDoesNotWoundItself() throws InterruptedException {
+        F2Locks locks = new F2Locks(new ResourceType[]{SCHEMA, NODE}, 4, new F2Options().withDeadlockDetection(DeadlockDetectionMode.WOUND_WAIT));
+        Locks.Client upgrader = locks.newClient();
+        Locks.Client younger = locks.newClient();
+        Locks.Client youngest = locks.newClient();
+        AtomicReference<Throwable> upgraderFailure = new AtomicReference<>();
+        upgrader.acquireShared(LockTracer.NONE, NODE, 1);
+        younger.acquireShared(LockTracer.NONE, NODE, 1);
+        youngest.acquireExclusive(LockTracer.NONE, NODE, 2);
+
+        // Given a client upgrades its own shared lock, and waits for the younger client sharing it to let go
+        Thread waiter = new Thread(() -> {
+            try {
+                upgrader.acquireExclusive(LockTracer.NONE, NODE, 1);
+                // Waiting again, now for the youngest client, fails right away if we wounded ourselves before
+                upgrader.acquireExclusive(LockTracer.NONE, NODE, 2);
+            } catch(Throwable e) {
+                upgraderFailure.set(e);
+            }
+        });
+        waiter.start();
+        while(!isWaitingForLock(waiter)) {
+            Thread.yield();
+        }
+
+        // When the younger client lets go, and then the youngest one
+        younger.close();
+        while(waiter.isAlive() && !isWaitingFor((F2Client) upgrader, NODE, 2)) {
+            Thread.yield();
+        }
+        youngest.close();
+        waiter.join(30_000);
+
+        // Then the upgrader gets both locks, without being wounded for holding the lock it upgrades
+        assert !waiter.isAlive() : "Upgrader never got its locks";
+        assert upgraderFailure.get() == null : upgraderFailure.get();
+        upgrader.close();
+        locks.close();
+    }
+
+    @Test
+    public void testStoppedClientStopsWaitingRightAway() throws InterruptedException {
+        F2Locks locks = new F2Locks(new ResourceType[]{SCHEMA, NODE}, 4);
+        Locks.Client holder = locks.newClient();
+        Locks.Client stopped = locks.newClient();
+        Locks.Client behind = locks.newClient();
+        holder.acquireShared(LockTracer.NONE, NODE, 1);
+        stopped.acquireExclusive(LockTracer.NONE, NODE, 2);
+
+        // Given a client waits for a lock, with someone else queued up behind it
+        AtomicBoolean stoppedFailed = new AtomicBoolean();
+        Thread waiter = new Thread(() -> {
+            try {
+                stopped.acquireExclusive(LockTracer.NONE, NODE, 1);
+            } catch(LockClientStoppedException e) {
+                stoppedFailed.set(true);
+            }
+        });
+        waiter.start();
+        while(!isWaitingForLock(waiter)) {
+            Thread.yield();
+        }
+
+        // When it's stopped
+        long start = System.nanoTime();
+        stopped.stop();
+
+        // Then it fails without waiting for the holder, or for its deadlock check
+        waiter.join();
+        assert stoppedFailed.get() : "Expected stopped client to fail";
+        long waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assert waitedMillis < 500 : "Took " + waitedMillis + "ms to stop";
+
+        // And it's off the wait list, so those behind it can get on with it
+        assert behind.trySharedLock(NODE, 1);
+
+        // And it fails every acquire from now on, even ones that wouldn't have to wait
+        try {
+            stopped.acquireShared(LockTracer.NONE, NODE, 3);
+            assert false : "Expected stopped client to fail";
+        } catch(LockClientStoppedException e) {
+            // Good
+        }
+        try {
+            stopped.tryExclusiveLock(NODE, 3);
+            assert false : "Expected stopped client to fail";
+        } catch(LockClientStoppedException e) {
+            // Good
+        }
+
+        // But it keeps the locks it has until it's closed
+        assert !behind.tryExclusiveLock(NODE, 2);
+        stopped.close();
+        assert behind.tryExclusiveLock(NODE, 2);
+
+        holder.close();
+        behind.close();
+    }
+
+    @Test
+    public void testWaiterThatDoesNotLookForDeadlocksIsOnlyWokenByItsTimeout() throws InterruptedException {
+        for(DeadlockDetectionMode mode : new DeadlockDetectionMode[]{DeadlockDetectionMode.SWEEPER, DeadlockDetectionMode.WAIT_DIE}) {
+            CountingClock clock = new CountingClock();
+            F2Locks locks = new F2Locks(new ResourceType[]{SCHEMA, NODE}, 4, new F2Options()
+                    .withDeadlockDetection(mode)
+                    .withClock(clock)
+                    .withLockAcquisitionTimeoutMillis(1500));
+            // The waiter is the older of the two, so wait-die lets it wait
+            Locks.Client waiter = locks.newClient();
+            Locks.Client holder = locks.newClient();
+            holder.acquireExclusive(LockTracer.NONE, NODE, 1);
+
+            // Given a client waits for a lock, in a mode where waiters don't look for deadlocks themselves
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread waiterThread = new Thread(() -> {
+                try {
+                    waiter.acquireExclusive(LockTracer.NONE, NODE, 1);
+                } catch(Throwable e) {
+                    failure.set(e);
+                }
+            });
+            waiterThread.start();
+            while(!isWaitingForLock(waiterThread)) {
+                Thread.yield();
+            }
+            int clockReadsWhenParked = clock.reads.get();
+
+            // When it's been waiting for longer than waiters that look for deadlocks wait before they do
+            Thread.sleep(F2Client.CHECK_DEADLOCK_AFTER_MS + 200);
+
+            // Then it hasn't woken up to check anything
+            assert clock.reads.get() == clockReadsWhenParked : mode + ": waiter woke up before its timeout";
+
+            // And it's woken once its timeout passes
+            waiterThread.join(30_000);
+            assert !waiterThread.isAlive() : mode + ": waiter never timed out";
+            assert failure.get() instanceof AcquireLockTimeoutException : failure.get();
+
+            holder.close();
+            waiter.close();
+            locks.close();
+        }
+    }
+
+    @Test
+    public void testAcquireGivesUpOnceTimeoutPasses() throws InterruptedException {
+        F2Locks locks = new F2Locks(new ResourceType[]{SCHEMA, NODE}, 4, new F2Options().withLockAcquisitionTimeoutMillis(100));
+        Locks.Client holder = locks.newClient();
+        Locks.Client waiter = locks.newClient();
+        Locks.Client behind = locks.newClient();
+        holder.acquireExclusive(LockTracer.NONE, NODE, 1);
+
+        // When a client waits for longer than the timeout
+        long start = System.nanoTime();
+        try {
+            waiter.acquireExclusive(LockTracer.NONE, NODE, 1);
+            assert false : "Expected acquire to time out";
+        } catch(AcquireLockTimeoutException e) {
+            assert e.status() == Status.Transaction.LockAcquisitionTimeout : e.status();
+        }
+
+        // Then it gave up after the timeout, well before it would have looked for deadlocks
+        long waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assert waitedMillis >= 100 && waitedMillis < 900 : "Waited " + waitedMillis + "ms";
+
+        // And it's off the wait list
+        holder.releaseExclusive(NODE, 1);
+        assert behind.tryExclusiveLock(NODE, 1) : "Expected waiter to be off the wait list";
+        behind.releaseExclusive(NODE, 1);
+
+        // And it can carry on, and wait for grants like before
+        holder.acquireExclusive(LockTracer.NONE, NODE, 2);
+        Thread waiterThread = new Thread(() -> waiter.acquireShared(LockTracer.NONE, NODE, 2));
+        waiterThread.start();
+        while(!isWaitingForLock(waiterThread)) {
+            Thread.yield();
+        }
+        holder.close();
+        waiterThread.join();
+        assert !behind.tryExclusiveLock(NODE, 2);
+
+        waiter.close();
+        behind.close();
+    }
+
+    @Test
+    public void testClosedClientIsHandedOutAgainWithACleanSlate() throws InterruptedException {
+        F2Locks locks = new F2Locks(new ResourceType[]{SCHEMA, NODE}, 4);
+        Locks.Client holder = locks.newClient();
+
+        // Given a client that was stopped, with the permit that leaves on its latch, and then closed
+        Locks.Client first = locks.newClient();
+        int firstSessionId = first.getLockSessionId();
+        first.acquireExclusive(LockTracer.NONE, NODE, 1);
+        first.stop();
+        first.close();
+
+        // When the next client is handed out
+        Locks.Client second = locks.newClient();
+
+        // Then it's the same one, under a new session
+        assert second == first : "Expected closed client to be reused";
+        assert second.getLockSessionId() != firstSessionId;
+
+        // And it holds nothing, isn't stopped, and really waits for grants
+        assert holder.tryExclusiveLock(NODE, 1) : "Expected closed client to have released its locks";
+        Thread waiterThread = new Thread(() -> second.acquireShared(LockTracer.NONE, NODE, 1));
+        waiterThread.start();
+        while(!isWaitingForLock(waiterThread)) {
+            Thread.yield();
+        }
+        holder.releaseExclusive(NODE, 1);
+        waiterThread.join();
+        assert !holder.tryExclusiveLock(NODE, 1);
+
+        // And closing it twice doesn't get it handed out twice
+        second.close();
+        second.close();
+        assert locks.newClient() != locks.newClient();
+
+        holder.close();
+    }
+
+    @Test
+    public void testClientHoldingHugeNumberOfLocksBehavesTheSame() throws InterruptedException {
+        F2Locks locks = new F2Locks(new ResourceType[]{SCHEMA, NODE}, 4);
+        Locks.Client huge = locks.newClient();
+        Locks.Client other = locks.newClient();
+        Locks.Client third = locks.newClient();
+        int numLocks = F2ClientLocks.COMPACT_THRESHOLD * 2;
+
+        // Given a client holds far more locks than it keeps entries for, even ids exclusive and odd ones shared,
+        // the first half one at a time, the second half batched
+        for(long id = 0; id < numLocks / 2; id += 2) {
+            huge.acquireExclusive(LockTracer.NONE, NODE, id);
+            huge.acquireShared(LockTracer.NONE, NODE, id + 1);
+        }
+        for(long id = numLocks / 2; id < numLocks; id += 4) {
+            huge.acquireExclusive(LockTracer.NONE, NODE, id, id + 2);
+            huge.acquireShared(LockTracer.NONE, NODE, id + 1, id + 3);
+        }
+        long exclusive = numLocks - 2;
+        long shared = numLocks - 1;
+        huge.acquireExclusive(LockTracer.NONE, NODE, exclusive);
+
+        // Then it holds them all, each in the mode it asked for
+        assert huge.activeLockCount() == numLocks : huge.activeLockCount();
+        assert !other.tryExclusiveLock(NODE, exclusive);
+        assert !other.tryExclusiveLock(NODE, shared);
+        assert other.trySharedLock(NODE, shared);
+        other.releaseShared(NODE, shared);
+
+        // And someone waiting for one gets it once it's released as many times as it was acquired
+        Thread waiterThread = new Thread(() -> other.acquireExclusive(LockTracer.NONE, NODE, exclusive));
+        waiterThread.start();
+        while(!isWaitingForLock(waiterThread)) {
+            Thread.yield();
+        }
+        huge.releaseExclusive(NODE, exclusive);
+        assert !third.trySharedLock(NODE, exclusive) : "Expected re-entered lock to still be held";
+        huge.releaseExclusive(NODE, exclusive);
+        waiterThread.join();
+
+        // And shared locks can be upgraded
+        huge.acquireExclusive(LockTracer.NONE, NODE, shared);
+        assert !third.trySharedLock(NODE, shared);
+        huge.releaseExclusive(NODE, shared);
+        assert third.trySharedLock(NODE, shared);
+        third.releaseShared(NODE, shared);
+
+        // When it closes, everything is released
+        huge.close();
+        other.close();
+        for(long id = 0; id < numLocks; id++) {
+            assert third.tryExclusiveLock(NODE, id) : "Expected lock to have been released: " + id;
+        }
+        third.close();
+    }
+
     static class StubF2Partitions extends F2Partitions {
         StubF2Partition partition = new StubF2Partition();
 
@@ -125,6 +705,21 @@ public class F2Client_Test {
         void removeLock(ResourceType resourceType, long resourceId) {
 
         }
+
+        @Override
+        boolean tryAcquireThin(F2ClientEntry entry) {
+            return false;
+        }
+
+        @Override
+        boolean tryAcquireIdleExclusive(F2ClientEntry entry) {
+            return false;
+        }
+
+        @Override
+        boolean tryReleaseToIdle(F2ClientEntry entry) {
+            return false;
+        }
     }
 
     static class StubF2Lock extends F2Lock {
@@ -142,7 +737,7 @@ public class F2Client_Test {
         }
 
         @Override
-        ReleaseOutcome errorCleanup(F2ClientEntry entry) {
+        ReleaseOutcome errorCleanup(F2ClientEntry entry, F2Client releaser) {
             return this.nextCall("errorCleanup", entry);
         }
 
@@ -168,6 +763,37 @@ public class F2Client_Test {
         }
     }
 
+    /** True once the thread is parked waiting to be granted a lock, rather than on a partition lock or on its way */
+    /** Counts how often the time is read, which waiters do each time they wake up */
+    private static class CountingClock extends Clock {
+        final AtomicInteger reads = new AtomicInteger();
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Instant instant() {
+            reads.incrementAndGet();
+            return Instant.now();
+        }
+    }
+
+    static boolean isWaitingForLock(Thread thread) {
+        return LockSupport.getBlocker(thread) instanceof SingleWaiterLatch;
+    }
+
+    private static boolean isWaitingFor(F2Client client, ResourceType resourceType, long resourceId) {
+        F2ClientEntry waitsFor = client.waitsFor;
+        return waitsFor != null && waitsFor.resourceType == resourceType && waitsFor.resourceId == resourceId;
+    }
+
     static class Call {
         static Call call(String method, BiFunction<F2Lock, Object[], Object> behavior) {
             Call call = new Call();
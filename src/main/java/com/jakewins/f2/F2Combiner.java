@@ -0,0 +1,171 @@
+package com.jakewins.f2;
+
+import org.neo4j.storageengine.api.lock.ResourceType;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Flat combining for the critical sections of one partition, see {@link EngineMode#FLAT_COMBINING}.
+ *
+ * Rather than each client taking the partition lock in turn, clients publish what they want done in a request
+ * slot. Whoever manages to grab the partition lock becomes the combiner, and works through every pending request
+ * in one pass before letting go. This way the lock table, freelists and locks of a hot partition stay in the cache
+ * of the combining core, rather than bouncing between the cores of each client in turn.
+ */
+class F2Combiner {
+    /** Number of request slots per partition; power of two */
+    private static final int NUM_REQUESTS = 32;
+    /** Spins waiting for the combiner before we start yielding the CPU */
+    private static final int SPINS_BEFORE_YIELD = 64;
+
+    private static final int FREE = 0;
+    private static final int CLAIMED = 1;
+    private static final int PENDING = 2;
+    private static final int DONE = 3;
+
+    private static final int ACQUIRE = 0;
+    private static final int RELEASE = 1;
+
+    private static final AtomicIntegerFieldUpdater<Request> STATUS = AtomicIntegerFieldUpdater.newUpdater(Request.class, "status");
+
+    /** One request slot; written by the client owning it until it is PENDING, and by the combiner until it is DONE */
+    static class Request {
+        volatile int status = FREE;
+
+        int operation;
+
+        // Acquire arguments
+        F2Client owner;
+        AcquireMode acquireMode;
+        LockMode lockMode;
+        ResourceType resourceType;
+        long resourceId;
+
+        /** Entry to release, or for acquire, the entry the combiner created */
+        F2ClientEntry entry;
+
+        /** Outcome of acquire */
+        F2Lock.AcquireOutcome acquireOutcome;
+
+        /** Set if the combiner blew up working on this request */
+        Throwable error;
+
+        /** Hand the slot back, once the results have been read */
+        void free() {
+            owner = null;
+            resourceType = null;
+            entry = null;
+            acquireOutcome = null;
+            error = null;
+            status = FREE;
+        }
+    }
+
+    private final F2Partition partition;
+    private final Request[] requests = new Request[NUM_REQUESTS];
+
+    F2Combiner(F2Partition partition) {
+        this.partition = partition;
+        for(int i = 0; i < requests.length; i++) {
+            requests[i] = new Request();
+        }
+    }
+
+    /**
+     * Claim a free request slot.
+     * @param hint used to pick where to start looking, so that clients spread out over the slots
+     * @return a claimed slot, or null if all slots are busy, in which case the caller should take the partition
+     *         lock the regular way
+     */
+    Request claim(int hint) {
+        for(int i = 0; i < requests.length; i++) {
+            Request request = requests[(hint + i) & (requests.length - 1)];
+            if(request.status == FREE && STATUS.compareAndSet(request, FREE, CLAIMED)) {
+                return request;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Have the combiner run {@link F2Partition#acquire}; it creates the entry from the partition freelist, so
+     * look for it in {@link Request#entry} once this returns, alongside {@link Request#acquireOutcome}. If the
+     * outcome is NOT_ACQUIRED, the combiner has already disposed of the entry.
+     */
+    void acquire(Request request, F2Client owner, AcquireMode acquireMode, LockMode lockMode, ResourceType resourceType, long resourceId) {
+        request.operation = ACQUIRE;
+        request.owner = owner;
+        request.acquireMode = acquireMode;
+        request.lockMode = lockMode;
+        request.resourceType = resourceType;
+        request.resourceId = resourceId;
+        submit(request);
+    }
+
+    /**
+     * Have the combiner run {@link F2Partition#release} and return the entry to the partition freelist.
+     */
+    void release(Request request, F2ClientEntry entry) {
+        request.operation = RELEASE;
+        request.entry = entry;
+        submit(request);
+    }
+
+    private void submit(Request request) {
+        request.status = PENDING;
+
+        for(int spins = 0; request.status != DONE; spins++) {
+            if(partition.tryLock()) {
+                try {
+                    combine();
+                } finally {
+                    partition.unlock();
+                }
+            } else if(spins > SPINS_BEFORE_YIELD) {
+                Thread.yield();
+            }
+        }
+
+        if(request.error != null) {
+            Throwable error = request.error;
+            request.free();
+            if(error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            }
+            if(error instanceof Error) {
+                throw (Error) error;
+            }
+            throw new RuntimeException(error);
+        }
+    }
+
+    /**
+     * NOTE: Must hold partition lock
+     */
+    private void combine() {
+        for (Request request : requests) {
+            if (request.status != PENDING) {
+                continue;
+            }
+
+            try {
+                if (request.operation == ACQUIRE) {
+                    F2ClientEntry entry = partition.newClientEntry(request.owner, request.lockMode, request.resourceType, request.resourceId);
+                    request.acquireOutcome = partition.acquire(request.acquireMode, entry);
+                    if (request.acquireOutcome == F2Lock.AcquireOutcome.NOT_ACQUIRED) {
+                        partition.releaseClientEntry(entry);
+                        entry = null;
+                    }
+                    request.entry = entry;
+                } else {
+                    partition.release(request.entry);
+                    partition.releaseClientEntry(request.entry);
+                }
+            } catch (Throwable e) {
+                request.error = e;
+            }
+
+            request.status = DONE;
+        }
+    }
+}
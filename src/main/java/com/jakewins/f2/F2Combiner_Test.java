@@ -0,0 +1,63 @@
+package com.jakewins.f2;
+
+import org.junit.Test;
+
+import static com.jakewins.f2.DeadlockDetector_Test.NODE;
+import static com.jakewins.f2.F2Lock.AcquireOutcome.ACQUIRED;
+import static com.jakewins.f2.F2Lock.AcquireOutcome.NOT_ACQUIRED;
+
+public class F2Combiner_Test {
+    @Test
+    public void testAcquireAndReleaseViaCombiner() {
+        F2Partitions partitions = new F2Partitions(2, 1, EngineMode.FLAT_COMBINING);
+        F2Partition partition = partitions.getPartitionByIndex(0);
+        F2Combiner combiner = partition.combiner();
+        F2Client clientA = new F2Client(2, partitions, null);
+        F2Client clientB = new F2Client(2, partitions, null);
+
+        // When A acquires via the combiner
+        F2Combiner.Request request = combiner.claim(0);
+        combiner.acquire(request, clientA, AcquireMode.BLOCKING, LockMode.EXCLUSIVE, NODE, 1);
+        F2ClientEntry entry = request.entry;
+
+        // Then
+        assert request.acquireOutcome == ACQUIRED : request.acquireOutcome;
+        assert entry.owner == clientA;
+        request.free();
+
+        // And when B tries to grab the same resource without blocking, it's told no, and gets no entry back
+        request = combiner.claim(0);
+        combiner.acquire(request, clientB, AcquireMode.NONBLOCKING, LockMode.EXCLUSIVE, NODE, 1);
+        assert request.acquireOutcome == NOT_ACQUIRED : request.acquireOutcome;
+        assert request.entry == null;
+        request.free();
+
+        // And when A releases via the combiner, B can get the resource
+        request = combiner.claim(0);
+        combiner.release(request, entry);
+        request.free();
+
+        request = combiner.claim(0);
+        combiner.acquire(request, clientB, AcquireMode.NONBLOCKING, LockMode.EXCLUSIVE, NODE, 1);
+        assert request.acquireOutcome == ACQUIRED : request.acquireOutcome;
+        request.free();
+    }
+
+    @Test
+    public void testClaimFallsBackWhenAllSlotsAreBusy() {
+        F2Partitions partitions = new F2Partitions(2, 1, EngineMode.FLAT_COMBINING);
+        F2Combiner combiner = partitions.getPartitionByIndex(0).combiner();
+
+        // Given every slot is claimed
+        F2Combiner.Request request;
+        F2Combiner.Request first = combiner.claim(7);
+        while((request = combiner.claim(7)) != null) {
+            assert request != first;
+        }
+
+        // Then nothing more can be claimed until a slot is freed
+        assert combiner.claim(0) == null;
+        first.free();
+        assert combiner.claim(0) == first;
+    }
+}
@@ -1,12 +1,16 @@
 package com.jakewins.f2;
 
 import org.neo4j.graphdb.config.Setting;
+import org.neo4j.graphdb.factory.GraphDatabaseSettings;
 import org.neo4j.kernel.configuration.Config;
 import org.neo4j.kernel.configuration.Settings;
 import org.neo4j.kernel.impl.locking.Locks;
+import org.neo4j.logging.FormattedLogProvider;
+import org.neo4j.logging.Log;
 import org.neo4j.storageengine.api.lock.ResourceType;
 
 import java.time.Clock;
+import java.time.Duration;
 
 import static org.neo4j.kernel.configuration.Settings.setting;
 
@@ -16,6 +20,13 @@ import static org.neo4j.kernel.configuration.Settings.setting;
 public class F2Factory extends Locks.Factory {
 
     public static final Setting<Integer> numPartitions = setting( "unsupported.dbms.f2.partitions", Settings.INTEGER, "128" );
+    public static final Setting<EngineMode> engineMode = setting( "unsupported.dbms.f2.engine", Settings.options( EngineMode.class ), EngineMode.PARTITION_LOCK.name() );
+    public static final Setting<PartitionLockType> partitionLockType = setting( "unsupported.dbms.f2.partition_lock", Settings.options( PartitionLockType.class ), PartitionLockType.STAMPED.name() );
+    public static final Setting<DeadlockDetectionMode> deadlockDetection = setting( "unsupported.dbms.f2.deadlock_detection", Settings.options( DeadlockDetectionMode.class ), DeadlockDetectionMode.STOP_THE_WORLD.name() );
+    public static final Setting<Duration> deadlockSweepInterval = setting( "unsupported.dbms.f2.deadlock_sweep_interval", Settings.DURATION, "100ms" );
+    public static final Setting<DeadlockVictimPolicy> deadlockVictim = setting( "unsupported.dbms.f2.deadlock_victim", Settings.options( DeadlockVictimPolicy.class ), DeadlockVictimPolicy.DETECTOR.name() );
+    public static final Setting<Integer> lockOrderSampleInterval = setting( "unsupported.dbms.f2.lock_order_sample_interval", Settings.INTEGER, "0" );
+    public static final Setting<String> readerBiasedResources = setting( "unsupported.dbms.f2.reader_biased_resources", Settings.STRING, Settings.EMPTY );
 
     public F2Factory() {
         super("f2");
@@ -23,6 +34,51 @@ public class F2Factory extends Locks.Factory {
 
     @Override
     public Locks newInstance(Config config, Clock clocks, ResourceType[] resourceTypes) {
-        return new F2Locks(resourceTypes, config.get(numPartitions));
+        if(config.get(engineMode) == EngineMode.TWO_LEVEL && !config.get(partitionLockType).hasSharedMode()) {
+            throw new IllegalArgumentException(String.format("%s=%s needs a partition lock with a shared mode; %s=%s has none",
+                    engineMode.name(), EngineMode.TWO_LEVEL, partitionLockType.name(), config.get(partitionLockType)));
+        }
+        F2Locks locks = new F2Locks(resourceTypes, config.get(numPartitions), new F2Options()
+                .withEngineMode(config.get(engineMode))
+                .withPartitionLockType(config.get(partitionLockType))
+                .withDeadlockDetection(config.get(deadlockDetection))
+                .withDeadlockSweepIntervalMillis(config.get(deadlockSweepInterval).toMillis())
+                .withDeadlockVictimPolicy(config.get(deadlockVictim))
+                .withLockOrderSampleInterval(config.get(lockOrderSampleInterval))
+                .withClock(clocks)
+                .withLockAcquisitionTimeoutMillis(config.get(GraphDatabaseSettings.lock_acquisition_timeout).toMillis())
+                .withLog(userLog()));
+        for(String resource : config.get(readerBiasedResources).split(",")) {
+            if(resource.trim().isEmpty()) {
+                continue;
+            }
+            enableReaderBias(locks, resourceTypes, resource.trim());
+        }
+        return locks;
+    }
+
+    /**
+     * Neo4j doesn't hand lock managers a log service, so we log the way its user log, neo4j.log, does: Neo4j
+     * formatted, to standard out.
+     */
+    private static Log userLog() {
+        return FormattedLogProvider.toOutputStream(System.out).getLog(F2Locks.class);
+    }
+
+    /** @param resource resource type name and id, like SCHEMA:0 */
+    private static void enableReaderBias(F2Locks locks, ResourceType[] resourceTypes, String resource) {
+        int separator = resource.lastIndexOf(':');
+        if(separator == -1) {
+            throw new IllegalArgumentException(String.format("%s: expected <resource type>:<resource id>, got '%s'", readerBiasedResources.name(), resource));
+        }
+        String typeName = resource.substring(0, separator);
+        long resourceId = Long.parseLong(resource.substring(separator + 1));
+        for(ResourceType resourceType : resourceTypes) {
+            if(resourceType.name().equals(typeName)) {
+                locks.enableReaderBias(resourceType, resourceId);
+                return;
+            }
+        }
+        throw new IllegalArgumentException(String.format("%s: unknown resource type '%s'", readerBiasedResources.name(), typeName));
     }
 }
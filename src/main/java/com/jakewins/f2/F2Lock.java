@@ -3,6 +3,8 @@ package com.jakewins.f2;
 
 import org.neo4j.storageengine.api.lock.ResourceType;
 
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
 import static com.jakewins.f2.F2Lock.AcquireOutcome.ACQUIRED;
 import static com.jakewins.f2.F2Lock.AcquireOutcome.MUST_WAIT;
 import static com.jakewins.f2.F2Lock.AcquireOutcome.NOT_ACQUIRED;
@@ -20,6 +22,22 @@ class F2Lock {
         LOCK_IDLE
     }
 
+    /** Set in {@link #state} while the lock is held exclusively (or by an upgrade) */
+    static final long EXCLUSIVE_BIT = 1;
+    /** Set in {@link #state} while the wait list is non-empty */
+    static final long WAITERS_BIT = 1 << 1;
+    /** Set in {@link #state} while the lock is parked in its partitions idle lock cache, see {@link F2Partition#removeLock} */
+    static final long CACHED_BIT = 1 << 2;
+    /** Set in {@link #state} while someone is working on this lock without holding the partition write lock */
+    static final long LATCHED_BIT = 1 << 3;
+    /** The number of shared holders is stored in {@link #state} above this shift */
+    static final int SHARED_COUNT_SHIFT = 4;
+
+    /** Spins on {@link #latch()} before we start yielding the CPU to the latch holder */
+    private static final int LATCH_SPINS_BEFORE_YIELD = 64;
+
+    private static final AtomicLongFieldUpdater<F2Lock> STATE = AtomicLongFieldUpdater.newUpdater(F2Lock.class, "state");
+
     /** The type of resource this lock guards */
     ResourceType resourceType;
 
@@ -29,12 +47,39 @@ class F2Lock {
     /** Single entry of current exclusive holder */
     F2ClientEntry exclusiveHolder = null;
 
-    /** Linked list of holders of shared lock */
-    F2ClientEntry sharedHolderList = null;
+    /**
+     * Bitmap of the {@link F2ClientSlots} of clients holding this lock shared. Unlike a list of entries, this lets
+     * sharers come and go without touching each others entries. Grows to fit the highest slot seen; locks are
+     * recycled, so this settles at the number of concurrent clients.
+     */
+    long[] sharedHolders = new long[1];
 
-    /** Linked list of waiting holders */
+    /** Doubly linked list of waiting holders */
     F2ClientEntry waitList = null;
 
+    /** Last entry in {@link #waitList} */
+    F2ClientEntry waitListTail = null;
+
+    /**
+     * First and last EXCLUSIVE entries in {@link #waitList}, linked via {@link F2ClientEntry#nextExclusiveWaiter};
+     * this is where UPGRADE waiters are placed, see {@link #handleAcquireFailed}.
+     */
+    F2ClientEntry firstExclusiveWaiter = null;
+    F2ClientEntry lastExclusiveWaiter = null;
+
+    /** Number of bits set in {@link #sharedHolders} */
+    int sharedHolderCount = 0;
+
+    /**
+     * Packed summary of the fields above: exclusive bit, waiters bit, cached bit and shared holder count, plus the
+     * latch bit guarding the fields above when the partition write lock is not held.
+     *
+     * This is what lets the idle lock cache grab and release locks parked in it with a CAS while only holding the
+     * partition read lock, see {@link #tryAcquireIdleExclusive}. Anything holding the partition write lock may treat
+     * it as a plain field; see {@link #publishState()}.
+     */
+    volatile long state = 0;
+
     /** When on a freelist, next free lock after this one */
     F2Lock next;
 
@@ -42,7 +87,7 @@ class F2Lock {
      * Try to acquire this lock. If that's not currently possible, then acquireMode determines if the entry will be
      * added to the locks wait list or if we'll simply return.
      *
-     * NOTE: Must hold partition lock before calling
+     * NOTE: Must hold partition lock, or partition read lock and {@link #latch()}, before calling
      * @param acquireMode BLOCKING or NON_BLOCKING (eg. put on wait list or not if lock can't be acquired)
      * @param entry the client entry to add to the lock
      * @return the outcome; grabbed, not grabbed, or on wait list
@@ -50,30 +95,51 @@ class F2Lock {
     AcquireOutcome acquire(AcquireMode acquireMode, F2ClientEntry entry) {
         assert entry.owner.waitsFor == null : String.format("Client marked as waiting, cannot acquire: Client(%s).waitsFor = %s, acquiring=%s", entry.owner, entry.owner.waitsFor, entry);
 
+        AcquireOutcome outcome;
         if(entry.lockMode == LockMode.EXCLUSIVE) {
-            return acquireExclusive(acquireMode, entry);
+            outcome = acquireExclusive(acquireMode, entry);
         } else if(entry.lockMode == LockMode.SHARED) {
-            return acquireShared(acquireMode, entry);
+            outcome = acquireShared(acquireMode, entry);
         } else if(entry.lockMode == LockMode.UPGRADE) {
-            return acquireUpgrade(acquireMode, entry);
+            outcome = acquireUpgrade(acquireMode, entry);
         } else {
             throw new AssertionError(String.format("Unknown lock mode %s", entry.lockMode));
         }
+        publishState();
+        return outcome;
     }
 
     /**
-     * Release a lock held.
+     * Make the entry a shared holder on behalf of its owner, who is already holding the resource via
+     * {@link F2ReaderBias}; the owner may well be off waiting for some other lock meanwhile.
+     *
      * NOTE: Must hold partition lock before calling
+     */
+    void adoptSharedHolder(F2ClientEntry entry) {
+        assert exclusiveHolder == null : String.format("Reader held via bias while lock is exclusively held: %s, %s", entry, exclusiveHolder);
+        addSharedHolder(entry);
+
+        entry.lock = this;
+        publishState();
+    }
+
+    /**
+     * Release a lock held. Anyone granted the lock as a result is woken up by the entry owner later, once it has
+     * let go of the partition lock, see {@link F2Client#deferWakeup}.
+     * NOTE: Must hold partition lock, or partition read lock and {@link #latch()}, before calling
      * @param entry the client's entry with this lock
      */
     ReleaseOutcome release(F2ClientEntry entry) {
+        ReleaseOutcome outcome;
         if(entry.lockMode == LockMode.EXCLUSIVE || entry.lockMode == LockMode.UPGRADE) {
-            return releaseExclusiveOrUpgrade(entry);
+            outcome = releaseExclusiveOrUpgrade(entry);
         } else if(entry.lockMode == LockMode.SHARED) {
-            return releaseShared(entry);
+            outcome = releaseShared(entry);
         } else {
             throw new AssertionError(String.format("Unknown lock mode %s", entry.lockMode));
         }
+        publishState();
+        return outcome;
     }
 
     /**
@@ -82,34 +148,136 @@ class F2Lock {
      * whatever error occurred. Hence, either the client is on the wait list, or it's holding the lock,
      * and the end result should be that the given entry should be disassociated with the lock.
      *
+     * If the client was first in line, whoever was queued up behind it may be able to go now.
+     *
      * NOTE: The client may already hold a shared lock that it is upgrading! That share lock should remain in place.
      * NOTE: Must hold partition lock before calling
      * @param entry the lock entry to clear out
      */
     ReleaseOutcome errorCleanup(F2ClientEntry entry) {
+        return errorCleanup(entry, entry.owner);
+    }
+
+    /**
+     * @see #errorCleanup(F2ClientEntry)
+     * @param releaser who to queue up anyone granted the lock on, to be woken, see {@link F2Client#deferWakeup}
+     */
+    ReleaseOutcome errorCleanup(F2ClientEntry entry, F2Client releaser) {
         if(entry.lockMode == LockMode.EXCLUSIVE) {
             // Check that this entry hasn't been granted the lock
             if(exclusiveHolder == entry) {
                 return release(entry);
             }
-        } else {
-            // Check that this entry hasn't already been granted the shared lock
-            F2ClientEntry current = sharedHolderList;
-            while(current != null) {
-                if(current == entry) {
-                    // This entry holds a share lock; needs to cleanly release it
-                    return release(entry);
-                }
-            }
+        } else if(entry.owner.waitsFor != entry) {
+            // This entry was granted the lock after all; granting clears the owners waitsFor, and the owner can
+            // only wait for one thing at a time, so it needs to cleanly release it
+            return release(entry);
         }
+        boolean wasFirstInLine = waitList == entry;
         removeFromWaitList(entry);
         entry.owner.waitsFor = null;
-        if(exclusiveHolder == null && sharedHolderList == null) {
+        if(wasFirstInLine && exclusiveHolder == null) {
+            ReleaseOutcome outcome = grantLockToWaiters(releaser);
+            publishState();
+            return outcome;
+        }
+        publishState();
+        if(exclusiveHolder == null && sharedHolderCount == 0) {
             return LOCK_IDLE;
         }
         return LOCK_HELD;
     }
 
+    /**
+     * Take over from a thin lock, see {@link F2Partition#getOrCreateLock}; the thin holder becomes the first
+     * holder of this lock.
+     *
+     * NOTE: Must hold partition lock before calling
+     * @param thinHolder the single entry holding the thin lock, with a SHARED or EXCLUSIVE lock mode
+     */
+    void inflate(F2ClientEntry thinHolder) {
+        assert exclusiveHolder == null && sharedHolderCount == 0 && waitList == null : String.format("Inflating %s into a lock that is in use", thinHolder);
+
+        if(thinHolder.lockMode == LockMode.SHARED) {
+            addSharedHolder(thinHolder);
+        } else {
+            assert thinHolder.lockMode == LockMode.EXCLUSIVE : String.format("Thin locks are only SHARED or EXCLUSIVE: %s", thinHolder);
+            exclusiveHolder = thinHolder;
+        }
+        thinHolder.lock = this;
+
+        publishState();
+    }
+
+    /**
+     * Lock-free exclusive acquire; succeeds only if this lock is idle and parked in the partition idle lock cache, so
+     * there is nobody holding it and nobody waiting for it. Otherwise the caller must go via {@link #acquire}.
+     *
+     * There is no shared counterpart. Shared holders are tracked as a bit per client in {@link #sharedHolders}, and
+     * granting, deadlock detection and wound-wait all read that bitmap together with the wait list; a CAS on the
+     * holder count in {@link #state} can't record which client the lock was granted to, so a shared acquire needs
+     * the lock to itself, and takes the regular route.
+     *
+     * NOTE: Must hold at least partition read lock before calling
+     * @return true if the entry now holds this lock exclusively
+     */
+    boolean tryAcquireIdleExclusive(F2ClientEntry entry) {
+        // Grab the latch along with the lock, so nobody working under the latch sees the bit without the holder
+        if(state != CACHED_BIT || !STATE.compareAndSet(this, CACHED_BIT, CACHED_BIT | EXCLUSIVE_BIT | LATCHED_BIT)) {
+            return false;
+        }
+
+        exclusiveHolder = entry;
+        entry.lock = this;
+        state = CACHED_BIT | EXCLUSIVE_BIT;
+        return true;
+    }
+
+    /**
+     * Lock-free exclusive release; succeeds only if nobody has queued up behind the entry since it was granted,
+     * in which case the lock goes straight back to idle. Otherwise the caller must go via {@link #release}.
+     *
+     * NOTE: Must hold at least partition read lock before calling
+     * @return true if the lock was released
+     */
+    boolean tryReleaseToIdle(F2ClientEntry entry) {
+        if(exclusiveHolder != entry || !STATE.compareAndSet(this, CACHED_BIT | EXCLUSIVE_BIT, CACHED_BIT | EXCLUSIVE_BIT | LATCHED_BIT)) {
+            return false;
+        }
+
+        exclusiveHolder = null;
+        state = CACHED_BIT;
+        return true;
+    }
+
+    /**
+     * Take the latch guarding this lock, for when we're working on it while holding only the partition read lock,
+     * see {@link EngineMode#TWO_LEVEL}. Critical sections are a handful of pointer swaps, so we simply spin.
+     *
+     * NOTE: Must hold at least partition read lock before calling
+     */
+    void latch() {
+        for(int spins = 0;; spins++) {
+            long current = state;
+            if((current & LATCHED_BIT) == 0 && STATE.compareAndSet(this, current, current | LATCHED_BIT)) {
+                return;
+            }
+            if(spins > LATCH_SPINS_BEFORE_YIELD) {
+                Thread.yield();
+            }
+        }
+    }
+
+    void unlatch() {
+        // Only the latch holder may change the state while it's latched, no CAS needed
+        state = state & ~LATCHED_BIT;
+    }
+
+    /** NOTE: Must hold partition lock, or latch, before calling */
+    boolean isIdle() {
+        return exclusiveHolder == null && sharedHolderCount == 0 && waitList == null;
+    }
+
     @Override
     public String toString() {
         return "Lock(" + resourceType.name() +
@@ -121,16 +289,24 @@ class F2Lock {
             return handleAcquireFailed(entry, acquireMode);
         }
 
-        entry.next = sharedHolderList;
-        sharedHolderList = entry;
+        addSharedHolder(entry);
 
         entry.lock = this;
 
+        if(waitList != null && entry.owner.avoidsDeadlocks()) {
+            // Exclusive and upgrade waiters now wait for us as well
+            for(F2ClientEntry waiter = waitList; waiter != null; waiter = waiter.next) {
+                if(waiter.lockMode != LockMode.SHARED) {
+                    avoidDeadlock(waiter, entry.owner, false);
+                }
+            }
+        }
+
         return ACQUIRED;
     }
 
     private AcquireOutcome acquireExclusive(AcquireMode acquireMode, F2ClientEntry entry) {
-        if(exclusiveHolder != null || sharedHolderList != null) {
+        if(exclusiveHolder != null || sharedHolderCount > 0) {
             return handleAcquireFailed(entry, acquireMode);
         }
 
@@ -146,8 +322,7 @@ class F2Lock {
 
         // The upgrade can be granted immediately if the client asking for the upgrade is the only shared holder,
         // otherwise the client must wait for all other shared holders to drop out before it can upgrade.
-        // We can test for this rapidly by checking if there's at least one `next` entry:
-        if(sharedHolderList.next != null) {
+        if(sharedHolderCount > 1) {
             return handleAcquireFailed(entry, acquireMode);
         }
 
@@ -160,118 +335,178 @@ class F2Lock {
 
     private AcquireOutcome handleAcquireFailed(F2ClientEntry entry, AcquireMode mode) {
         if(mode == AcquireMode.BLOCKING) {
-            entry.next = null;
             entry.lock = this;
             entry.owner.waitsFor = entry;
 
-            // Find the right place in the wait list to add us to. In a naive fairness sense, this would always
-            // be at the end of the wait list. However, there are several classes of deadlocks that can be avoided
-            // if we allow some flexibility to fairness, see specific scenarios in the loop below.
-            F2ClientEntry waitListSpot = null, nextWaitListEntry;
-            for(nextWaitListEntry = waitList; nextWaitListEntry != null; ) {
-                if(entry.lockMode == LockMode.UPGRADE) {
-                    // Placing an upgrade lock behind an exclusive waiter will immediately deadlock, because
-                    // the UPGRADE client holds a share lock, blocking the EXCLUSIVE client, and the EXCLUSIVE
-                    // client will block the UPGRADE request. Avoid this by letting the UPGRADE to go ahead of the
-                    // EXCLUSIVE request.
-                    if(nextWaitListEntry.lockMode == LockMode.EXCLUSIVE) {
-                        break;
-                    }
-                }
+            // In a naive fairness sense, we'd always add to the end of the wait list. However, placing an upgrade
+            // lock behind an exclusive waiter will immediately deadlock, because the UPGRADE client holds a share
+            // lock, blocking the EXCLUSIVE client, and the EXCLUSIVE client will block the UPGRADE request. Avoid
+            // this by letting the UPGRADE go ahead of the first EXCLUSIVE request.
+            if(entry.lockMode == LockMode.UPGRADE && firstExclusiveWaiter != null) {
+                addToWaitListBefore(entry, firstExclusiveWaiter);
+            } else {
+                addToWaitListBefore(entry, null);
+            }
 
-                waitListSpot = nextWaitListEntry;
-                nextWaitListEntry = nextWaitListEntry.next;
+            // Two clients upgrading the same lock each hold it shared, and so each wait for the other to let go of
+            // it; that's a deadlock, and we know right here, no need to wait for the detector to find it
+            if(entry.lockMode == LockMode.UPGRADE) {
+                F2ClientEntry otherUpgrader = otherUpgradeWaiter(entry);
+                if(otherUpgrader != null) {
+                    entry.owner.deadlockedOnEnqueue = new DeadlockDescription(entry, otherUpgrader, entry);
+                }
             }
 
-            if(waitListSpot == null) {
-                entry.next = waitList;
-                waitList = entry;
-            } else {
-                entry.next = waitListSpot.next;
-                waitListSpot.next = entry;
+            if(entry.owner.avoidsDeadlocks()) {
+                if(entry.owner.deadlockedOnEnqueue == null) {
+                    avoidDeadlockOnEnqueue(entry);
+                }
+                return MUST_WAIT;
             }
+
+            // If nobody we're queued behind is waiting themselves, we can't be closing a wait-for cycle, and the
+            // client can hold off on deadlock detection until it's been waiting a while; otherwise it has a quick
+            // look for a cycle without stopping anything, see F2Client#probeForDeadlock
+            entry.owner.blockedByWaiter = isBlockedByWaiter(entry);
             return MUST_WAIT;
         }
         return NOT_ACQUIRED;
     }
 
+    /**
+     * See {@link DeadlockDetectionMode#WAIT_DIE} and {@link DeadlockDetectionMode#WOUND_WAIT}; go through everyone
+     * a new waiter is blocked by, the holders it conflicts with and the waiters ahead of it, and make sure it only
+     * waits for younger clients, or only older clients wait for it.
+     *
+     * NOTE: Must hold partition lock, or latch, before calling
+     */
+    private void avoidDeadlockOnEnqueue(F2ClientEntry waiter) {
+        F2Client client = waiter.owner;
+        if(exclusiveHolder != null && !avoidDeadlock(waiter, exclusiveHolder.owner, true)) {
+            return;
+        }
+        if(waiter.lockMode != LockMode.SHARED) {
+            F2ClientSlots clientSlots = client.partitions().clientSlots();
+            for(int slot = nextSharedHolder(0); slot != -1; slot = nextSharedHolder(slot + 1)) {
+                F2Client holder = clientSlots.client(slot);
+                if(!avoidDeadlock(waiter, holder, true)) {
+                    return;
+                }
+            }
+        }
+        for(F2ClientEntry ahead = waiter.prev; ahead != null; ahead = ahead.prev) {
+            if(!avoidDeadlock(waiter, ahead.owner, true)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * The waiter is about to wait for the blocker; with wait-die, the waiter fails if it is the younger of the two,
+     * with wound-wait, the blocker is wounded if it is. A client never blocks itself; an upgrader is a shared holder
+     * of the lock it waits for, and must not wound or fail itself for it.
+     *
+     * @param enqueueing true if the waiter is being put on the wait list right now, false if it's already waiting
+     * @return false if the waiter has been told to fail, and there's no need to look at anyone else it waits for
+     */
+    private boolean avoidDeadlock(F2ClientEntry waiter, F2Client blocker, boolean enqueueing) {
+        if(blocker == waiter.owner) {
+            return true;
+        }
+        boolean waiterIsOlder = waiter.owner.timestamp() < blocker.timestamp();
+        if(waiter.owner.deadlockDetectionMode() == DeadlockDetectionMode.WAIT_DIE) {
+            if(waiterIsOlder) {
+                return true;
+            }
+            if(enqueueing) {
+                // It'll take itself back off the wait list before it ever parks
+                waiter.owner.deadlockedOnEnqueue = new AvoidedDeadlockDescription(waiter, blocker, true);
+            } else {
+                waiter.owner.wound(new AvoidedDeadlockDescription(waiter, blocker, true));
+            }
+            return false;
+        }
+
+        if(waiterIsOlder) {
+            blocker.wound(new AvoidedDeadlockDescription(waiter, blocker, false));
+        }
+        return true;
+    }
+
+    /**
+     * Upgrade waiters always go ahead of the exclusive waiters, so we only need to look at the front of the list
+     * @return an UPGRADE entry on the wait list other than the given one, or null
+     */
+    private F2ClientEntry otherUpgradeWaiter(F2ClientEntry upgrader) {
+        for(F2ClientEntry waiter = waitList; waiter != null && waiter != firstExclusiveWaiter; waiter = waiter.next) {
+            if(waiter != upgrader && waiter.lockMode == LockMode.UPGRADE) {
+                return waiter;
+            }
+        }
+        return null;
+    }
+
     private ReleaseOutcome releaseExclusiveOrUpgrade(F2ClientEntry entry) {
         assert exclusiveHolder == entry : String.format("%s releasing exclusive lock held by %s.", entry, exclusiveHolder);
 
         exclusiveHolder = null;
 
-        return grantLockToWaiters();
+        return grantLockToWaiters(entry.owner);
     }
 
     private ReleaseOutcome releaseShared(F2ClientEntry entry) {
-        if(sharedHolderList == entry) {
-            sharedHolderList = entry.next;
-        } else {
-            for(F2ClientEntry current = sharedHolderList; current.next != null; current = current.next) {
-                if(current.next == entry) {
-                    current.next = entry.next;
-                    break;
-                }
-            }
-        }
-
-        entry.next = null;
+        removeSharedHolder(entry);
 
         // Null check on exclusive holder because we may be releasing just shared portion of upgrade lock
-        if(exclusiveHolder == null && (sharedHolderList == null || canGrantUpgradeLock())) {
-            return grantLockToWaiters();
+        if(exclusiveHolder == null && (sharedHolderCount == 0 || canGrantUpgradeLock())) {
+            return grantLockToWaiters(entry.owner);
         }
         return LOCK_HELD;
     }
 
     /**
      * Hand the lock over to whoever is waiting for the lock; possibly many waiters if there's a list of clients
-     * that all want a shared lock.
+     * that all want a shared lock. Waiters are not woken here, see {@link F2Client#deferWakeup}.
+     * @param releaser the client releasing the lock, who will wake the waiters once it's out of the partition lock
      * @return LOCK_IDLE if nobody holds the lock, or LOCK_HELD if there's at least one lock holder
      */
-    private ReleaseOutcome grantLockToWaiters() {
+    private ReleaseOutcome grantLockToWaiters(F2Client releaser) {
         // Note that, in the case of releasing an upgrade lock, client may still hold a shared lock
 
         F2ClientEntry nextWaiter;
-        ReleaseOutcome outcome = sharedHolderList == null ? LOCK_IDLE : LOCK_HELD;
+        ReleaseOutcome outcome = sharedHolderCount == 0 ? LOCK_IDLE : LOCK_HELD;
         for(;;) {
             nextWaiter = waitList;
             if(nextWaiter == null) {
                 return outcome;
             }
             if(nextWaiter.lockMode == LockMode.EXCLUSIVE) {
-                if(sharedHolderList != null) {
+                if(sharedHolderCount > 0) {
                     // Looks like we've already handed out shared locks, so this exclusive needs to keep waiting
                     return outcome;
                 }
 
                 // Mark as exclusive owner
                 exclusiveHolder = nextWaiter;
-
-                // Remove from wait list
-                waitList = nextWaiter.next;
-                nextWaiter.next = null;
+                removeFromWaitList(nextWaiter);
 
                 // Signal the waiting client
                 nextWaiter.owner.waitsFor = null;
-                nextWaiter.owner.latch.release();
+                releaser.deferWakeup(nextWaiter.owner);
                 return LOCK_HELD;
             } else if(nextWaiter.lockMode == LockMode.SHARED){
                 // Highlight that the lock has at least one new holder
                 outcome = LOCK_HELD;
 
-                // Remove from wait list
-                waitList = nextWaiter.next;
-
-                // Add to shared list
-                nextWaiter.next = sharedHolderList;
-                sharedHolderList = nextWaiter;
+                // Move from wait list to shared list
+                removeFromWaitList(nextWaiter);
+                addSharedHolder(nextWaiter);
 
                 // Signal the waiting client
                 nextWaiter.owner.waitsFor = null;
-                nextWaiter.owner.latch.release();
+                releaser.deferWakeup(nextWaiter.owner);
             } else if(nextWaiter.lockMode == LockMode.UPGRADE) {
-                if(sharedHolderList != null && sharedHolderList.next != null) {
+                if(sharedHolderCount > 1) {
                     // There's at least two shared holders; can't grant upgrade until all but the one held by the
                     // upgrader remains.
                     return outcome;
@@ -279,40 +514,175 @@ class F2Lock {
 
                 // Mark as exclusive owner
                 exclusiveHolder = nextWaiter;
-
-                // Remove from wait list
-                waitList = nextWaiter.next;
-                nextWaiter.next = null;
+                removeFromWaitList(nextWaiter);
 
                 // Signal the waiting client
                 nextWaiter.owner.waitsFor = null;
-                nextWaiter.owner.latch.release();
+                releaser.deferWakeup(nextWaiter.owner);
             } else {
                 throw new AssertionError(String.format("Unknown lock mode: %s", nextWaiter));
             }
         }
     }
 
+    /**
+     * Is any holder blocking the given waiter itself waiting for a lock? Holders may be waiting on locks in other
+     * partitions, so this is a hint, not a guarantee; see {@link F2Client#blockedByWaiter}.
+     *
+     * NOTE: Must hold partition lock, or latch, before calling
+     */
+    boolean isBlockedByWaiter(F2ClientEntry waiter) {
+        if(exclusiveHolder != null && exclusiveHolder.owner != waiter.owner && exclusiveHolder.owner.waitsFor != null) {
+            return true;
+        }
+        if(waiter.lockMode == LockMode.SHARED && waiter.prev == null) {
+            // Shared waiters are only blocked by the exclusive holder, unless they are queued behind someone who
+            // may be blocked by the shared holders
+            return false;
+        }
+        F2ClientSlots clientSlots = waiter.owner.partitions().clientSlots();
+        for(int slot = nextSharedHolder(0); slot != -1; slot = nextSharedHolder(slot + 1)) {
+            F2Client holder = clientSlots.client(slot);
+            if(holder != waiter.owner && holder.waitsFor != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** NOTE: Must hold partition lock, or latch, before calling */
+    boolean isHeldSharedBy(F2Client client) {
+        int slot = client.slot();
+        int word = slot >>> 6;
+        return word < sharedHolders.length && (sharedHolders[word] & (1L << slot)) != 0;
+    }
+
+    /**
+     * Iterate over shared holders, like so:
+     * <pre>
+     *     for(int slot = lock.nextSharedHolder(0); slot != -1; slot = lock.nextSharedHolder(slot + 1)) {
+     *         F2Client holder = partitions.clientSlots().client(slot);
+     *     }
+     * </pre>
+     * NOTE: Must hold partition lock, or latch, before calling
+     * @return the first client slot from the given one and up holding this lock shared, or -1 if there's none
+     */
+    int nextSharedHolder(int fromSlot) {
+        int word = fromSlot >>> 6;
+        if(word >= sharedHolders.length) {
+            return -1;
+        }
+        long bits = sharedHolders[word] & (-1L << fromSlot);
+        for(;;) {
+            if(bits != 0) {
+                return (word << 6) + Long.numberOfTrailingZeros(bits);
+            }
+            if(++word == sharedHolders.length) {
+                return -1;
+            }
+            bits = sharedHolders[word];
+        }
+    }
+
+    private void addSharedHolder(F2ClientEntry entry) {
+        int slot = entry.owner.slot();
+        int word = slot >>> 6;
+        if(word >= sharedHolders.length) {
+            long[] grown = new long[Math.max(word + 1, sharedHolders.length * 2)];
+            System.arraycopy(sharedHolders, 0, grown, 0, sharedHolders.length);
+            sharedHolders = grown;
+        }
+        assert (sharedHolders[word] & (1L << slot)) == 0 : String.format("%s already holds shared lock %s.", entry.owner, this);
+        sharedHolders[word] |= 1L << slot;
+        sharedHolderCount++;
+    }
+
+    private void removeSharedHolder(F2ClientEntry entry) {
+        assert isHeldSharedBy(entry.owner) : String.format("%s releasing shared lock it does not hold.", entry);
+        int slot = entry.owner.slot();
+        sharedHolders[slot >>> 6] &= ~(1L << slot);
+        sharedHolderCount--;
+    }
+
+    /**
+     * Add the entry to the wait list, right before the given waiter, or at the end of the list if that's null.
+     */
+    private void addToWaitListBefore(F2ClientEntry entry, F2ClientEntry before) {
+        entry.next = before;
+        entry.prev = before == null ? waitListTail : before.prev;
+        if(entry.prev == null) {
+            waitList = entry;
+        } else {
+            entry.prev.next = entry;
+        }
+        if(before == null) {
+            waitListTail = entry;
+        } else {
+            before.prev = entry;
+        }
+
+        if(entry.lockMode == LockMode.EXCLUSIVE) {
+            // Only UPGRADE waiters skip ahead, so exclusive waiters are always added last of their kind
+            assert before == null : "EXCLUSIVE waiters go at the end of the wait list.";
+            entry.nextExclusiveWaiter = null;
+            entry.prevExclusiveWaiter = lastExclusiveWaiter;
+            if(lastExclusiveWaiter == null) {
+                firstExclusiveWaiter = entry;
+            } else {
+                lastExclusiveWaiter.nextExclusiveWaiter = entry;
+            }
+            lastExclusiveWaiter = entry;
+        }
+    }
+
     private void removeFromWaitList(F2ClientEntry entry) {
-        F2ClientEntry prev = null;
-        for(F2ClientEntry current = waitList; current != null; ) {
-            if(current == entry) {
-                // Found our entry; remove it from wait list
-                if(prev == null) {
-                    waitList = entry.next;
-                } else {
-                    prev.next = entry.next;
-                }
-                return;
+        assert entry.prev != null || waitList == entry : "Asked to remove client from wait list, but client was not on it.";
+
+        if(entry.prev == null) {
+            waitList = entry.next;
+        } else {
+            entry.prev.next = entry.next;
+        }
+        if(entry.next == null) {
+            waitListTail = entry.prev;
+        } else {
+            entry.next.prev = entry.prev;
+        }
+        entry.next = null;
+        entry.prev = null;
+
+        if(entry.lockMode == LockMode.EXCLUSIVE) {
+            if(entry.prevExclusiveWaiter == null) {
+                firstExclusiveWaiter = entry.nextExclusiveWaiter;
+            } else {
+                entry.prevExclusiveWaiter.nextExclusiveWaiter = entry.nextExclusiveWaiter;
             }
-            prev = current;
-            current = current.next;
+            if(entry.nextExclusiveWaiter == null) {
+                lastExclusiveWaiter = entry.prevExclusiveWaiter;
+            } else {
+                entry.nextExclusiveWaiter.prevExclusiveWaiter = entry.prevExclusiveWaiter;
+            }
+            entry.nextExclusiveWaiter = null;
+            entry.prevExclusiveWaiter = null;
         }
+    }
 
-        assert false : "Asked to removeLock client from wait list, but client was not on it.";
+    /**
+     * Bring {@link #state} in line with the holder and wait lists, keeping the cached and latched bits as they are.
+     * NOTE: Must hold partition lock, or latch, before calling
+     */
+    private void publishState() {
+        long newState = (state & (CACHED_BIT | LATCHED_BIT)) | ((long) sharedHolderCount << SHARED_COUNT_SHIFT);
+        if(exclusiveHolder != null) {
+            newState |= EXCLUSIVE_BIT;
+        }
+        if(waitList != null) {
+            newState |= WAITERS_BIT;
+        }
+        state = newState;
     }
 
     private boolean canGrantUpgradeLock() {
-        return sharedHolderList.next == null && waitList != null && waitList.lockMode == LockMode.UPGRADE;
+        return sharedHolderCount == 1 && waitList != null && waitList.lockMode == LockMode.UPGRADE;
     }
 }
@@ -6,6 +6,7 @@ import org.junit.Test;
 import java.math.BigInteger;
 import java.util.Iterator;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -20,6 +21,9 @@ import static com.jakewins.f2.LockMode.UPGRADE;
 import static java.util.Arrays.asList;
 
 public class F2Lock_Test {
+    /** Lock manager the clients made here belong to; it's never locked, only there to hand out client slots */
+    static final F2Partitions PARTITIONS = new F2Partitions(1, 1);
+
     @Test
     public void testExclusiveBasics() {
         // Given no holders..
@@ -107,6 +111,78 @@ public class F2Lock_Test {
                         waitListIs(clientAUpgradeLock, clientCExclusiveLock)));
     }
 
+    @Test
+    public void testUpgradeGoesAheadOfNextExclusiveWaiterOnceFirstOneLeaves() {
+        F2Client clientA = newClient("A");
+        F2ClientEntry clientASharedLock = newEntry(clientA, SHARED);
+        F2ClientEntry clientAUpgradeLock = newEntry(clientA, UPGRADE);
+        F2ClientEntry clientBSharedLock = newEntry(newClient("B"), SHARED);
+        F2ClientEntry clientCExclusiveLock = newEntry(newClient("C"), EXCLUSIVE);
+        F2ClientEntry clientDExclusiveLock = newEntry(newClient("D"), EXCLUSIVE);
+
+        test(
+                given(
+                        acquireShared(clientASharedLock),
+                        acquireShared(clientBSharedLock),
+                        acquireExclusive(clientCExclusiveLock),
+                        acquireExclusive(clientDExclusiveLock),
+                        errorCleanup(clientCExclusiveLock)), // Eg. C was picked as a deadlock victim
+                when(
+                        acquireUpgrade(clientAUpgradeLock)),
+                then(
+                        noExclusiveHolder,
+                        lockIsHeldSharedBy(clientBSharedLock, clientASharedLock),
+                        waitListIs(clientAUpgradeLock, clientDExclusiveLock)));
+    }
+
+    @Test
+    public void testReleasingSharedHolderFromMiddleOfHolderList() {
+        F2ClientEntry clientASharedLock = newEntry(newClient("A"), SHARED);
+        F2ClientEntry clientBSharedLock = newEntry(newClient("B"), SHARED);
+        F2ClientEntry clientCSharedLock = newEntry(newClient("C"), SHARED);
+
+        test(
+                given(
+                        acquireShared(clientASharedLock),
+                        acquireShared(clientBSharedLock),
+                        acquireShared(clientCSharedLock)),
+                when(
+                        release(clientBSharedLock)),
+                then(
+                        noExclusiveHolder,
+                        lockIsHeldSharedBy(clientCSharedLock, clientASharedLock),
+                        waitListIsEmpty));
+    }
+
+    @Test
+    public void testManySharedHolders() {
+        F2Lock lock = newLock(0);
+        F2ClientEntry[] holders = new F2ClientEntry[200];
+        for(int i = 0; i < holders.length; i++) {
+            holders[i] = newEntry(newClient(), SHARED);
+            assert lock.acquire(BLOCKING, holders[i]) == ACQUIRED;
+        }
+
+        // When every other holder lets go
+        for(int i = 0; i < holders.length; i += 2) {
+            lock.release(holders[i]);
+        }
+
+        // Then the remaining ones are exactly the holders we see
+        int seen = 0;
+        for(int slot = lock.nextSharedHolder(0); slot != -1; slot = lock.nextSharedHolder(slot + 1)) {
+            F2Client holder = PARTITIONS.clientSlots().client(slot);
+            assert holder.slot() == slot;
+            assert lock.isHeldSharedBy(holder);
+            seen++;
+        }
+        assert seen == holders.length / 2 : "Expected " + holders.length / 2 + " holders, found " + seen;
+        assert lock.sharedHolderCount == seen;
+        for(int i = 0; i < holders.length; i++) {
+            assert lock.isHeldSharedBy(holders[i].owner) == (i % 2 == 1);
+        }
+    }
+
     @Test
     public void testReleasingSharedThatBlocksUpgradeGrantsUpgrade() {
         F2Client clientA = newClient("A");
@@ -218,6 +294,96 @@ public class F2Lock_Test {
                 then(noSharedHolders));
     }
 
+    @Test
+    public void testInflateSharedThinLock() {
+        F2ClientEntry clientASharedLock = newEntry(newClient("A"), SHARED);
+        F2ClientEntry clientBExclusiveLock = newEntry(newClient("B"), EXCLUSIVE);
+
+        test(
+                given(
+                        inflate(clientASharedLock)),
+                when(
+                        acquireExclusive(clientBExclusiveLock)),
+                then(
+                        noExclusiveHolder,
+                        lockIsHeldSharedBy(clientASharedLock),
+                        waitListIs(clientBExclusiveLock)));
+    }
+
+    @Test
+    public void testInflateExclusiveThinLock() {
+        F2ClientEntry clientAExclusiveLock = newEntry(newClient("A"), EXCLUSIVE);
+        F2ClientEntry clientBSharedLock = newEntry(newClient("B"), SHARED);
+
+        test(
+                given(
+                        inflate(clientAExclusiveLock)),
+                when(
+                        acquireShared(clientBSharedLock)),
+                then(
+                        lockIsHeldExclusivelyBy(clientAExclusiveLock),
+                        noSharedHolders,
+                        waitListIs(clientBSharedLock)));
+    }
+
+    @Test
+    public void testIdleAcquireGrabsCachedLock() {
+        F2Lock lock = newLock(0);
+        lock.state = F2Lock.CACHED_BIT;
+        F2ClientEntry clientAExclusiveLock = newEntry(newClient("A"), EXCLUSIVE);
+
+        assert lock.tryAcquireIdleExclusive(clientAExclusiveLock) : "Expected idle lock to be grabbed";
+
+        lockIsHeldExclusivelyBy(clientAExclusiveLock).accept(lock);
+        assert lock.state == (F2Lock.CACHED_BIT | F2Lock.EXCLUSIVE_BIT) : "Unexpected state " + lock.state;
+    }
+
+    @Test
+    public void testIdleAcquireDoesNotGrabHeldOrUncachedLock() {
+        F2Lock uncached = newLock(0);
+        assert !uncached.tryAcquireIdleExclusive(newEntry(newClient("A"), EXCLUSIVE)) : "Only cached locks can be grabbed";
+
+        F2Lock shared = newLock(1);
+        shared.state = F2Lock.CACHED_BIT;
+        shared.acquire(BLOCKING, newEntry(newClient("B"), SHARED));
+        assert !shared.tryAcquireIdleExclusive(newEntry(newClient("C"), EXCLUSIVE)) : "Lock is held by a sharer";
+    }
+
+    @Test
+    public void testReleaseToIdleDefersToSlowPathWhenSomeoneIsWaiting() {
+        F2Lock lock = newLock(0);
+        lock.state = F2Lock.CACHED_BIT;
+        F2ClientEntry clientAExclusiveLock = newEntry(newClient("A"), EXCLUSIVE);
+        F2ClientEntry clientBExclusiveLock = newEntry(newClient("B"), EXCLUSIVE);
+
+        lock.tryAcquireIdleExclusive(clientAExclusiveLock);
+        assert lock.acquire(BLOCKING, clientBExclusiveLock) == MUST_WAIT;
+
+        assert !lock.tryReleaseToIdle(clientAExclusiveLock) : "Waiter must be granted via slow path";
+
+        lock.release(clientAExclusiveLock);
+        lockIsHeldExclusivelyBy(clientBExclusiveLock).accept(lock);
+        waitListIsEmpty.accept(lock);
+        assert lock.tryReleaseToIdle(clientBExclusiveLock) : "Nobody is waiting, release to idle should work";
+        assert lock.state == F2Lock.CACHED_BIT : "Unexpected state " + lock.state;
+    }
+
+    @Test
+    public void testIdleLockCacheStaysOutWhileLatched() {
+        F2Lock lock = newLock(0);
+        lock.state = F2Lock.CACHED_BIT;
+        F2ClientEntry clientASharedLock = newEntry(newClient("A"), SHARED);
+
+        lock.latch();
+        assert !lock.tryAcquireIdleExclusive(newEntry(newClient("B"), EXCLUSIVE)) : "Lock is latched";
+        lock.acquire(BLOCKING, clientASharedLock);
+        assert (lock.state & F2Lock.LATCHED_BIT) != 0 : "Changing the lock should not drop the latch";
+        lock.unlatch();
+
+        lockIsHeldSharedBy(clientASharedLock).accept(lock);
+        assert lock.state == (F2Lock.CACHED_BIT | (1L << F2Lock.SHARED_COUNT_SHIFT)) : "Unexpected state " + lock.state;
+    }
+
     private void test(Function<F2Lock, AcquireOutcome> actionUnderTest, AcquireOutcome expectedOutcome) {
         test(noSetup, actionUnderTest, expectedOutcome, noAssertions);
     }
@@ -297,6 +463,13 @@ public class F2Lock_Test {
     }
 
     // OTHER
+    private static Function<F2Lock, AcquireOutcome> inflate(F2ClientEntry thinHolder) {
+        return (l) -> {
+            l.inflate(thinHolder);
+            return null;
+        };
+    }
+
     private static Function<F2Lock, AcquireOutcome> release(F2ClientEntry entry) {
         return (l) -> {
             l.release(entry);
@@ -304,6 +477,13 @@ public class F2Lock_Test {
         };
     }
 
+    private static Function<F2Lock, AcquireOutcome> errorCleanup(F2ClientEntry entry) {
+        return (l) -> {
+            l.errorCleanup(entry);
+            return null;
+        };
+    }
+
     private static Consumer<F2Lock> given(Function<F2Lock, AcquireOutcome> ... actions) {
         return lock -> asList(actions).forEach(a -> a.apply(lock));
     }
@@ -338,32 +518,92 @@ public class F2Lock_Test {
 
 
     private static Consumer<F2Lock> noExclusiveHolder = (lock) -> { assert lock.exclusiveHolder == null : "There should be no exclusive holder, found " + lock.exclusiveHolder; };
-    private static Consumer<F2Lock> noSharedHolders = (lock) -> { assert lock.sharedHolderList == null : "There should be shared holder, found " + lock.sharedHolderList; };
+    private static Consumer<F2Lock> noSharedHolders = (lock) -> { assert lock.sharedHolderCount == 0 : "There should be no shared holders, found " + lock.sharedHolderCount; };
     private static Consumer<F2Lock> lockIsHeldExclusivelyBy(F2ClientEntry holder) {
         return (lock) -> { assert lock.exclusiveHolder == holder : "Lock should be held by " + holder; };
     }
     private static Consumer<F2Lock> lockIsHeldSharedBy(F2ClientEntry ... holders) {
         return (lock) -> {
-            Iterator<F2ClientEntry> nextExpected = asList(holders).iterator();
-            F2ClientEntry current = lock.sharedHolderList;
-            while(current != null) {
-                assert nextExpected.hasNext() : "There are more holders of the shared lock than expected, first additional: " + current;
-
-                F2ClientEntry expected = nextExpected.next();
-                assert current == expected: "Expected " + expected + " to be next holder of shared lock, but found " + current;
-
-                current = current.next;
+            for(F2ClientEntry expected : holders) {
+                assert lock.isHeldSharedBy(expected.owner) : "Expected " + expected + " to hold shared lock.";
+                assert expected.lock == lock : "Expected " + expected + " to point to the lock it holds.";
             }
-            assert !nextExpected.hasNext() : "Expected " + nextExpected.next() + " to hold shared lock.";
+            assert lock.sharedHolderCount == holders.length : "There are " + lock.sharedHolderCount + " holders of the shared lock, expected " + holders.length;
         };
     }
     private static Consumer<F2Lock> noCurrentHolderIsWaiting = (lock) -> {
         assert lock.exclusiveHolder == null || lock.exclusiveHolder.owner.waitsFor == null : "Exclusive holder should not be marked as waiting: " + lock.exclusiveHolder.owner + " waitsFor " + lock.exclusiveHolder.owner.waitsFor;
-        for(F2ClientEntry shared = lock.sharedHolderList; shared != null; shared = shared.next) {
-            assert shared.owner.waitsFor == null : "Shared holder should not be marked as waiting: " + shared.owner + " waitsFor " + shared.owner.waitsFor;
+        for(int slot = lock.nextSharedHolder(0); slot != -1; slot = lock.nextSharedHolder(slot + 1)) {
+            F2Client shared = PARTITIONS.clientSlots().client(slot);
+            assert shared.waitsFor == null : "Shared holder should not be marked as waiting: " + shared + " waitsFor " + shared.waitsFor;
         }
     };
 
+    @Test
+    public void testGrantedWaitersAreWokenByReleaserAfterwards() throws InterruptedException {
+        F2Client clientA = newClient("A");
+        F2Client clientB = newClient("B");
+        F2Client clientC = newClient("C");
+        F2Lock lock = newLock(0);
+        F2ClientEntry clientAExclusiveLock = newEntry(clientA, EXCLUSIVE);
+
+        // Given two clients waiting for an exclusively held lock
+        assert lock.acquire(BLOCKING, clientAExclusiveLock) == ACQUIRED;
+        assert lock.acquire(BLOCKING, newEntry(clientB, SHARED)) == MUST_WAIT;
+        assert lock.acquire(BLOCKING, newEntry(clientC, SHARED)) == MUST_WAIT;
+
+        // When the holder releases, both waiters are granted the lock, but not yet woken
+        lock.release(clientAExclusiveLock);
+        assert clientB.waitsFor == null && clientC.waitsFor == null;
+        assert !clientB.latch.tryAcquire(0, TimeUnit.MILLISECONDS);
+        assert !clientC.latch.tryAcquire(0, TimeUnit.MILLISECONDS);
+
+        // Then they are woken once the releaser is done
+        clientA.wakePendingWakeups();
+        assert clientB.latch.tryAcquire(0, TimeUnit.MILLISECONDS);
+        assert clientC.latch.tryAcquire(0, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void testWaiterNotesWhetherItIsBlockedByAnotherWaiter() {
+        F2Client clientA = newClient("A");
+        F2Client clientB = newClient("B");
+        F2Client clientC = newClient("C");
+        F2Lock lock1 = newLock(1);
+        F2Lock lock2 = newLock(2);
+
+        // Given A holds lock 1, and B holds lock 2
+        assert lock1.acquire(BLOCKING, newEntry(clientA, EXCLUSIVE)) == ACQUIRED;
+        assert lock2.acquire(BLOCKING, newEntry(clientB, SHARED)) == ACQUIRED;
+
+        // When B waits for A, who is not waiting for anything, then B can't have closed a cycle
+        assert lock1.acquire(BLOCKING, newEntry(clientB, EXCLUSIVE)) == MUST_WAIT;
+        assert !clientB.blockedByWaiter;
+
+        // But when C then waits for B, it may have
+        assert lock2.acquire(BLOCKING, newEntry(clientC, EXCLUSIVE)) == MUST_WAIT;
+        assert clientC.blockedByWaiter;
+    }
+
+    @Test
+    public void testSecondUpgraderIsToldItWouldDeadlock() {
+        F2Client clientA = newClient("A");
+        F2Client clientB = newClient("B");
+        F2Lock lock = newLock(0);
+
+        // Given A and B both hold the lock shared
+        assert lock.acquire(BLOCKING, newEntry(clientA, SHARED)) == ACQUIRED;
+        assert lock.acquire(BLOCKING, newEntry(clientB, SHARED)) == ACQUIRED;
+
+        // When A asks to upgrade, it waits for B like it normally would
+        assert lock.acquire(BLOCKING, newEntry(clientA, UPGRADE)) == MUST_WAIT;
+        assert clientA.deadlockedOnEnqueue == null;
+
+        // But when B then asks to upgrade as well, it's told right away that it won't work out
+        assert lock.acquire(BLOCKING, newEntry(clientB, UPGRADE)) == MUST_WAIT;
+        assert clientB.deadlockedOnEnqueue != null;
+    }
+
     static F2Lock newLock(long resourceId) {
         F2Lock lock = new F2Lock();
         lock.resourceType = DeadlockDetector_Test.NODE;
@@ -377,7 +617,7 @@ public class F2Lock_Test {
     }
 
     static F2Client newClient(String name) {
-        F2Client client = new F2Client(1, null, null);
+        F2Client client = new F2Client(1, PARTITIONS, null);
         client.setName(name);
         return client;
     }
@@ -5,8 +5,12 @@ import org.neo4j.storageengine.api.lock.ResourceType;
 import sun.misc.Signal;
 import sun.misc.SignalHandler;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.lang.ref.WeakReference;
+import java.time.Clock;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 
@@ -36,87 +40,278 @@ enum AcquireMode {
     NONBLOCKING
 }
 
+/** How work on the lock table is synchronized */
+enum EngineMode {
+    /** Every lookup and every lock state change happens while holding the partition write lock */
+    PARTITION_LOCK,
+    /**
+     * Locks already in the lock table are worked on while holding the partition read lock plus a latch on the
+     * lock itself, so unrelated resources in one partition don't contend. The partition write lock is only taken
+     * to insert, inflate or remove locks.
+     */
+    TWO_LEVEL,
+    /**
+     * Like PARTITION_LOCK, but clients hand their acquire and release requests to whoever holds the partition lock,
+     * which then runs them on their behalf in one go, see {@link F2Combiner}. Trades a bit of latency on quiet
+     * partitions for fewer lock handoffs and cache misses on hot ones.
+     */
+    FLAT_COMBINING
+}
+
+/** How a client that has been waiting a while looks for deadlocks, see {@link DeadlockDetector} */
+enum DeadlockDetectionMode {
+    /** Lock every partition, in index order, and walk the wait-for graph while nothing can change */
+    STOP_THE_WORLD,
+    /**
+     * Walk the wait-for graph without holding any partition locks. Only if that turns up a cycle, lock the
+     * partitions of the locks on it, in index order, and check the cycle is still there. Clients that have
+     * nothing to do with the cycle carry on undisturbed.
+     */
+    OPTIMISTIC,
+    /**
+     * Clients don't look for deadlocks themselves; a background {@link DeadlockSweeper} looks for every client at
+     * once, and aborts one client in each cycle it finds.
+     */
+    SWEEPER,
+    /**
+     * Rule deadlocks out rather than look for them: clients are ordered by when they were handed out, and only
+     * older clients may wait for younger ones. A younger client that would have to wait for an older one fails
+     * right away instead.
+     */
+    WAIT_DIE,
+    /**
+     * Rule deadlocks out rather than look for them: clients are ordered by when they were handed out, and an older
+     * client that has to wait for a younger one wounds it; the younger client fails right away if it's waiting, or
+     * else the next time it has to wait. Younger clients may wait for older ones.
+     */
+    WOUND_WAIT;
+
+    /** @return true if clients avoid deadlocks as they queue up, and there's nothing to look for afterwards */
+    boolean avoidsDeadlocks() {
+        return this == WAIT_DIE || this == WOUND_WAIT;
+    }
+}
+
+/**
+ * Which client in a deadlock gets aborted to break it, see {@link DeadlockDetector#chooseVictim}. The client with
+ * the lowest cost goes; ties go to the client that found the deadlock, since it's awake already.
+ */
+enum DeadlockVictimPolicy {
+    /** Always the client that found the deadlock */
+    DETECTOR {
+        @Override
+        long cost(F2Client client) {
+            return 0;
+        }
+    },
+    /** The client holding the fewest locks, so as little work as possible is thrown away */
+    FEWEST_LOCKS {
+        @Override
+        long cost(F2Client client) {
+            return client.activeLockCount();
+        }
+    },
+    /** The client that was handed out last */
+    YOUNGEST {
+        @Override
+        long cost(F2Client client) {
+            return -client.getLockSessionId();
+        }
+    },
+    /** The client with the lowest {@link F2Client#setDeadlockPriority priority}, then the one holding the fewest locks */
+    PRIORITY {
+        @Override
+        long cost(F2Client client) {
+            return ((long) client.deadlockPriority() << 32) + Math.min(client.activeLockCount(), Integer.MAX_VALUE);
+        }
+    };
+
+    abstract long cost(F2Client client);
+}
+
+/** Which lock guards each partition, see {@link PartitionLock} */
+enum PartitionLockType {
+    /** {@link StampedPartitionLock}; the only one with a shared mode for the idle lock cache and TWO_LEVEL to use */
+    STAMPED(true) {
+        @Override
+        PartitionLock newLock() {
+            return new StampedPartitionLock();
+        }
+    },
+    /** {@link TicketPartitionLock} */
+    TICKET(false) {
+        @Override
+        PartitionLock newLock() {
+            return new TicketPartitionLock();
+        }
+    },
+    /** {@link McsPartitionLock} */
+    MCS(false) {
+        @Override
+        PartitionLock newLock() {
+            return new McsPartitionLock();
+        }
+    };
+
+    private final boolean hasSharedMode;
+
+    PartitionLockType(boolean hasSharedMode) {
+        this.hasSharedMode = hasSharedMode;
+    }
+
+    abstract PartitionLock newLock();
+
+    /**
+     * @return true if the lock's shared mode lets holders in alongside each other. The idle lock cache and
+     *         {@link EngineMode#TWO_LEVEL} are only worth it with such a lock: without one, a miss on them takes the
+     *         exclusive lock twice, once for the failed attempt and once more for the regular path.
+     */
+    boolean hasSharedMode() {
+        return hasSharedMode;
+    }
+}
+
+/**
+ * Dumps every lock manager's locks and waiters to stderr when the process gets SIGURG.
+ *
+ * Lock managers are kept track of weakly, in a lock-free queue, so registering one doesn't contend with others, and
+ * one that's never closed is still garbage collected.
+ */
 class LockGraphDump {
 
-    private static Set<F2Partitions> lockManagers = new HashSet<>();
-    private static Set<F2Client> clients = new HashSet<>();
+    private static final Queue<WeakReference<F2Partitions>> lockManagers = new ConcurrentLinkedQueue<>();
 
     static {
         Signal.handle(new Signal("URG"), signal -> {
-            for(F2Partitions partitions : lockManagers) {
-                partitions.stopTheWorld();
-                try {
-                    for (int i = 0; i < partitions.numberOfPartitions(); i++) {
-                        F2Partition partition = partitions.getPartitionByIndex(i);
-                        partition.activeLocks().forEach((lock) -> {
-                            String lockHolder;
-                            if(lock.exclusiveHolder != null) {
-                                lockHolder = String.format("[(exclusive) %s]", lock.exclusiveHolder.owner);
-                            } else {
-                                StringBuilder sb = new StringBuilder("[(shared) ");
-                                for(F2ClientEntry entry=lock.sharedHolderList; entry != null; entry = entry.next) {
-                                    sb.append(entry.owner);
-                                    if(entry.next != null) {
-                                        sb.append(", ");
-                                    }
-                                }
-                                sb.append("]");
-                                lockHolder = sb.toString();
-                            }
-                            for(F2ClientEntry entry = lock.waitList; entry != null; entry = entry.next ) {
-                                System.err.printf("[%s] is waiting for %s to get %s\n", entry.owner, lockHolder, entry);
+            for(WeakReference<F2Partitions> lockManager : lockManagers) {
+                F2Partitions partitions = lockManager.get();
+                if(partitions == null) {
+                    lockManagers.remove(lockManager);
+                    continue;
+                }
+                dump(partitions);
+            }
+        });
+    }
+
+    private static void dump(F2Partitions partitions) {
+        F2ClientSlots clientSlots = partitions.clientSlots();
+        partitions.stopTheWorld();
+        try {
+            for (int i = 0; i < partitions.numberOfPartitions(); i++) {
+                F2Partition partition = partitions.getPartitionByIndex(i);
+                partition.activeLocks().forEach((lock) -> {
+                    String lockHolder;
+                    if(lock.exclusiveHolder != null) {
+                        lockHolder = String.format("[(exclusive) %s]", lock.exclusiveHolder.owner);
+                    } else {
+                        StringBuilder sb = new StringBuilder("[(shared) ");
+                        for(int slot = lock.nextSharedHolder(0); slot != -1; slot = lock.nextSharedHolder(slot + 1)) {
+                            sb.append(clientSlots.client(slot));
+                            if(lock.nextSharedHolder(slot + 1) != -1) {
+                                sb.append(", ");
                             }
-                        });
+                        }
+                        sb.append("]");
+                        lockHolder = sb.toString();
                     }
-
-                    System.err.println("");
-
-                    for (F2Client client : clients) {
-                        System.err.printf("%s: %s\n", client, client.waitsFor);
+                    for(F2ClientEntry entry = lock.waitList; entry != null; entry = entry.next ) {
+                        System.err.printf("[%s] is waiting for %s to get %s\n", entry.owner, lockHolder, entry);
                     }
+                });
+            }
+
+            System.err.println("");
 
-                } finally {
-                    partitions.resumeTheWorld();
+            // Every open client has a slot, see F2ClientSlots; no need to keep track of them separately
+            for (int slot = 0; slot < clientSlots.numSlots(); slot++) {
+                F2Client client = clientSlots.client(slot);
+                if(client != null && client.waitsFor != null) {
+                    System.err.printf("%s: %s\n", client, client.waitsFor);
                 }
             }
-        });
-    }
 
-    static synchronized void register(F2Partitions partitions) {
-        lockManagers.add(partitions);
+        } finally {
+            partitions.resumeTheWorld();
+        }
     }
 
-    static synchronized void register(F2Client client) {
-        clients.add(client);
+    static void register(F2Partitions partitions) {
+        lockManagers.add(new WeakReference<>(partitions));
     }
 
-    static synchronized void unregister(F2Partitions partitions) {
-        lockManagers.remove(partitions);
+    static void unregister(F2Partitions partitions) {
+        lockManagers.removeIf(lockManager -> {
+            F2Partitions registered = lockManager.get();
+            return registered == null || registered == partitions;
+        });
     }
 }
 
 public class F2Locks implements Locks {
     private final F2Partitions partitions;
     private final DeadlockDetector deadlockDetector;
+    private final DeadlockSweeper deadlockSweeper;
+    private final LockOrderAnalyzer lockOrderAnalyzer;
+    private final F2ClientPool clientPool = new F2ClientPool();
     private final ResourceType[] resourceTypes;
+    private final Clock clock;
+    private final long lockAcquisitionTimeoutMillis;
     private AtomicLong clientCounter = new AtomicLong();
 
     public F2Locks(ResourceType[] resourceTypes, int numPartitions) {
+        this(resourceTypes, numPartitions, new F2Options());
+    }
+
+    F2Locks(ResourceType[] resourceTypes, int numPartitions, F2Options options) {
+        options.validate();
         this.resourceTypes = resourceTypes;
-        this.partitions = new F2Partitions(resourceTypes.length, numPartitions);
-        this.deadlockDetector = new DeadlockDetector();
+        this.clock = options.clock;
+        this.lockAcquisitionTimeoutMillis = options.lockAcquisitionTimeoutMillis;
+        this.partitions = new F2Partitions(resourceTypes.length, numPartitions, options.engineMode, options.partitionLockType);
+        this.deadlockDetector = new DeadlockDetector(options.deadlockDetection, options.deadlockVictimPolicy);
+        if(options.deadlockDetection == DeadlockDetectionMode.SWEEPER) {
+            this.deadlockSweeper = new DeadlockSweeper(partitions, deadlockDetector, options.deadlockSweepIntervalMillis);
+            this.deadlockSweeper.start();
+        } else {
+            this.deadlockSweeper = null;
+        }
+        this.lockOrderAnalyzer = options.lockOrderSampleInterval > 0 ? new LockOrderAnalyzer(options.lockOrderSampleInterval, options.log) : null;
 
         LockGraphDump.register(this.partitions);
     }
 
+    /**
+     * Mark a resource that nearly every transaction takes shared, like schema lock 0, as hot, see
+     * {@link F2ReaderBias}. Must be done before any clients are handed out.
+     */
+    void enableReaderBias(ResourceType resourceType, long resourceId) {
+        partitions.enableReaderBias(resourceType, resourceId);
+    }
+
     @Override
     public Client newClient() {
-        F2Client client = new F2Client(resourceTypes.length, partitions, deadlockDetector);
-        client.setName(String.format("%d", clientCounter.getAndIncrement()));
-        LockGraphDump.register(client);
+        long clientNumber = clientCounter.getAndIncrement();
+        F2Client client = clientPool.poll();
+        if(client == null) {
+            client = new F2Client(resourceTypes.length, partitions, deadlockDetector, clientPool);
+        } else {
+            client.reopen();
+        }
+        client.setName(Long.toString(clientNumber));
+        client.setTimestamp(clientNumber);
+        client.setAcquisitionTimeout(clock, lockAcquisitionTimeoutMillis);
+        if(lockOrderAnalyzer != null) {
+            client.recordLockOrder(lockOrderAnalyzer.newRecording(clientNumber, client.name()));
+        }
         return client;
     }
 
+    /** Lock order inversions found so far, see {@link LockOrderAnalyzer}; empty unless lock order is being analyzed */
+    List<LockOrderAnalyzer.Inversion> lockOrderInversions() {
+        return lockOrderAnalyzer == null ? Collections.emptyList() : lockOrderAnalyzer.inversions();
+    }
+
     @Override
     public void accept(Visitor visitor) {
         throw new UnsupportedOperationException();
@@ -124,6 +319,11 @@ public class F2Locks implements Locks {
 
     @Override
     public void close() {
+        if(deadlockSweeper != null) {
+            deadlockSweeper.stop();
+        }
+        clientPool.clear();
+        partitions.close();
         LockGraphDump.unregister(this.partitions);
     }
 }
@@ -28,11 +28,43 @@ public class F2Locks_PerfTest {
     public static class SharedState {
         private Locks forseti;
         private Locks f2;
+        private Locks f2ReaderBiased;
 
         @Setup
         public void setup() {
             this.forseti = new ForsetiLockManager(Config.defaults(), Clock.systemUTC(), NODE, SCHEMA);
             this.f2 = new F2Locks(new ResourceType[]{NODE, SCHEMA}, 64);
+
+            F2Locks f2ReaderBiased = new F2Locks(new ResourceType[]{NODE, SCHEMA}, 64);
+            f2ReaderBiased.enableReaderBias(SCHEMA, 0);
+            this.f2ReaderBiased = f2ReaderBiased;
+        }
+    }
+
+    /** F2 with each of the available partition locks; the few partitions make sure they are contended */
+    @State(Scope.Benchmark)
+    public static class PartitionLockState {
+        @Param({"STAMPED", "TICKET", "MCS"})
+        public String partitionLockType;
+
+        private Locks f2;
+        private PartitionLock lock;
+
+        @Setup
+        public void setup() {
+            PartitionLockType type = PartitionLockType.valueOf(partitionLockType);
+            this.f2 = new F2Locks(new ResourceType[]{NODE, SCHEMA}, 4, new F2Options().withPartitionLockType(type));
+            this.lock = type.newLock();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class PartitionLockClientState {
+        private Locks.Client client;
+
+        @Setup
+        public void setup(PartitionLockState shared) {
+            this.client = shared.f2.newClient();
         }
     }
 
@@ -86,11 +118,40 @@ public class F2Locks_PerfTest {
         schemaPlusExclusiveCombination(shared.f2);
     }
 
+    @Benchmark
+    public void f2ReaderBiasedSchemaExclusiveCombination(SharedState shared) throws AcquireLockTimeoutException {
+        schemaPlusExclusiveCombination(shared.f2ReaderBiased);
+    }
+
     @Benchmark
     public void forsetiSchemaExclusiveCombintation(SharedState shared) throws AcquireLockTimeoutException {
         schemaPlusExclusiveCombination(shared.forseti);
     }
 
+    @Benchmark
+    public void partitionLockEmptyCriticalSection(PartitionLockState shared) {
+        shared.lock.lock();
+        shared.lock.unlock();
+    }
+
+    @Benchmark
+    public void f2PartitionLockAcquireContendedExclusive(PartitionLockClientState state) throws AcquireLockTimeoutException {
+        state.client.acquireExclusive(LockTracer.NONE, NODE, 0);
+        state.client.releaseExclusive(NODE, 0);
+    }
+
+    @Benchmark
+    public void f2PartitionLockAcquireRandomShared(PartitionLockClientState state) throws AcquireLockTimeoutException {
+        long resourceId = random.nextInt(1000);
+        state.client.acquireShared(LockTracer.NONE, NODE, resourceId);
+        state.client.releaseShared(NODE, resourceId);
+    }
+
+    @Benchmark
+    public void f2PartitionLockSchemaExclusiveCombination(PartitionLockState shared) throws AcquireLockTimeoutException {
+        schemaPlusExclusiveCombination(shared.f2);
+    }
+
     private void schemaPlusExclusiveCombination(Locks locks) throws AcquireLockTimeoutException {
         for(;;) {
             try (Locks.Client client = locks.newClient()) {
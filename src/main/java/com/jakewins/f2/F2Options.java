@@ -0,0 +1,87 @@
+package com.jakewins.f2;
+
+import org.neo4j.logging.Log;
+import org.neo4j.logging.NullLog;
+
+import java.time.Clock;
+
+/**
+ * How a {@link F2Locks} instance is set up, beyond its resource types and number of partitions; see
+ * {@link F2Factory} for the settings each of these comes from. Starts out with the defaults, and each option is
+ * set by name, so options of the same type can't be mixed up:
+ *
+ * <pre>
+ * new F2Locks(resourceTypes, 128, new F2Options()
+ *         .withDeadlockDetection(DeadlockDetectionMode.SWEEPER)
+ *         .withDeadlockSweepIntervalMillis(10));
+ * </pre>
+ */
+class F2Options {
+    EngineMode engineMode = EngineMode.PARTITION_LOCK;
+    PartitionLockType partitionLockType = PartitionLockType.STAMPED;
+    DeadlockDetectionMode deadlockDetection = DeadlockDetectionMode.STOP_THE_WORLD;
+    long deadlockSweepIntervalMillis = 100;
+    DeadlockVictimPolicy deadlockVictimPolicy = DeadlockVictimPolicy.DETECTOR;
+    /** Analyze lock order for one in this many clients, see {@link LockOrderAnalyzer}; 0 for none */
+    int lockOrderSampleInterval = 0;
+    /** What acquisition timeouts are measured by */
+    Clock clock = Clock.systemUTC();
+    /** How long a single acquire may wait before it fails; 0 waits forever */
+    long lockAcquisitionTimeoutMillis = 0;
+    /** Where to report what we find out about how the locks are used, like {@link LockOrderAnalyzer} inversions */
+    Log log = NullLog.getInstance();
+
+    F2Options withEngineMode(EngineMode engineMode) {
+        this.engineMode = engineMode;
+        return this;
+    }
+
+    F2Options withPartitionLockType(PartitionLockType partitionLockType) {
+        this.partitionLockType = partitionLockType;
+        return this;
+    }
+
+    F2Options withDeadlockDetection(DeadlockDetectionMode deadlockDetection) {
+        this.deadlockDetection = deadlockDetection;
+        return this;
+    }
+
+    F2Options withDeadlockSweepIntervalMillis(long deadlockSweepIntervalMillis) {
+        this.deadlockSweepIntervalMillis = deadlockSweepIntervalMillis;
+        return this;
+    }
+
+    F2Options withDeadlockVictimPolicy(DeadlockVictimPolicy deadlockVictimPolicy) {
+        this.deadlockVictimPolicy = deadlockVictimPolicy;
+        return this;
+    }
+
+    F2Options withLockOrderSampleInterval(int lockOrderSampleInterval) {
+        this.lockOrderSampleInterval = lockOrderSampleInterval;
+        return this;
+    }
+
+    F2Options withClock(Clock clock) {
+        this.clock = clock;
+        return this;
+    }
+
+    F2Options withLockAcquisitionTimeoutMillis(long lockAcquisitionTimeoutMillis) {
+        this.lockAcquisitionTimeoutMillis = lockAcquisitionTimeoutMillis;
+        return this;
+    }
+
+    F2Options withLog(Log log) {
+        this.log = log;
+        return this;
+    }
+
+    /** @throws IllegalArgumentException if the options can't be used together */
+    F2Options validate() {
+        if(engineMode == EngineMode.TWO_LEVEL && !partitionLockType.hasSharedMode()) {
+            throw new IllegalArgumentException(String.format("Engine mode %s needs a partition lock with a shared mode, and %s has none; use %s",
+                    engineMode, partitionLockType, PartitionLockType.STAMPED));
+        }
+        return this;
+    }
+}
@@ -1,44 +1,220 @@
 package com.jakewins.f2;
 
+import com.jakewins.f2.infrastructure.TimingWheel;
 import org.neo4j.collection.primitive.Primitive;
 import org.neo4j.collection.primitive.PrimitiveLongIterator;
 import org.neo4j.collection.primitive.PrimitiveLongObjectMap;
 import org.neo4j.storageengine.api.lock.ResourceType;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.locks.StampedLock;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
 
 /**
  * F2 locks are split into partitions; operations within a partition must be guarded by the partition lock.
+ * In {@link EngineMode#TWO_LEVEL}, the partition read lock plus the latch of an individual lock is enough to
+ * work on that lock, while changes to the lock table itself still need the partition write lock. In
+ * {@link EngineMode#FLAT_COMBINING}, clients mostly leave it to the {@link F2Combiner} to take the partition lock.
  */
 class F2Partition {
-    // TODO: Get a view of the approximate max number of CPU instructions a holder of this might want, and how often Linux will reschedule
-    StampedLock partitionLock = new StampedLock();
-    private long currentHolderStamp;
+    /** Max number of idle locks kept in the lock table for clients to grab, per partition; power of two */
+    private static final int IDLE_LOCK_CACHE_SIZE = 64;
+
+    /**
+     * Held for short, bounded stretches: a lock table lookup plus a few field writes, or one pass over a wait list
+     * when granting; nothing in here blocks, allocates much, or makes syscalls, short of waking waiters, which is
+     * deferred until the lock is released, see {@link F2Client#deferWakeup}. A holder is far more likely to be
+     * preempted by the scheduler than to run out of work to do under it, so the spinning lock types yield the CPU
+     * after {@link PartitionLock#SPINS_BEFORE_YIELD} spins rather than burn a time slice waiting for a descheduled
+     * holder. The batched and stop-the-world paths hold it longer, but take it once per partition rather than once
+     * per resource.
+     */
+    private final PartitionLock partitionLock;
+    /** See {@link PartitionLockType#hasSharedMode()}; without a shared mode, the idle lock cache can't save taking the lock exclusively */
+    private final boolean cachesIdleLocks;
 
     private F2Lock nextFreeLock = null;
     private F2ClientEntry nextFreeClientEntry = null;
 
+    /** Ring buffer of locks marked {@link F2Lock#CACHED_BIT}, oldest first; they may have been re-acquired since */
+    private final F2Lock[] idleLocks = new F2Lock[IDLE_LOCK_CACHE_SIZE];
+    private int idleLocksHead = 0;
+    private int idleLocksCount = 0;
+
     private final int partitionIndex;
     private final PrimitiveLongObjectMap<F2Lock>[] locks;
 
+    /**
+     * Thin locks; resources held by a single entry and nobody waiting, mapped straight to the holding entry, which
+     * has {@link F2ClientEntry#lock} set to null. A resource is in either this table or {@link #locks}, never both.
+     */
+    private final PrimitiveLongObjectMap<F2ClientEntry>[] thinLocks;
+
+    /** Only set in {@link EngineMode#FLAT_COMBINING} */
+    private final F2Combiner combiner;
+
     F2Partition(int partitionIndex, int numResourceTypes) {
+        this(partitionIndex, numResourceTypes, EngineMode.PARTITION_LOCK, PartitionLockType.STAMPED);
+    }
+
+    F2Partition(int partitionIndex, int numResourceTypes, EngineMode engineMode, PartitionLockType partitionLockType) {
         // numResourceTypes must be a power of two; so if the input isn't, round it up to the nearest one
         if (Long.bitCount(numResourceTypes) != 1) {
             numResourceTypes = (int) Math.pow(2, Math.ceil(Math.log(numResourceTypes) / Math.log(2)));
         }
 
         this.partitionIndex = partitionIndex;
+        this.partitionLock = partitionLockType.newLock();
+        this.cachesIdleLocks = partitionLockType.hasSharedMode();
         this.locks = new PrimitiveLongObjectMap[numResourceTypes];
+        this.thinLocks = new PrimitiveLongObjectMap[numResourceTypes];
         for(int resourceType=0;resourceType<numResourceTypes;resourceType++) {
             this.locks[resourceType] = Primitive.longObjectMap(128);
+            this.thinLocks[resourceType] = Primitive.longObjectMap(128);
+        }
+        this.combiner = engineMode == EngineMode.FLAT_COMBINING ? new F2Combiner(this) : null;
+    }
+
+    /**
+     * Acquire the resource the entry describes, be that as a thin lock or via the full lock.
+     *
+     * NOTE: Must hold {@link #partitionLock}
+     */
+    F2Lock.AcquireOutcome acquire(AcquireMode acquireMode, F2ClientEntry entry) {
+        if(tryAcquireThin(entry)) {
+            return F2Lock.AcquireOutcome.ACQUIRED;
+        }
+
+        F2Lock lock = getOrCreateLock(entry.resourceType, entry.resourceId);
+        return lock.acquire(acquireMode, entry);
+    }
+
+    /**
+     * Turn an entry holding the resource via {@link F2ReaderBias} into a regular shared holder, thin or not.
+     *
+     * NOTE: Must hold {@link #partitionLock}
+     */
+    void adoptSharedHolder(F2ClientEntry entry) {
+        if(tryAcquireThin(entry)) {
+            return;
+        }
+        getOrCreateLock(entry.resourceType, entry.resourceId).adoptSharedHolder(entry);
+    }
+
+    /**
+     * Release the lock held by the entry, removing the lock from the lock table if nobody else is using it.
+     * The entry itself is left for the caller to dispose of.
+     *
+     * NOTE: Must hold {@link #partitionLock}
+     */
+    void release(F2ClientEntry entry) {
+        ResourceType resourceType = entry.resourceType;
+        long resourceId = entry.resourceId;
+
+        if(entry.lock == null) {
+            // Thin lock; the entry was the only one ever involved, so there's nobody to hand it to
+            releaseThin(entry);
+            return;
+        }
+
+        F2Lock.ReleaseOutcome outcome = entry.lock.release(entry);
+        if(outcome == F2Lock.ReleaseOutcome.LOCK_HELD) {
+            return;
+        }
+
+        // If the lock is idle (eg. there are no holders and no waiters) then its our job to remove it
+        // from the lock table.
+        assert outcome == F2Lock.ReleaseOutcome.LOCK_IDLE : "Lock idle is only allowed state here.";
+        removeLock(resourceType, resourceId);
+    }
+
+    /**
+     * Used to tell if {@link F2ReaderBias} can be turned back on for a resource.
+     *
+     * NOTE: Must hold {@link #partitionLock}
+     */
+    boolean hasExclusiveHolderOrWaiters(ResourceType resourceType, long resourceId) {
+        F2ClientEntry thinHolder = thinLocks[resourceType.typeId()].get(resourceId);
+        if(thinHolder != null) {
+            return thinHolder.lockMode != LockMode.SHARED;
         }
+
+        F2Lock lock = locks[resourceType.typeId()].get(resourceId);
+        return lock != null && (lock.exclusiveHolder != null || lock.waitList != null);
     }
 
     /**
+     * Grant the entry a thin lock, if nobody else holds or waits for the resource. This is the common case, and
+     * saves us from setting up a full {@link F2Lock} until a second entry comes along, see {@link #getOrCreateLock}.
+     *
+     * NOTE: Must hold {@link #partitionLock}
+     * @return true if the entry now holds the lock
+     */
+    boolean tryAcquireThin(F2ClientEntry entry) {
+        return tryAcquireThin(entry, entry.resourceId);
+    }
+
+    /**
+     * Like {@link #tryAcquireThin(F2ClientEntry)}, for the given resource rather than the entry's own; this is how
+     * {@link F2ClientEntry#compact} entries hold many resources at once.
+     *
+     * NOTE: Must hold {@link #partitionLock}
+     */
+    boolean tryAcquireThin(F2ClientEntry entry, long resourceId) {
+        int typeId = entry.resourceType.typeId();
+        if(locks[typeId].containsKey(resourceId) || thinLocks[typeId].containsKey(resourceId)) {
+            return false;
+        }
+
+        entry.lock = null;
+        thinLocks[typeId].put(resourceId, entry);
+        return true;
+    }
+
+    /**
+     * Release a thin lock granted by {@link #tryAcquireThin(F2ClientEntry)}; nobody can be waiting for it.
+     *
+     * NOTE: Must hold {@link #partitionLock}
+     */
+    void releaseThin(F2ClientEntry entry) {
+        F2ClientEntry holder = thinLocks[entry.resourceType.typeId()].remove(entry.resourceId);
+        assert holder == entry : String.format("Released thin lock held by someone else: %s, held by %s", entry, holder);
+    }
+
+    /**
+     * Release a resource thin locked through a {@link F2ClientEntry#compact} entry. If the lock was inflated
+     * since, the entry it was inflated with is released instead.
+     *
+     * NOTE: Must hold {@link #partitionLock}
+     */
+    void releaseCompact(F2ClientEntry holder, long resourceId) {
+        int typeId = holder.resourceType.typeId();
+        if(thinLocks[typeId].get(resourceId) == holder) {
+            thinLocks[typeId].remove(resourceId);
+            return;
+        }
+
+        F2Lock lock = locks[typeId].get(resourceId);
+        F2ClientEntry entry;
+        if(holder.lockMode == LockMode.EXCLUSIVE) {
+            entry = lock.exclusiveHolder;
+            assert entry != null && entry.owner == holder.owner : String.format("%s releasing %s, which is held by %s", holder.owner, lock, entry);
+        } else {
+            // Full locks only keep track of shared holders by slot, so any entry of ours will do
+            entry = newClientEntry(holder.owner, LockMode.SHARED, holder.resourceType, resourceId);
+            entry.lock = lock;
+        }
+        release(entry);
+        releaseClientEntry(entry);
+    }
+
+    /**
+     * Get the full lock for a resource. If the resource is thin locked, the lock is inflated, with the thin
+     * holder becoming its first holder.
+     *
      * NOTE: Must hold {@link #partitionLock}
      */
     F2Lock getOrCreateLock(ResourceType resourceType, long resourceId) {
@@ -52,28 +228,186 @@ class F2Partition {
                 lock = new F2Lock();
             }
             map.put(resourceId, lock);
-        }
 
-        lock.resourceType = resourceType;
-        lock.resourceId = resourceId;
-        lock.next = null;
+            lock.resourceType = resourceType;
+            lock.resourceId = resourceId;
+            lock.next = null;
+
+            F2ClientEntry thinHolder = thinLocks[resourceType.typeId()].remove(resourceId);
+            if(thinHolder != null && thinHolder.compact) {
+                // The holder is shared with other resources; the lock gets an entry of its own, see releaseCompact
+                F2ClientEntry entry = newClientEntry(thinHolder.owner, thinHolder.lockMode, resourceType, resourceId);
+                lock.inflate(entry);
+                if(entry.lockMode == LockMode.SHARED) {
+                    releaseClientEntry(entry);
+                }
+            } else if(thinHolder != null) {
+                lock.inflate(thinHolder);
+            }
+        }
 
         return lock;
     }
 
     /**
-     * Remove a lock that is no longer in use. Client must
+     * Remove a lock that is no longer in use. Rather than dropping it from the lock table right away, the lock
+     * is parked in a small idle lock cache, so that a client coming back for it can grab it via
+     * {@link #tryAcquireIdleExclusive(F2ClientEntry)}. Once the cache is full, the oldest parked lock is evicted,
+     * so the resource goes back to being thin locked the next time it's acquired.
      *
      * NOTE: Must hold {@link #partitionLock}
      */
     void removeLock(ResourceType resourceType, long resourceId) {
-        PrimitiveLongObjectMap<F2Lock> map = locks[resourceType.typeId()];
-        F2Lock lock = map.remove(resourceId);
+        F2Lock lock = locks[resourceType.typeId()].get(resourceId);
 
-        assert lock.sharedHolderList == null : String.format("Removed lock with shared holders: %s ", lock.sharedHolderList);
+        assert lock.sharedHolderCount == 0 : String.format("Removed lock with %d shared holders: %s ", lock.sharedHolderCount, lock);
         assert lock.exclusiveHolder == null : String.format("Removed lock with exclusive holder: %s ", lock.exclusiveHolder);
         assert lock.waitList == null : String.format("Removed lock with wait list! %s ", lock.waitList);
 
+        if(lock.state == F2Lock.CACHED_BIT) {
+            // Already parked; it was acquired and released again while sitting in the cache
+            return;
+        }
+
+        if(!cachesIdleLocks) {
+            dropLock(lock);
+            return;
+        }
+
+        if(idleLocksCount == idleLocks.length) {
+            evictIdleLock();
+        }
+        lock.state = F2Lock.CACHED_BIT;
+        idleLocks[(idleLocksHead + idleLocksCount) & (idleLocks.length - 1)] = lock;
+        idleLocksCount++;
+    }
+
+    /**
+     * Try to grab a lock parked in the idle lock cache exclusively while only holding the partition read lock, so
+     * that clients coming back to the same few resources in this partition don't have to take turns. This is an
+     * idle lock cache, not a lock-free path: the lookup still needs the read lock, since the lock table isn't safe
+     * to read while someone is changing it, and it only helps for the last {@link #IDLE_LOCK_CACHE_SIZE} locks to
+     * go idle here. First acquires, thin locks, evicted locks, held locks and shared acquires all miss, and have to
+     * go the regular route, via {@link #lock()}; see {@link F2Lock#tryAcquireIdleExclusive} for why there's no
+     * shared counterpart.
+     *
+     * A hit costs a read lock round trip plus two CASes on the lock, so a lone client is better off without it; it
+     * only pays for itself once clients are queueing for the partition write lock.
+     *
+     * @return true if the entry now holds the lock
+     */
+    boolean tryAcquireIdleExclusive(F2ClientEntry entry) {
+        partitionLock.lockShared();
+        try {
+            F2Lock lock = locks[entry.resourceType.typeId()].get(entry.resourceId);
+            return lock != null && lock.tryAcquireIdleExclusive(entry);
+        } finally {
+            partitionLock.unlockShared();
+        }
+    }
+
+    /**
+     * Counterpart to {@link #tryAcquireIdleExclusive(F2ClientEntry)}; succeeds if nobody started waiting for the
+     * lock while the entry held it.
+     *
+     * @return true if the lock was released
+     */
+    boolean tryReleaseToIdle(F2ClientEntry entry) {
+        partitionLock.lockShared();
+        try {
+            return entry.lock.tryReleaseToIdle(entry);
+        } finally {
+            partitionLock.unlockShared();
+        }
+    }
+
+    /**
+     * {@link EngineMode#TWO_LEVEL}: Acquire a lock that is already in the lock table, holding only the partition
+     * read lock and the latch of the lock itself.
+     *
+     * @return the outcome, or null if there is no full lock for the resource, in which case the caller needs to
+     *         take the write lock, see {@link #tryAcquireThin} and {@link #getOrCreateLock}
+     */
+    F2Lock.AcquireOutcome tryAcquireLatched(AcquireMode acquireMode, F2ClientEntry entry) {
+        partitionLock.lockShared();
+        try {
+            F2Lock lock = locks[entry.resourceType.typeId()].get(entry.resourceId);
+            if(lock == null) {
+                return null;
+            }
+
+            lock.latch();
+            try {
+                return lock.acquire(acquireMode, entry);
+            } finally {
+                lock.unlatch();
+            }
+        } finally {
+            partitionLock.unlockShared();
+        }
+    }
+
+    /**
+     * {@link EngineMode#TWO_LEVEL}: Release a full lock holding only the partition read lock and the latch of
+     * the lock itself. If this leaves the lock idle, the caller should follow up with {@link #removeLockIfIdle}.
+     */
+    F2Lock.ReleaseOutcome releaseLatched(F2ClientEntry entry) {
+        F2Lock lock = entry.lock;
+        partitionLock.lockShared();
+        try {
+            lock.latch();
+            try {
+                return lock.release(entry);
+            } finally {
+                lock.unlatch();
+            }
+        } finally {
+            partitionLock.unlockShared();
+        }
+    }
+
+    /**
+     * {@link EngineMode#TWO_LEVEL}: Like {@link #removeLock}, but for locks that went idle under their latch; someone
+     * may have picked the lock up again, or removed it, before the caller got hold of the write lock.
+     *
+     * NOTE: Must hold {@link #partitionLock}
+     */
+    void removeLockIfIdle(ResourceType resourceType, long resourceId) {
+        F2Lock lock = locks[resourceType.typeId()].get(resourceId);
+        if(lock != null && lock.isIdle()) {
+            removeLock(resourceType, resourceId);
+        }
+    }
+
+    /**
+     * Drop the oldest lock from the idle cache; if it's still idle it is removed from the lock table, if someone
+     * picked it up again it stays, and will be parked again when it next goes idle.
+     *
+     * NOTE: Must hold {@link #partitionLock}
+     */
+    private void evictIdleLock() {
+        F2Lock lock = idleLocks[idleLocksHead];
+        idleLocks[idleLocksHead] = null;
+        idleLocksHead = (idleLocksHead + 1) & (idleLocks.length - 1);
+        idleLocksCount--;
+
+        // Holding the write lock, so nobody grabbing idle locks can be racing us here
+        lock.state = lock.state & ~F2Lock.CACHED_BIT;
+        if(lock.state != 0) {
+            return;
+        }
+
+        dropLock(lock);
+    }
+
+    /**
+     * Take an idle lock out of the lock table, onto the freelist.
+     *
+     * NOTE: Must hold {@link #partitionLock}
+     */
+    private void dropLock(F2Lock lock) {
+        locks[lock.resourceType.typeId()].remove(lock.resourceId);
+
         // TODO: Some operations could feasibly temporarily allocate like a hundred million locks; should cap freelist
         lock.next = nextFreeLock;
         nextFreeLock = lock;
@@ -114,11 +448,21 @@ class F2Partition {
     }
 
     void lock() {
-        currentHolderStamp = partitionLock.writeLock();
+        partitionLock.lock();
+    }
+
+    /** Take the partition lock if it is free right now, without waiting for it */
+    boolean tryLock() {
+        return partitionLock.tryLock();
     }
 
     void unlock() {
-        partitionLock.unlock(currentHolderStamp);
+        partitionLock.unlock();
+    }
+
+    /** The combiner of this partition, or null unless we're in {@link EngineMode#FLAT_COMBINING} */
+    F2Combiner combiner() {
+        return combiner;
     }
 
     Stream<F2Lock> activeLocks() {
@@ -136,19 +480,91 @@ class F2Partition {
 class F2Partitions {
     private final F2Partition[] partitions;
     private final int bitwiseModulo;
+    private final EngineMode engineMode;
+    private final boolean usesIdleLockCache;
+    private final F2ClientSlots clientSlots = new F2ClientSlots();
+    private final TimingWheel deadlines = new TimingWheel("f2-waiter-deadlines", 10, TimeUnit.MILLISECONDS);
+
+    /** Resources marked hot, see {@link #enableReaderBias}; only written to before the lock manager is in use */
+    private final PrimitiveLongObjectMap<F2ReaderBias>[] readerBiased;
+    private boolean anyReaderBiased = false;
 
     F2Partitions(int numResourceTypes, int numPartitions) {
+        this(numResourceTypes, numPartitions, EngineMode.PARTITION_LOCK);
+    }
+
+    F2Partitions(int numResourceTypes, int numPartitions, EngineMode engineMode) {
+        this(numResourceTypes, numPartitions, engineMode, PartitionLockType.STAMPED);
+    }
+
+    F2Partitions(int numResourceTypes, int numPartitions, EngineMode engineMode, PartitionLockType partitionLockType) {
         assert Long.bitCount(numPartitions) == 1 : "numPartitions must be power of two.";
+        assert engineMode != EngineMode.TWO_LEVEL || partitionLockType.hasSharedMode() : String.format("%s needs a partition lock with a shared mode, %s has none", engineMode, partitionLockType);
 
+        this.engineMode = engineMode;
+        this.usesIdleLockCache = partitionLockType.hasSharedMode();
+        this.readerBiased = new PrimitiveLongObjectMap[numResourceTypes];
         this.bitwiseModulo = numPartitions - 1;
         this.partitions = new F2Partition[numPartitions];
         for(int partitionIndex = 0; partitionIndex < numPartitions; partitionIndex++) {
-            this.partitions[partitionIndex] = new F2Partition(partitionIndex, numResourceTypes);
+            this.partitions[partitionIndex] = new F2Partition(partitionIndex, numResourceTypes, engineMode, partitionLockType);
         }
     }
 
     F2Partition getPartition(long resourceId) {
-        return partitions[Long.hashCode(resourceId) & bitwiseModulo];
+        return partitions[partitionIndex(resourceId)];
+    }
+
+    /**
+     * Mark a resource as hot for shared acquirers, see {@link F2ReaderBias}. Must be done before the lock manager
+     * is handed any clients.
+     */
+    void enableReaderBias(ResourceType resourceType, long resourceId) {
+        if(readerBiased[resourceType.typeId()] == null) {
+            readerBiased[resourceType.typeId()] = Primitive.longObjectMap();
+        }
+        readerBiased[resourceType.typeId()].put(resourceId, new F2ReaderBias());
+        anyReaderBiased = true;
+    }
+
+    /** @return the reader bias of the given resource, or null if it's not marked hot */
+    F2ReaderBias readerBias(ResourceType resourceType, long resourceId) {
+        if(!anyReaderBiased) {
+            return null;
+        }
+        PrimitiveLongObjectMap<F2ReaderBias> biased = readerBiased[resourceType.typeId()];
+        return biased == null ? null : biased.get(resourceId);
+    }
+
+    int partitionIndex(long resourceId) {
+        return Long.hashCode(resourceId) & bitwiseModulo;
+    }
+
+    /**
+     * Order resource ids by partition index, and by id within each partition. This is the global order batched
+     * operations visit resources in, which lets them take each partition lock once, and keeps two batches with
+     * overlapping resources from deadlocking each other.
+     *
+     * @return a sorted copy of the given ids
+     */
+    long[] sortByPartition(long[] resourceIds) {
+        long[] sortedById = Arrays.copyOf(resourceIds, resourceIds.length);
+        Arrays.sort(sortedById);
+
+        // Counting sort by partition index, which keeps the ids within each partition in order
+        int[] partitionOffsets = new int[partitions.length + 1];
+        for(long resourceId : sortedById) {
+            partitionOffsets[partitionIndex(resourceId) + 1]++;
+        }
+        for(int partitionIndex = 0; partitionIndex < partitions.length; partitionIndex++) {
+            partitionOffsets[partitionIndex + 1] += partitionOffsets[partitionIndex];
+        }
+
+        long[] sorted = new long[sortedById.length];
+        for(long resourceId : sortedById) {
+            sorted[partitionOffsets[partitionIndex(resourceId)]++] = resourceId;
+        }
+        return sorted;
     }
 
     F2Partition getPartitionByIndex(int partitionIndex) {
@@ -169,7 +585,57 @@ class F2Partitions {
         }
     }
 
+    /**
+     * Lock the partitions marked in the given array, in order of partition id, same as {@link #stopTheWorld()}, so
+     * this can't deadlock with it or with itself
+     */
+    void stopPartitions(boolean[] partitionIndexes) {
+        for (int partitionIndex = 0; partitionIndex < partitions.length; partitionIndex++) {
+            if(partitionIndexes[partitionIndex]) {
+                partitions[partitionIndex].lock();
+            }
+        }
+    }
+
+    void resumePartitions(boolean[] partitionIndexes) {
+        for (int partitionIndex = 0; partitionIndex < partitions.length; partitionIndex++) {
+            if(partitionIndexes[partitionIndex]) {
+                partitions[partitionIndex].unlock();
+            }
+        }
+    }
+
     int numberOfPartitions() {
         return partitions.length;
     }
+
+    EngineMode engineMode() {
+        return engineMode;
+    }
+
+    /**
+     * @return true if clients should try {@link F2Partition#tryAcquireIdleExclusive} before the regular path; only
+     *         with partition locks that have a shared mode, see {@link PartitionLockType#hasSharedMode()}
+     */
+    boolean usesIdleLockCache() {
+        return usesIdleLockCache;
+    }
+
+    /** Slots of the clients working on these partitions */
+    F2ClientSlots clientSlots() {
+        return clientSlots;
+    }
+
+    /**
+     * Deadlines of the clients waiting in these partitions; waiters park without a timeout, and are only woken up by
+     * this once it's time for them to look for deadlocks, or to give up
+     */
+    TimingWheel deadlines() {
+        return deadlines;
+    }
+
+    /** Let go of the resources these partitions hold on to outside the lock table; for when the lock manager shuts down */
+    void close() {
+        deadlines.close();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,196 @@
+package com.jakewins.f2;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * The lock guarding a {@link F2Partition}, see {@link PartitionLockType} for the available implementations.
+ *
+ * Only {@link StampedPartitionLock} has a real shared mode; the others hand out exclusive holds when asked for
+ * shared ones. Partitions with those don't use the idle lock cache, and can't be used with {@link EngineMode#TWO_LEVEL},
+ * see {@link PartitionLockType#hasSharedMode()}.
+ */
+interface PartitionLock {
+    /** Spins waiting for the lock before we start yielding the CPU */
+    int SPINS_BEFORE_YIELD = 64;
+
+    void lock();
+
+    /** Take the lock if it is free right now, without waiting for it */
+    boolean tryLock();
+
+    void unlock();
+
+    void lockShared();
+
+    void unlockShared();
+}
+
+/** The lock F2 has always used; a write lock for regular work, a read lock for the idle lock cache */
+class StampedPartitionLock implements PartitionLock {
+    private final StampedLock lock = new StampedLock();
+    private long currentHolderStamp;
+
+    @Override
+    public void lock() {
+        currentHolderStamp = lock.writeLock();
+    }
+
+    @Override
+    public boolean tryLock() {
+        long stamp = lock.tryWriteLock();
+        if(stamp == 0) {
+            return false;
+        }
+        currentHolderStamp = stamp;
+        return true;
+    }
+
+    @Override
+    public void unlock() {
+        lock.unlock(currentHolderStamp);
+    }
+
+    @Override
+    public void lockShared() {
+        lock.readLock();
+    }
+
+    @Override
+    public void unlockShared() {
+        lock.tryUnlockRead();
+    }
+}
+
+/**
+ * Ticket lock; take a number and wait for it to come up. Strictly FIFO and cheap to release, but every waiter
+ * spins on the same counter, so each release invalidates the cache line in every waiting core.
+ */
+class TicketPartitionLock implements PartitionLock {
+    private static final AtomicLongFieldUpdater<TicketPartitionLock> NEXT_TICKET = AtomicLongFieldUpdater.newUpdater(TicketPartitionLock.class, "nextTicket");
+
+    private volatile long nextTicket = 0;
+    private volatile long nowServing = 0;
+
+    @Override
+    public void lock() {
+        long ticket = NEXT_TICKET.getAndIncrement(this);
+        for(int spins = 0; nowServing != ticket; spins++) {
+            if(spins > SPINS_BEFORE_YIELD) {
+                Thread.yield();
+            }
+        }
+    }
+
+    @Override
+    public boolean tryLock() {
+        long ticket = nowServing;
+        return nextTicket == ticket && NEXT_TICKET.compareAndSet(this, ticket, ticket + 1);
+    }
+
+    @Override
+    public void unlock() {
+        // Only the holder ever writes this, so no need for atomics
+        nowServing = nowServing + 1;
+    }
+
+    @Override
+    public void lockShared() {
+        lock();
+    }
+
+    @Override
+    public void unlockShared() {
+        unlock();
+    }
+}
+
+/**
+ * MCS queue lock; waiters line up in a linked list, and each spins on a flag in its own node, which the holder
+ * before it clears on release. Releasing only touches the cache line of the next waiter in line, which keeps
+ * handoffs cheap when many cores fight over one partition.
+ *
+ * Nodes are kept per thread and per lock; once a thread has the lock, nobody else touches its node after release,
+ * so the node can be reused for the next acquire. They can't be shared between locks, since a thread holding one
+ * partition lock and taking another (stopping the world, say) would overwrite a node still linked into the first
+ * lock's queue.
+ */
+class McsPartitionLock implements PartitionLock {
+    static class Node {
+        volatile boolean locked;
+        volatile Node next;
+    }
+
+    private static final AtomicReferenceFieldUpdater<McsPartitionLock, Node> TAIL = AtomicReferenceFieldUpdater.newUpdater(McsPartitionLock.class, Node.class, "tail");
+
+    private final ThreadLocal<Node> nodes = ThreadLocal.withInitial(Node::new);
+    private volatile Node tail = null;
+
+    /** Node of the current holder; only touched by the holder */
+    private Node holder;
+
+    @Override
+    public void lock() {
+        Node node = nodes.get();
+        node.next = null;
+        node.locked = true;
+
+        Node predecessor = TAIL.getAndSet(this, node);
+        if(predecessor != null) {
+            predecessor.next = node;
+            for(int spins = 0; node.locked; spins++) {
+                if(spins > SPINS_BEFORE_YIELD) {
+                    Thread.yield();
+                }
+            }
+        }
+        holder = node;
+    }
+
+    @Override
+    public boolean tryLock() {
+        if(tail != null) {
+            return false;
+        }
+
+        Node node = nodes.get();
+        node.next = null;
+        node.locked = true;
+        if(!TAIL.compareAndSet(this, null, node)) {
+            return false;
+        }
+        holder = node;
+        return true;
+    }
+
+    @Override
+    public void unlock() {
+        Node node = holder;
+        holder = null;
+
+        Node successor = node.next;
+        if(successor == null) {
+            if(TAIL.compareAndSet(this, node, null)) {
+                return;
+            }
+            // Someone swapped themselves in as tail, but hasn't linked themselves to us yet
+            for(int spins = 0; (successor = node.next) == null; spins++) {
+                if(spins > SPINS_BEFORE_YIELD) {
+                    Thread.yield();
+                }
+            }
+        }
+        successor.locked = false;
+    }
+
+    @Override
+    public void lockShared() {
+        lock();
+    }
+
+    @Override
+    public void unlockShared() {
+        unlock();
+    }
+}
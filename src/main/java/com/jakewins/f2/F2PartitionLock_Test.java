@@ -0,0 +1,156 @@
+package com.jakewins.f2;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class F2PartitionLock_Test {
+    @Test
+    public void testMutualExclusion() throws InterruptedException {
+        for (PartitionLockType type : PartitionLockType.values()) {
+            PartitionLock lock = type.newLock();
+            int[] counter = new int[1];
+            int threads = 4, iterations = 10_000;
+
+            // When several threads bump a plain counter while holding the lock
+            List<Thread> workers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                Thread worker = new Thread(() -> {
+                    for (int j = 0; j < iterations; j++) {
+                        lock.lock();
+                        try {
+                            counter[0]++;
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                });
+                workers.add(worker);
+                worker.start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+
+            // Then no increments got lost
+            assert counter[0] == threads * iterations : String.format("%s: expected %d, got %d", type, threads * iterations, counter[0]);
+        }
+    }
+
+    @Test
+    public void testMutualExclusionWhileHoldingTwoLocksAtOnce() throws InterruptedException {
+        for (PartitionLockType type : PartitionLockType.values()) {
+            PartitionLock first = type.newLock(), second = type.newLock();
+            int[] counters = new int[2];
+            int iterations = 10_000;
+
+            // When one thread keeps taking both locks at once, the way stopping the world does
+            List<Thread> workers = new ArrayList<>();
+            workers.add(new Thread(() -> {
+                for (int j = 0; j < iterations; j++) {
+                    first.lock();
+                    // Give the others a moment to queue up behind us on the first lock
+                    Thread.yield();
+                    second.lock();
+                    try {
+                        counters[0]++;
+                        counters[1]++;
+                    } finally {
+                        second.unlock();
+                        first.unlock();
+                    }
+                }
+            }));
+            // And other threads contend on each of them on its own
+            for (int i = 0; i < 4; i++) {
+                PartitionLock lock = i % 2 == 0 ? first : second;
+                int counter = i % 2;
+                workers.add(new Thread(() -> {
+                    for (int j = 0; j < iterations; j++) {
+                        lock.lock();
+                        try {
+                            counters[counter]++;
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                }));
+            }
+            for (Thread worker : workers) {
+                worker.start();
+            }
+            for (Thread worker : workers) {
+                worker.join(30_000);
+                assert !worker.isAlive() : String.format("%s: a thread never got the lock", type);
+            }
+
+            // Then nobody got stuck, and no increments got lost
+            assert counters[0] == iterations * 3 : String.format("%s: expected %d, got %d", type, iterations * 3, counters[0]);
+            assert counters[1] == iterations * 3 : String.format("%s: expected %d, got %d", type, iterations * 3, counters[1]);
+        }
+    }
+
+    @Test
+    public void testOnlyLocksWithASharedModeAreUsedForTheIdleLockCacheAndTwoLevel() {
+        for (PartitionLockType type : PartitionLockType.values()) {
+            // When partitions are set up with each type of lock, then only those with a shared mode use the idle lock cache
+            F2Partitions partitions = new F2Partitions(2, 4, EngineMode.PARTITION_LOCK, type);
+            assert partitions.usesIdleLockCache() == type.hasSharedMode() : type;
+            partitions.close();
+
+            // And TWO_LEVEL, which relies on shared holds just the same, is refused without one
+            F2Options options = new F2Options().withEngineMode(EngineMode.TWO_LEVEL).withPartitionLockType(type);
+            try {
+                options.validate();
+                assert type.hasSharedMode() : String.format("Expected TWO_LEVEL with %s to be refused", type);
+            } catch (IllegalArgumentException e) {
+                assert !type.hasSharedMode() : String.format("Expected TWO_LEVEL with %s to be fine, got %s", type, e);
+            }
+        }
+    }
+
+    @Test
+    public void testTryLock() throws InterruptedException {
+        for (PartitionLockType type : PartitionLockType.values()) {
+            PartitionLock lock = type.newLock();
+
+            // Given the lock is held
+            assert lock.tryLock() : type;
+
+            // Then nobody else can grab it
+            boolean[] acquiredElsewhere = new boolean[1];
+            Thread other = new Thread(() -> acquiredElsewhere[0] = lock.tryLock());
+            other.start();
+            other.join();
+            assert !acquiredElsewhere[0] : type;
+
+            // Until it's released
+            lock.unlock();
+            assert lock.tryLock() : type;
+            lock.unlock();
+        }
+    }
+
+    @Test
+    public void testSharedHoldsKeepWritersOut() throws InterruptedException {
+        for (PartitionLockType type : PartitionLockType.values()) {
+            PartitionLock lock = type.newLock();
+
+            // Given a shared hold
+            lock.lockShared();
+
+            // Then nobody can take the lock exclusively
+            boolean[] acquiredElsewhere = new boolean[1];
+            Thread other = new Thread(() -> acquiredElsewhere[0] = lock.tryLock());
+            other.start();
+            other.join();
+            assert !acquiredElsewhere[0] : type;
+
+            // Until it's released
+            lock.unlockShared();
+            assert lock.tryLock() : type;
+            lock.unlock();
+        }
+    }
+}
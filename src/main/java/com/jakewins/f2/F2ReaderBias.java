@@ -0,0 +1,113 @@
+package com.jakewins.f2;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Reader bias for one hot resource, after BRAVO (Dice &amp; Kogan, "BRAVO: Biased Locking for Reader-Writer Locks").
+ *
+ * While the resource is biased, shared acquirers publish their entry in a slot picked by their {@link F2ClientSlots} slot, and
+ * hold the lock without ever touching the partition or the {@link F2Lock}. An exclusive acquirer revokes the
+ * bias under the partition lock: it turns off the bias, and turns every published entry into a regular shared
+ * holder of the lock, after which it acquires the lock the normal way. Since revoked readers are regular holders,
+ * anyone waiting for them is visible to the deadlock detector, same as for any other lock.
+ *
+ * The bias stays off while anyone holds or waits for the lock exclusively, and for a while after a revocation,
+ * proportional to how long the revocation took, so frequent writers don't keep paying for it. Once it's safe,
+ * the next shared acquirer that comes in via the partition lock turns it back on.
+ */
+class F2ReaderBias {
+    /** Number of visible reader slots; power of two */
+    private static final int NUM_SLOTS = 64;
+    /** Slots are spread out by this many references, so readers in neighbouring slots don't share cache lines */
+    private static final int SLOT_STRIDE = 16;
+    /** Bias stays off for this many times the duration of the last revocation */
+    private static final int INHIBIT_MULTIPLIER = 9;
+
+    private final AtomicReferenceArray<F2ClientEntry> slots = new AtomicReferenceArray<>(NUM_SLOTS * SLOT_STRIDE);
+    private volatile boolean biased = true;
+
+    /** NOTE: Guarded by the partition lock */
+    private long inhibitUntil = 0;
+
+    /**
+     * Try to acquire the lock shared via the bias, without any locking.
+     *
+     * @return true if the entry now holds the lock; either via the bias, or as a regular shared holder, if someone
+     *         revoked the bias right after we published ourselves
+     */
+    boolean tryAcquireShared(F2ClientEntry entry) {
+        if(!biased) {
+            return false;
+        }
+
+        int slot = slotOf(entry);
+        if(!slots.compareAndSet(slot, null, entry)) {
+            // Someone else hashed to the same slot
+            return false;
+        }
+
+        if(biased) {
+            return true;
+        }
+
+        // Revocation started after we published; if the revoker found us, it already made us a regular holder
+        return !slots.compareAndSet(slot, entry, null);
+    }
+
+    /**
+     * @return true if the entry held the lock via the bias, and now no longer does; false if the entry is a
+     *         regular holder that must be released via the partition
+     */
+    boolean tryRelease(F2ClientEntry entry) {
+        return slots.compareAndSet(slotOf(entry), entry, null);
+    }
+
+    /**
+     * Turn off the bias, and turn any reader holding the lock via the bias into a regular holder. Must be called
+     * before acquiring the lock in any mode other than shared.
+     *
+     * NOTE: Must hold partition lock
+     */
+    void revoke(F2Partition partition) {
+        if(!biased) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        biased = false;
+
+        for(int slot = 0; slot < slots.length(); slot += SLOT_STRIDE) {
+            F2ClientEntry entry = slots.get(slot);
+            if(entry != null && slots.compareAndSet(slot, entry, null)) {
+                partition.adoptSharedHolder(entry);
+            }
+        }
+
+        long end = System.nanoTime();
+        inhibitUntil = end + (end - start) * INHIBIT_MULTIPLIER;
+    }
+
+    /**
+     * Turn the bias back on, if nobody holds or waits for the lock exclusively and we're not too soon after the
+     * last revocation.
+     *
+     * NOTE: Must hold partition lock
+     */
+    void maybeEnable(F2Partition partition, F2ClientEntry entry) {
+        if(biased || System.nanoTime() < inhibitUntil) {
+            return;
+        }
+        if(partition.hasExclusiveHolderOrWaiters(entry.resourceType, entry.resourceId)) {
+            return;
+        }
+        biased = true;
+    }
+
+    boolean isBiased() {
+        return biased;
+    }
+
+    private static int slotOf(F2ClientEntry entry) {
+        return (entry.owner.slot() & (NUM_SLOTS - 1)) * SLOT_STRIDE;
+    }
+}
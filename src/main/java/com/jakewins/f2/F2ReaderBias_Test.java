@@ -0,0 +1,104 @@
+package com.jakewins.f2;
+
+import org.junit.Test;
+import org.neo4j.kernel.impl.locking.LockTracer;
+import org.neo4j.kernel.impl.locking.Locks;
+import org.neo4j.storageengine.api.lock.ResourceType;
+
+import static com.jakewins.f2.DeadlockDetector_Test.NODE;
+import static com.jakewins.f2.DeadlockDetector_Test.SCHEMA;
+
+public class F2ReaderBias_Test {
+    @Test
+    public void testBiasedReadersStayOutOfTheLockTable() {
+        F2Partitions partitions = new F2Partitions(2, 1);
+        partitions.enableReaderBias(SCHEMA, 0);
+        F2Client clientA = new F2Client(2, partitions, null);
+        F2Client clientB = new F2Client(2, partitions, null);
+
+        // When two clients take the hot resource shared
+        clientA.acquireShared(LockTracer.NONE, SCHEMA, 0);
+        clientB.acquireShared(LockTracer.NONE, SCHEMA, 0);
+
+        // Then neither of them touched the lock table
+        assert partitions.getPartition(0).activeLocks().count() == 0;
+        assert !partitions.getPartition(0).hasExclusiveHolderOrWaiters(SCHEMA, 0);
+        assert clientA.activeLockCount() == 1;
+
+        // And when they release, the bias is still on
+        clientA.releaseShared(SCHEMA, 0);
+        clientB.releaseShared(SCHEMA, 0);
+        assert partitions.readerBias(SCHEMA, 0).isBiased();
+    }
+
+    @Test
+    public void testExclusiveAcquireRevokesBias() {
+        F2Partitions partitions = new F2Partitions(2, 1);
+        partitions.enableReaderBias(SCHEMA, 0);
+        F2Client clientA = new F2Client(2, partitions, null);
+        F2Client clientB = new F2Client(2, partitions, null);
+        F2Client clientC = new F2Client(2, partitions, null);
+
+        // Given A holds the hot resource via the bias
+        clientA.acquireShared(LockTracer.NONE, SCHEMA, 0);
+
+        // When B tries to take it exclusively, the bias is revoked, and B is told no since A is now a regular holder
+        assert !clientB.tryExclusiveLock(SCHEMA, 0);
+        assert !partitions.readerBias(SCHEMA, 0).isBiased();
+
+        // And C can still take it shared, the regular way
+        assert clientC.trySharedLock(SCHEMA, 0);
+        assert partitions.getPartition(0).activeLocks().count() == 1;
+
+        // Then once the readers are gone, B gets it
+        clientA.releaseShared(SCHEMA, 0);
+        clientC.releaseShared(SCHEMA, 0);
+        assert clientB.tryExclusiveLock(SCHEMA, 0);
+
+        // And while B holds it, the bias stays off
+        assert !clientA.trySharedLock(SCHEMA, 0);
+        assert !partitions.readerBias(SCHEMA, 0).isBiased();
+        clientB.releaseExclusive(SCHEMA, 0);
+    }
+
+    @Test
+    public void testBiasComesBackAfterWriterLeaves() throws InterruptedException {
+        F2Partitions partitions = new F2Partitions(2, 1);
+        partitions.enableReaderBias(SCHEMA, 0);
+        F2Client reader = new F2Client(2, partitions, null);
+        F2Client writer = new F2Client(2, partitions, null);
+
+        // Given the bias was revoked by a writer that has since left
+        writer.acquireExclusive(LockTracer.NONE, SCHEMA, 0);
+        writer.releaseExclusive(SCHEMA, 0);
+        assert !partitions.readerBias(SCHEMA, 0).isBiased();
+
+        // When readers keep coming, then eventually one of them turns the bias back on
+        for(int attempt = 0; attempt < 1000 && !partitions.readerBias(SCHEMA, 0).isBiased(); attempt++) {
+            Thread.sleep(1);
+            reader.acquireShared(LockTracer.NONE, SCHEMA, 0);
+            reader.releaseShared(SCHEMA, 0);
+        }
+        assert partitions.readerBias(SCHEMA, 0).isBiased();
+    }
+
+    @Test
+    public void testCloseReleasesBiasedAndRegularLocks() {
+        F2Locks locks = new F2Locks(new ResourceType[]{SCHEMA, NODE}, 4);
+        locks.enableReaderBias(SCHEMA, 0);
+
+        // Given a client holding the hot resource via the bias, plus a regular lock
+        Locks.Client client = locks.newClient();
+        client.acquireShared(LockTracer.NONE, SCHEMA, 0);
+        client.acquireExclusive(LockTracer.NONE, NODE, 1);
+
+        // When it closes
+        client.close();
+
+        // Then someone else can take both exclusively
+        Locks.Client other = locks.newClient();
+        assert other.tryExclusiveLock(SCHEMA, 0);
+        assert other.tryExclusiveLock(NODE, 1);
+        other.close();
+    }
+}
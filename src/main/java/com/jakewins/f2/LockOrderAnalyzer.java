@@ -0,0 +1,303 @@
+package com.jakewins.f2;
+
+import org.neo4j.logging.Log;
+import org.neo4j.storageengine.api.lock.ResourceType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds lock order inversions before they turn into deadlocks, after the Linux kernel's lockdep.
+ *
+ * One in every {@link #sampleInterval} clients records, each time it acquires a resource, that every resource it
+ * already holds was acquired before the new one, and in which modes. These orderings go into one graph for the whole
+ * lock manager. If one client ever took A before B, and another took B before A, the two can deadlock whenever they
+ * run at the same time, whether or not they have so far - unless they can share A or share B, so that neither blocks
+ * the other. We report every inversion that can deadlock once, along with where both orders were taken, so the access
+ * pattern can be fixed rather than the deadlock retried.
+ *
+ * The graph is bounded by {@link #MAX_ORDERINGS}; once it's full, new orderings are still checked against the ones
+ * we have, but not added.
+ */
+class LockOrderAnalyzer {
+    /** Same bound as lockdep uses for its dependency table */
+    static final int MAX_ORDERINGS = 1 << 15;
+    /** Resources a single client holds beyond this many are not taken into account as coming before others */
+    static final int MAX_TRACKED_PER_CLIENT = 64;
+
+    private final int sampleInterval;
+    private final Log log;
+    private final ConcurrentHashMap<Ordering, Ordering> orderings = new ConcurrentHashMap<>();
+    /** By the two resources, lowest first and without modes, so each inversion is only reported once */
+    private final ConcurrentHashMap<Ordering, Inversion> inversions = new ConcurrentHashMap<>();
+
+    LockOrderAnalyzer(int sampleInterval, Log log) {
+        assert sampleInterval > 0 : "Sample interval must be positive, got " + sampleInterval;
+        this.sampleInterval = sampleInterval;
+        this.log = log;
+    }
+
+    /** @return a recording for the client with the given number if it's sampled, otherwise null */
+    Recording newRecording(long clientNumber, String clientName) {
+        if(clientNumber % sampleInterval != 0) {
+            return null;
+        }
+        return new Recording(this, clientName);
+    }
+
+    List<Inversion> inversions() {
+        return new ArrayList<>(inversions.values());
+    }
+
+    /**
+     * Add the ordering the recording is looking at to the graph, unless we've seen it before, and report it if it
+     * inverts one we have. Nothing is allocated for orderings we've seen before, which is nearly all of them once
+     * the application has warmed up.
+     */
+    private void ordered(Recording recording) {
+        Ordering probe = recording.probe;
+        if(orderings.containsKey(probe)) {
+            // Seen before; it was checked for inversion back then
+            return;
+        }
+
+        Ordering added = null;
+        if(orderings.size() < MAX_ORDERINGS) {
+            added = probe.copy(recording.clientName, recording.where());
+            if(orderings.putIfAbsent(added, added) != null) {
+                return;
+            }
+        }
+
+        Ordering inverse = conflictingInverse(probe, recording.scratch);
+        if(inverse == null) {
+            return;
+        }
+        if(inversions.containsKey(recording.scratch.setResourcesLowestFirst(probe))) {
+            return;
+        }
+        if(added == null) {
+            added = probe.copy(recording.clientName, recording.where());
+        }
+        Inversion inversion = new Inversion(inverse, added);
+        Ordering resources = added.copy(null, null).setResourcesLowestFirst(added);
+        if(inversions.putIfAbsent(resources, inversion) == null) {
+            report(inversion);
+        }
+    }
+
+    /**
+     * @param scratch overwritten, to look orderings up with
+     * @return an ordering with the two resources the other way round that can deadlock with the given one, if we've
+     *         seen any: for each of the two resources, one side or the other must take it exclusive
+     */
+    private Ordering conflictingInverse(Ordering ordering, Ordering scratch) {
+        for(int modes = 0; modes < 4; modes++) {
+            boolean inverseBeforeExclusive = (modes & 1) != 0;
+            boolean inverseAfterExclusive = (modes & 2) != 0;
+            if(!(ordering.afterExclusive || inverseBeforeExclusive) || !(ordering.beforeExclusive || inverseAfterExclusive)) {
+                continue;
+            }
+            scratch.set(ordering.afterType, ordering.after, inverseBeforeExclusive, ordering.beforeType, ordering.before, inverseAfterExclusive);
+            Ordering inverse = orderings.get(scratch);
+            if(inverse != null) {
+                return inverse;
+            }
+        }
+        return null;
+    }
+
+    private void report(Inversion inversion) {
+        log.warn("Lock order inversion: %s%n%s%s", inversion, where(inversion.first), where(inversion.second));
+    }
+
+    private static String where(Ordering ordering) {
+        StringBuilder where = new StringBuilder(String.format("  %s, at:%n", ordering));
+        for(StackTraceElement element : ordering.where.getStackTrace()) {
+            where.append(String.format("    %s%n", element));
+        }
+        return where.toString();
+    }
+
+    /**
+     * The resources one sampled client holds, in no particular order, and whether it holds each exclusive. Only used
+     * by the client thread.
+     */
+    static class Recording {
+        private final LockOrderAnalyzer analyzer;
+        private final String clientName;
+        private final ResourceType[] resourceTypes = new ResourceType[MAX_TRACKED_PER_CLIENT];
+        private final long[] resourceIds = new long[MAX_TRACKED_PER_CLIENT];
+        private final boolean[] exclusive = new boolean[MAX_TRACKED_PER_CLIENT];
+        private int numHeld = 0;
+
+        /** The ordering we're currently looking at, reused so we only allocate for new ones */
+        private final Ordering probe = new Ordering(null, 0, false, null, 0, false, null, null);
+        private final Ordering scratch = new Ordering(null, 0, false, null, 0, false, null, null);
+        /** Where the acquisition we're recording happened; only captured once it's needed, then shared by all orderings it adds */
+        private Throwable where;
+
+        Recording(LockOrderAnalyzer analyzer, String clientName) {
+            this.analyzer = analyzer;
+            this.clientName = clientName;
+        }
+
+        void acquired(F2ClientEntry entry) {
+            // We've held the resource since we took it shared, if this is an upgrade; from now on we hold it exclusive
+            int upgraded = -1;
+            if(entry.lockMode == LockMode.UPGRADE) {
+                upgraded = indexOf(entry);
+                if(upgraded != -1) {
+                    exclusive[upgraded] = true;
+                }
+            }
+
+            where = null;
+            boolean acquiredExclusive = entry.lockMode != LockMode.SHARED;
+            for(int i = 0; i < numHeld; i++) {
+                if(i == upgraded) {
+                    continue;
+                }
+                probe.set(resourceTypes[i], resourceIds[i], exclusive[i], entry.resourceType, entry.resourceId, acquiredExclusive);
+                analyzer.ordered(this);
+            }
+            where = null;
+
+            if(entry.lockMode != LockMode.UPGRADE && numHeld < MAX_TRACKED_PER_CLIENT) {
+                resourceTypes[numHeld] = entry.resourceType;
+                resourceIds[numHeld] = entry.resourceId;
+                exclusive[numHeld] = acquiredExclusive;
+                numHeld++;
+            }
+        }
+
+        void released(F2ClientEntry entry) {
+            int i = indexOf(entry);
+            if(i == -1) {
+                return;
+            }
+            if(entry.lockMode == LockMode.UPGRADE) {
+                // Still held shared
+                exclusive[i] = false;
+                return;
+            }
+            numHeld--;
+            resourceTypes[i] = resourceTypes[numHeld];
+            resourceIds[i] = resourceIds[numHeld];
+            exclusive[i] = exclusive[numHeld];
+            resourceTypes[numHeld] = null;
+        }
+
+        private Throwable where() {
+            if(where == null) {
+                where = new Throwable();
+            }
+            return where;
+        }
+
+        private int indexOf(F2ClientEntry entry) {
+            for(int i = 0; i < numHeld; i++) {
+                if(resourceIds[i] == entry.resourceId && resourceTypes[i] == entry.resourceType) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Some client acquired {@link #before} and then, still holding it, {@link #after}. Orderings in the graph are
+     * never changed once added; only the ones a {@link Recording} looks things up with are.
+     */
+    static class Ordering {
+        ResourceType beforeType;
+        long before;
+        boolean beforeExclusive;
+        ResourceType afterType;
+        long after;
+        boolean afterExclusive;
+        /** Not part of equality; the first client we saw take the resources in this order, and where */
+        final String clientName;
+        final Throwable where;
+
+        Ordering(ResourceType beforeType, long before, boolean beforeExclusive, ResourceType afterType, long after, boolean afterExclusive, String clientName, Throwable where) {
+            this.clientName = clientName;
+            this.where = where;
+            set(beforeType, before, beforeExclusive, afterType, after, afterExclusive);
+        }
+
+        Ordering set(ResourceType beforeType, long before, boolean beforeExclusive, ResourceType afterType, long after, boolean afterExclusive) {
+            this.beforeType = beforeType;
+            this.before = before;
+            this.beforeExclusive = beforeExclusive;
+            this.afterType = afterType;
+            this.after = after;
+            this.afterExclusive = afterExclusive;
+            return this;
+        }
+
+        /** Set this to the two resources of the given ordering, lowest first, and leave the modes out */
+        Ordering setResourcesLowestFirst(Ordering ordering) {
+            int typeOrder = Integer.compare(ordering.beforeType.typeId(), ordering.afterType.typeId());
+            if(typeOrder < 0 || typeOrder == 0 && ordering.before < ordering.after) {
+                return set(ordering.beforeType, ordering.before, false, ordering.afterType, ordering.after, false);
+            }
+            return set(ordering.afterType, ordering.after, false, ordering.beforeType, ordering.before, false);
+        }
+
+        Ordering copy(String clientName, Throwable where) {
+            return new Ordering(beforeType, before, beforeExclusive, afterType, after, afterExclusive, clientName, where);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o) {
+                return true;
+            }
+            if(o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Ordering other = (Ordering) o;
+            return before == other.before && after == other.after && beforeType == other.beforeType && afterType == other.afterType
+                    && beforeExclusive == other.beforeExclusive && afterExclusive == other.afterExclusive;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = beforeType.typeId();
+            result = 31 * result + Long.hashCode(before);
+            result = 31 * result + afterType.typeId();
+            result = 31 * result + Long.hashCode(after);
+            result = 31 * result + (beforeExclusive ? 1 : 0);
+            result = 31 * result + (afterExclusive ? 1 : 0);
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("client %s acquired %s(%d) %s while holding %s(%d) %s", clientName,
+                    afterType.name(), after, modeName(afterExclusive), beforeType.name(), before, modeName(beforeExclusive));
+        }
+
+        private static String modeName(boolean exclusive) {
+            return exclusive ? "exclusive" : "shared";
+        }
+    }
+
+    /** Two clients that took the same two resources in opposite order, in modes that can deadlock */
+    static class Inversion {
+        final Ordering first;
+        final Ordering second;
+
+        Inversion(Ordering first, Ordering second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s, but %s", first, second);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.jakewins.f2;
+
+import org.junit.Test;
+import org.neo4j.kernel.impl.locking.LockTracer;
+import org.neo4j.kernel.impl.locking.Locks;
+import org.neo4j.storageengine.api.lock.ResourceType;
+
+import java.util.List;
+
+import static com.jakewins.f2.DeadlockDetector_Test.NODE;
+import static com.jakewins.f2.DeadlockDetector_Test.SCHEMA;
+
+public class LockOrderAnalyzer_Test {
+    @Test
+    public void testReportsInversionThatHasNotDeadlockedYet() {
+        F2Locks locks = newLocks(1);
+
+        // Given one client takes 1 then 2, and is done before the next one starts
+        try(Locks.Client client = locks.newClient()) {
+            client.acquireExclusive(LockTracer.NONE, NODE, 1);
+            client.acquireShared(LockTracer.NONE, NODE, 2);
+        }
+
+        // When another takes 2 then 1
+        try(Locks.Client client = locks.newClient()) {
+            client.acquireExclusive(LockTracer.NONE, NODE, 2);
+            client.acquireExclusive(LockTracer.NONE, NODE, 1);
+        }
+
+        // Then that's reported, with both orders
+        List<LockOrderAnalyzer.Inversion> inversions = locks.lockOrderInversions();
+        assert inversions.size() == 1 : inversions;
+        LockOrderAnalyzer.Inversion inversion = inversions.get(0);
+        assert inversion.first.before == 1 && inversion.first.after == 2 : inversion;
+        assert inversion.second.before == 2 && inversion.second.after == 1 : inversion;
+        assert inversion.toString().equals(String.format("client 0 acquired %1$s(2) shared while holding %1$s(1) exclusive, but client 1 acquired %1$s(1) exclusive while holding %1$s(2) exclusive", NODE.name())) : inversion;
+
+        // And it's only reported once, however often it happens again
+        try(Locks.Client client = locks.newClient()) {
+            client.acquireExclusive(LockTracer.NONE, NODE, 1);
+            client.acquireExclusive(LockTracer.NONE, NODE, 2);
+        }
+        assert locks.lockOrderInversions().size() == 1;
+    }
+
+    @Test
+    public void testConsistentOrderIsNotAnInversion() {
+        F2Locks locks = newLocks(1);
+
+        // When clients all take the schema lock first, and nodes in increasing order, batched or not
+        for(int i = 0; i < 3; i++) {
+            try(Locks.Client client = locks.newClient()) {
+                client.acquireShared(LockTracer.NONE, SCHEMA, 0);
+                client.acquireExclusive(LockTracer.NONE, NODE, 1, 2, 3);
+                client.acquireExclusive(LockTracer.NONE, NODE, 4);
+                // Re-entering and upgrading don't order anything either
+                client.acquireExclusive(LockTracer.NONE, NODE, 1);
+                client.acquireShared(LockTracer.NONE, NODE, 5);
+                client.acquireExclusive(LockTracer.NONE, NODE, 5);
+            }
+        }
+
+        // Then there's nothing to report
+        assert locks.lockOrderInversions().isEmpty() : locks.lockOrderInversions();
+    }
+
+    @Test
+    public void testOppositeOrdersThatCanShareEitherResourceAreNotInversions() {
+        F2Locks locks = newLocks(1);
+
+        // Given clients that take 1 then 2, and 2 then 1, but always share 1 and 2, or share 3 and 4 with each other
+        try(Locks.Client client = locks.newClient()) {
+            client.acquireShared(LockTracer.NONE, NODE, 1);
+            client.acquireShared(LockTracer.NONE, NODE, 2);
+        }
+        try(Locks.Client client = locks.newClient()) {
+            client.acquireShared(LockTracer.NONE, NODE, 2);
+            client.acquireShared(LockTracer.NONE, NODE, 1);
+        }
+        try(Locks.Client client = locks.newClient()) {
+            client.acquireShared(LockTracer.NONE, NODE, 3);
+            client.acquireExclusive(LockTracer.NONE, NODE, 4);
+        }
+        try(Locks.Client client = locks.newClient()) {
+            client.acquireExclusive(LockTracer.NONE, NODE, 4);
+            client.acquireShared(LockTracer.NONE, NODE, 3);
+        }
+
+        // Then that's fine; neither can block the other on the resource it took first
+        assert locks.lockOrderInversions().isEmpty() : locks.lockOrderInversions();
+
+        // But when one later upgrades its shared lock on 3 while holding 4, that can deadlock with the others
+        try(Locks.Client client = locks.newClient()) {
+            client.acquireExclusive(LockTracer.NONE, NODE, 4);
+            client.acquireShared(LockTracer.NONE, NODE, 3);
+            client.acquireExclusive(LockTracer.NONE, NODE, 3);
+        }
+        List<LockOrderAnalyzer.Inversion> inversions = locks.lockOrderInversions();
+        assert inversions.size() == 1 : inversions;
+        LockOrderAnalyzer.Inversion inversion = inversions.get(0);
+        assert inversion.first.before == 3 && !inversion.first.beforeExclusive && inversion.first.afterExclusive : inversion;
+        assert inversion.second.before == 4 && inversion.second.after == 3 && inversion.second.afterExclusive : inversion;
+    }
+
+    @Test
+    public void testReleasedResourcesAreNotOrderedBeforeLaterOnes() {
+        F2Locks locks = newLocks(1);
+
+        // Given a client takes 2, lets go of it, and then takes 1
+        try(Locks.Client client = locks.newClient()) {
+            client.acquireExclusive(LockTracer.NONE, NODE, 2);
+            client.releaseExclusive(NODE, 2);
+            client.acquireExclusive(LockTracer.NONE, NODE, 1);
+        }
+
+        // When another takes 1 then 2
+        try(Locks.Client client = locks.newClient()) {
+            client.acquireExclusive(LockTracer.NONE, NODE, 1);
+            client.acquireExclusive(LockTracer.NONE, NODE, 2);
+        }
+
+        // Then that's fine; the first never held both at once
+        assert locks.lockOrderInversions().isEmpty() : locks.lockOrderInversions();
+    }
+
+    @Test
+    public void testOnlySampledClientsAreRecorded() {
+        F2Locks locks = newLocks(2);
+
+        // Given clients 0 and 2 are sampled, and 1 isn't
+        for(int i = 0; i < 3; i++) {
+            try(Locks.Client client = locks.newClient()) {
+                long first = i == 0 ? 1 : 2;
+                client.acquireExclusive(LockTracer.NONE, NODE, first);
+                client.acquireExclusive(LockTracer.NONE, NODE, 3 - first);
+            }
+
+            // Then client 1 taking 2 before 1 goes unnoticed, while client 2 doing the same is caught
+            assert locks.lockOrderInversions().size() == (i == 2 ? 1 : 0);
+        }
+    }
+
+    private static F2Locks newLocks(int lockOrderSampleInterval) {
+        return new F2Locks(new ResourceType[]{NODE, SCHEMA}, 4, new F2Options().withLockOrderSampleInterval(lockOrderSampleInterval));
+    }
+}
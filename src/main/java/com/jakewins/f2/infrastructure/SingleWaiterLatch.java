@@ -17,6 +17,8 @@ public class SingleWaiterLatch {
 
     private final AtomicInteger state = new AtomicInteger(CLOSED);
     private Thread waiter;
+    /** See {@link #expire} */
+    private volatile boolean expired = false;
 
     public boolean tryAcquire(long time, TimeUnit unit) throws InterruptedException {
         long deadline = System.nanoTime() + unit.toNanos(time);
@@ -59,6 +61,91 @@ public class SingleWaiterLatch {
         }
     }
 
+    /**
+     * Wait for a permit without a timeout; instead whoever keeps track of how long we may wait calls {@link #expire}
+     * once that time is up, see {@link TimingWheel}. Interrupts don't end the wait, but are kept for the caller to see.
+     *
+     * @return true if we got a permit, false if we were expired first
+     */
+    public boolean acquireUnlessExpired() {
+        boolean interrupted = false;
+        try {
+            int yieldIterations = 100;
+            for(;;) {
+                int currentState = state.get();
+                if(currentState <= OPEN && state.compareAndSet(currentState, currentState + 1)) {
+                    return true;
+                }
+
+                if(expired) {
+                    expired = false;
+                    return false;
+                }
+
+                if(currentState == CLOSED_WAITING_FOR_SIGNAL) {
+                    // At most one waiter at a time is allowed
+                    return false;
+                }
+
+                if(yieldIterations > 0) {
+                    yieldIterations--;
+                    Thread.yield();
+                    continue;
+                }
+
+                waiter = Thread.currentThread();
+                try {
+                    if (state.compareAndSet(CLOSED, CLOSED_WAITING_FOR_SIGNAL)) {
+                        // Check again now that we're marked waiting; either we see it, or expire sees us and unparks
+                        if(!expired) {
+                            LockSupport.park(this);
+                            interrupted |= Thread.interrupted();
+                        }
+
+                        currentState = state.get();
+                        if(currentState == CLOSED_WAITING_FOR_SIGNAL) {
+                            state.compareAndSet(CLOSED_WAITING_FOR_SIGNAL, CLOSED);
+                        }
+                    }
+                } finally {
+                    waiter = null;
+                }
+            }
+        } finally {
+            if(interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Make the current or next {@link #acquireUnlessExpired} give up, unless it gets a permit.
+     */
+    public void expire() {
+        expired = true;
+        if(state.get() == CLOSED_WAITING_FOR_SIGNAL) {
+            Thread waiter = this.waiter;
+            if(waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+
+    /** Forget about any {@link #expire} that came in after we stopped waiting */
+    public void clearExpired() {
+        expired = false;
+    }
+
+    /**
+     * Drop any permits and expiry left over, so the latch can be used afresh.
+     *
+     * NOTE: Nobody must be waiting on, or releasing, the latch while this runs
+     */
+    public void reset() {
+        state.set(CLOSED);
+        expired = false;
+    }
+
     public void release() {
         for(;;) {
             int currentState = state.get();
@@ -0,0 +1,294 @@
+package com.jakewins.f2.infrastructure;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Keeps track of many deadlines with one thread, so those waiting for them can park without a timeout, and are only
+ * woken up if their deadline actually passes.
+ *
+ * This is a hierarchical timing wheel (Varghese &amp; Lauck, "Hashed and Hierarchical Timing Wheels"), like the
+ * Linux kernel's timer wheel: {@link #LEVELS} wheels of {@link #WHEEL_SIZE} buckets each, where a bucket on level n
+ * covers {@code WHEEL_SIZE^n} ticks. Timers go in the lowest level whose range covers them, and are moved down a level
+ * each time the level below has gone round once, until they're in level 0, where they expire. Each tick is O(1), not
+ * counting the timers it moves or expires.
+ *
+ * Only the wheel thread touches the buckets. Scheduling and cancelling take no locks: a timer's state is a single
+ * word swapped in with compare-and-set, and scheduled timers are pushed on a lock-free stack that the thread takes
+ * in once per tick. Cancelled timers are dropped from their bucket whenever the thread comes across them.
+ *
+ * Timers expire at the first tick at or after their deadline. The thread is started by the first {@link #schedule},
+ * only ticks while there are timers in the wheel, and stops once the wheel is {@link #close closed}.
+ */
+public class TimingWheel implements Runnable {
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 4;
+    /** Timers further out than this many ticks are moved down again once they get to the bottom of the top level */
+    private static final long MAX_TICKS = (1L << (WHEEL_BITS * LEVELS)) - 1;
+
+    // Timer states, in the low bits of Timer#state; the rest is a version, bumped by each schedule and cancel
+    private static final long IDLE = 0;
+    private static final long SCHEDULED = 1;
+    private static final long FIRING = 2;
+    private static final long STATE_MASK = 3;
+    private static final long VERSION = 4;
+
+    /**
+     * A deadline; these are owned by whoever waits for them, and scheduled and cancelled over and over, so that
+     * waiting doesn't allocate. Each timer must only be scheduled and cancelled by one thread at a time.
+     */
+    public abstract static class Timer {
+        private static final AtomicLongFieldUpdater<Timer> STATE = AtomicLongFieldUpdater.newUpdater(Timer.class, "state");
+        private static final AtomicIntegerFieldUpdater<Timer> QUEUED = AtomicIntegerFieldUpdater.newUpdater(Timer.class, "queued");
+
+        private volatile long state = IDLE;
+        private volatile long deadlineNanos;
+        /** 1 while on the stack of timers the wheel thread hasn't taken in yet, 0 otherwise */
+        private volatile int queued;
+        private Timer nextQueued;
+
+        // Owned by the wheel thread
+        private long deadlineTick;
+        private Timer prev;
+        private Timer next;
+        /** Level and bucket we're in, or -1 while not in the wheel */
+        private int level = -1;
+        private int bucket;
+
+        /**
+         * Called once the deadline has passed, by the timing wheel thread; must be quick, like unparking a thread, as
+         * scheduling or cancelling this timer waits for it to return.
+         */
+        protected abstract void expired();
+    }
+
+    private final long tickNanos;
+    private final long startNanos = System.nanoTime();
+    private final Thread thread;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile boolean closed = false;
+    /** Set while the thread is parked with nothing in the wheel, and needs to be woken up for new timers */
+    private volatile boolean idle = false;
+
+    /** Timers scheduled since the thread last looked, newest first */
+    private final AtomicReference<Timer> queue = new AtomicReference<>();
+
+    // Owned by the wheel thread
+    private final Timer[][] wheels = new Timer[LEVELS][WHEEL_SIZE];
+    private long currentTick = 0;
+    private int numInWheel = 0;
+
+    public TimingWheel(String name, long tick, TimeUnit unit) {
+        this.tickNanos = unit.toNanos(tick);
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Schedule the timer to expire once the given time has passed, replacing whatever deadline it had before.
+     * Timers scheduled after the wheel is closed never expire.
+     */
+    public void schedule(Timer timer, long delay, TimeUnit unit) {
+        long deadlineNanos = System.nanoTime() + unit.toNanos(delay);
+        for(;;) {
+            long state = timer.state;
+            if((state & STATE_MASK) == FIRING) {
+                Thread.yield();
+                continue;
+            }
+            timer.deadlineNanos = deadlineNanos;
+            if(Timer.STATE.compareAndSet(timer, state, nextVersion(state) | SCHEDULED)) {
+                break;
+            }
+        }
+
+        // If it's queued already, the thread reads the new deadline once it takes the timer off the queue
+        if(timer.queued == 0 && Timer.QUEUED.compareAndSet(timer, 0, 1)) {
+            for(;;) {
+                Timer head = queue.get();
+                timer.nextQueued = head;
+                if(queue.compareAndSet(head, timer)) {
+                    break;
+                }
+            }
+        }
+
+        if(!started.get() && !closed && started.compareAndSet(false, true)) {
+            thread.start();
+        } else if(idle) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Make sure the timer won't expire; once this returns, {@link Timer#expired()} is not going to be called, until the
+     * timer is scheduled again.
+     */
+    public void cancel(Timer timer) {
+        for(;;) {
+            long state = timer.state;
+            if((state & STATE_MASK) == IDLE) {
+                return;
+            }
+            if((state & STATE_MASK) == FIRING) {
+                Thread.yield();
+                continue;
+            }
+            if(Timer.STATE.compareAndSet(timer, state, nextVersion(state) | IDLE)) {
+                return;
+            }
+        }
+    }
+
+    /** Stop the thread; timers still scheduled never expire */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void run() {
+        while(!closed) {
+            long nowTick = tickOf(System.nanoTime());
+            if(numInWheel == 0) {
+                // We don't tick while idle, so we may be far behind; nothing to expire in between, so skip ahead
+                currentTick = Math.max(currentTick, nowTick);
+            }
+            while(currentTick < nowTick && numInWheel > 0) {
+                tick();
+            }
+            takeInQueued();
+
+            if(numInWheel == 0) {
+                // Check the queue again once marked idle; either we see new timers, or whoever queues them sees us
+                idle = true;
+                if(queue.get() == null && !closed) {
+                    LockSupport.park(this);
+                }
+                idle = false;
+            } else {
+                long untilNextTick = startNanos + (currentTick + 1) * tickNanos - System.nanoTime();
+                if(untilNextTick > 0) {
+                    LockSupport.parkNanos(this, untilNextTick);
+                }
+            }
+        }
+    }
+
+    /** Move timers scheduled since we last looked into the wheel, or expire them right away if they're due */
+    private void takeInQueued() {
+        Timer timer = queue.getAndSet(null);
+        while(timer != null) {
+            Timer nextQueued = timer.nextQueued;
+            timer.nextQueued = null;
+            // Off the queue before we read the deadline, so a schedule after this queues the timer again
+            timer.queued = 0;
+            if(timer.level != -1) {
+                remove(timer);
+            }
+            expireOrPlace(timer);
+            timer = nextQueued;
+        }
+    }
+
+    private void tick() {
+        currentTick++;
+
+        // Move timers down from the levels that are due, lowest level first, so what comes down from the higher
+        // levels ends up in the right place
+        for(int level = 1; level < LEVELS; level++) {
+            if((currentTick & ((1L << (WHEEL_BITS * level)) - 1)) != 0) {
+                break;
+            }
+            takeOutBucket(level, (int) (currentTick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+        }
+
+        takeOutBucket(0, (int) currentTick & WHEEL_MASK);
+    }
+
+    private void takeOutBucket(int level, int bucket) {
+        Timer timer = wheels[level][bucket];
+        wheels[level][bucket] = null;
+        while(timer != null) {
+            Timer next = timer.next;
+            timer.level = -1;
+            timer.prev = timer.next = null;
+            numInWheel--;
+            expireOrPlace(timer);
+            timer = next;
+        }
+    }
+
+    /** Expire the timer if it's due, put it in the bucket for its deadline if not, or leave it out if it was cancelled */
+    private void expireOrPlace(Timer timer) {
+        long state = timer.state;
+        if((state & STATE_MASK) != SCHEDULED) {
+            return;
+        }
+        long deadlineTick = tickOf(timer.deadlineNanos + tickNanos - 1);
+        if(deadlineTick > currentTick) {
+            timer.deadlineTick = deadlineTick;
+            place(timer);
+            return;
+        }
+
+        // If it was rescheduled or cancelled since we read the state, this fails, and a reschedule queued it again
+        long firing = (state & ~STATE_MASK) | FIRING;
+        if(Timer.STATE.compareAndSet(timer, state, firing)) {
+            try {
+                timer.expired();
+            } finally {
+                timer.state = nextVersion(firing) | IDLE;
+            }
+        }
+    }
+
+    /** Put the timer in the bucket for its deadline */
+    private void place(Timer timer) {
+        long placeTick = Math.min(timer.deadlineTick, currentTick + MAX_TICKS);
+        long delta = placeTick - currentTick;
+        int level = 0;
+        while(level < LEVELS - 1 && delta >= (1L << (WHEEL_BITS * (level + 1)))) {
+            level++;
+        }
+        int bucket = (int) (placeTick >>> (WHEEL_BITS * level)) & WHEEL_MASK;
+
+        timer.level = level;
+        timer.bucket = bucket;
+        timer.prev = null;
+        timer.next = wheels[level][bucket];
+        if(timer.next != null) {
+            timer.next.prev = timer;
+        }
+        wheels[level][bucket] = timer;
+        numInWheel++;
+    }
+
+    private void remove(Timer timer) {
+        if(timer.prev == null) {
+            wheels[timer.level][timer.bucket] = timer.next;
+        } else {
+            timer.prev.next = timer.next;
+        }
+        if(timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.prev = timer.next = null;
+        timer.level = -1;
+        numInWheel--;
+    }
+
+    private long tickOf(long nanos) {
+        return (nanos - startNanos) / tickNanos;
+    }
+
+    private static long nextVersion(long state) {
+        return (state & ~STATE_MASK) + VERSION;
+    }
+}
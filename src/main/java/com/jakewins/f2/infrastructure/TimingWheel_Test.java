@@ -0,0 +1,172 @@
+package com.jakewins.f2.infrastructure;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TimingWheel_Test {
+    @Test
+    public void shouldExpireTimersInDeadlineOrder() throws InterruptedException {
+        // Given
+        TimingWheel wheel = new TimingWheel("test-wheel", 1, TimeUnit.MILLISECONDS);
+        AtomicInteger expiredSoFar = new AtomicInteger();
+        int[] expiredAs = new int[3];
+        CountDownLatch allExpired = new CountDownLatch(3);
+
+        // When timers are scheduled in reverse order, the last one far enough out to start in a higher level
+        long[] delays = {150, 80, 20};
+        for(int i = 0; i < delays.length; i++) {
+            int timerNumber = i;
+            wheel.schedule(new TimingWheel.Timer() {
+                @Override
+                protected void expired() {
+                    expiredAs[timerNumber] = expiredSoFar.getAndIncrement();
+                    allExpired.countDown();
+                }
+            }, delays[i], TimeUnit.MILLISECONDS);
+        }
+
+        // Then
+        assert allExpired.await(5, TimeUnit.SECONDS) : "Expected all timers to expire.";
+        assert expiredAs[2] == 0 && expiredAs[1] == 1 && expiredAs[0] == 2 : "Expected timers to expire in deadline order.";
+        wheel.close();
+    }
+
+    @Test
+    public void shouldNotExpireCancelledOrRescheduledTimers() throws InterruptedException {
+        // Given
+        TimingWheel wheel = new TimingWheel("test-wheel", 1, TimeUnit.MILLISECONDS);
+        AtomicInteger cancelledExpirations = new AtomicInteger();
+        AtomicInteger rescheduledExpirations = new AtomicInteger();
+        CountDownLatch rescheduledExpired = new CountDownLatch(1);
+        TimingWheel.Timer cancelled = new TimingWheel.Timer() {
+            @Override
+            protected void expired() {
+                cancelledExpirations.incrementAndGet();
+            }
+        };
+        TimingWheel.Timer rescheduled = new TimingWheel.Timer() {
+            @Override
+            protected void expired() {
+                rescheduledExpirations.incrementAndGet();
+                rescheduledExpired.countDown();
+            }
+        };
+
+        // When
+        wheel.schedule(cancelled, 10, TimeUnit.MILLISECONDS);
+        wheel.schedule(rescheduled, 10, TimeUnit.MILLISECONDS);
+        wheel.cancel(cancelled);
+        long start = System.nanoTime();
+        wheel.schedule(rescheduled, 100, TimeUnit.MILLISECONDS);
+
+        // Then
+        assert rescheduledExpired.await(5, TimeUnit.SECONDS) : "Expected rescheduled timer to expire.";
+        assert System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100) : "Expected the new deadline to replace the old one.";
+        Thread.sleep(50);
+        assert cancelledExpirations.get() == 0;
+        assert rescheduledExpirations.get() == 1;
+        wheel.close();
+    }
+
+    @Test
+    public void shouldWakeWaiterWhenDeadlinePasses() throws InterruptedException {
+        // Given
+        TimingWheel wheel = new TimingWheel("test-wheel", 1, TimeUnit.MILLISECONDS);
+        SingleWaiterLatch latch = new SingleWaiterLatch();
+        TimingWheel.Timer deadline = new TimingWheel.Timer() {
+            @Override
+            protected void expired() {
+                latch.expire();
+            }
+        };
+
+        // When
+        wheel.schedule(deadline, 50, TimeUnit.MILLISECONDS);
+
+        // Then the waiter gives up without a permit, and a permit released after is still there for the next wait
+        assert !latch.acquireUnlessExpired();
+        latch.release();
+        assert latch.acquireUnlessExpired();
+        wheel.close();
+    }
+
+    @Test
+    public void shouldExpireTimersScheduledAndCancelledFromManyThreads() throws InterruptedException {
+        // Given
+        TimingWheel wheel = new TimingWheel("test-wheel", 1, TimeUnit.MILLISECONDS);
+        int threads = 4, iterations = 2_000;
+        AtomicInteger expiredWhileCancelled = new AtomicInteger();
+        CountDownLatch allExpired = new CountDownLatch(threads);
+
+        // When each thread keeps scheduling and cancelling its own timer, and then leaves it scheduled
+        Thread[] workers = new Thread[threads];
+        for(int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                AtomicBoolean cancelled = new AtomicBoolean();
+                TimingWheel.Timer timer = new TimingWheel.Timer() {
+                    @Override
+                    protected void expired() {
+                        if(cancelled.get()) {
+                            expiredWhileCancelled.incrementAndGet();
+                        }
+                        allExpired.countDown();
+                    }
+                };
+                for(int i = 0; i < iterations; i++) {
+                    cancelled.set(false);
+                    wheel.schedule(timer, i % 3, TimeUnit.MILLISECONDS);
+                    wheel.cancel(timer);
+                    cancelled.set(true);
+                }
+                cancelled.set(false);
+                wheel.schedule(timer, 10, TimeUnit.MILLISECONDS);
+            });
+            workers[t].start();
+        }
+        for(Thread worker : workers) {
+            worker.join();
+        }
+
+        // Then no timer expires once cancelled, and the last deadline of each expires
+        assert allExpired.await(5, TimeUnit.SECONDS) : "Expected every timer's last deadline to expire.";
+        assert expiredWhileCancelled.get() == 0 : expiredWhileCancelled.get() + " timers expired after being cancelled";
+        wheel.close();
+    }
+
+    @Test
+    public void shouldStopThreadOnClose() throws InterruptedException {
+        // Given a wheel that's been put to work
+        TimingWheel wheel = new TimingWheel("test-wheel-to-close", 1, TimeUnit.MILLISECONDS);
+        CountDownLatch expired = new CountDownLatch(1);
+        wheel.schedule(new TimingWheel.Timer() {
+            @Override
+            protected void expired() {
+                expired.countDown();
+            }
+        }, 1, TimeUnit.MILLISECONDS);
+        assert expired.await(5, TimeUnit.SECONDS);
+
+        // When
+        wheel.close();
+
+        // Then its thread goes away
+        long giveUpAt = System.currentTimeMillis() + 5_000;
+        while(wheelThreadIsAlive("test-wheel-to-close")) {
+            assert System.currentTimeMillis() < giveUpAt : "Expected the wheel thread to stop once closed.";
+            Thread.sleep(1);
+        }
+    }
+
+    private static boolean wheelThreadIsAlive(String name) {
+        for(Thread thread : Thread.getAllStackTraces().keySet()) {
+            if(thread.getName().equals(name) && thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}